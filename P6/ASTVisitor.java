@@ -0,0 +1,11 @@
+// **********************************************************************
+// ASTVisitor
+//    Interface for passes over the AST that are driven by the accept
+//    methods of the nodes (see PassManager).
+//    pre is called for a node before its children are visited, post is
+//    called after all of its children have been visited.
+// **********************************************************************
+public interface ASTVisitor {
+    public void pre(ASTnode node);
+    public void post(ASTnode node);
+}
@@ -0,0 +1,437 @@
+import java.util.*;
+
+// **********************************************************************
+// The Cfg class is the control-flow graph of a function.  Its nodes are
+// basic blocks (see Block): sequences of the simple statements of the
+// function (assignments, ++, --, reads, writes, calls and returns) that
+// are always executed together.  A block ends at the condition of an
+// if, if-else or while statement (the condition is evaluated at the end
+// of the block), at a return, and before a point where control flow
+// joins (after an if or if-else, and at the condition of a while).
+//
+// A block that ends at a condition has two successors: successor 0 is
+// taken when the condition is true and successor 1 when it is false.
+// A return goes to the exit block, which has no statements, as does the
+// end of the function body.  Statements after a return (up to the next
+// join) are put in a block that has no predecessors; the blocks that
+// cannot be reached from the entry block keep their statements, but
+// their edges are removed, so all the predecessors of a reachable block
+// are reachable.
+//
+// The reachable blocks are also numbered in reverse postorder, and the
+// graph has their dominator tree (found with the iterative algorithm of
+// Cooper, Harvey and Kennedy, "A Simple, Fast Dominance Algorithm") and
+// their dominance frontiers.
+// **********************************************************************
+public class Cfg {
+    private FuncDeclNode func;
+    private List<Block> blocks;   // all blocks, in the order of the source
+    private List<Block> order;    // the reachable ones, in reverse postorder
+    private Block entry;
+    private Block exit;
+
+    /***
+     * Build the control-flow graph of the given function.
+     ***/
+    public static Cfg build(FuncDeclNode func) {
+        Cfg cfg = new Cfg(func);
+        Block last = cfg.addStmts(func.body().stmtList(), cfg.entry);
+        last.addSucc(cfg.exit);
+        cfg.add(cfg.exit);
+        cfg.findOrder();
+        cfg.findDominators();
+        cfg.findFrontiers();
+        return cfg;
+    }
+
+    private Cfg(FuncDeclNode func) {
+        this.func = func;
+        blocks = new ArrayList<Block>();
+        entry = newBlock("entry");
+        exit = new Block("exit");   // added last
+    }
+
+    public FuncDeclNode func() {
+        return func;
+    }
+
+    /***
+     * Return all the blocks (reachable or not), in the order of the
+     * source; the number of a block (see Block.id) is its index here.
+     ***/
+    public List<Block> blocks() {
+        return blocks;
+    }
+
+    /***
+     * Return the reachable blocks in reverse postorder (so that, except
+     * for the back edges of loops, each block comes after its
+     * predecessors).
+     ***/
+    public List<Block> order() {
+        return order;
+    }
+
+    public Block entry() {
+        return entry;
+    }
+
+    public Block exit() {
+        return exit;
+    }
+
+    /***
+     * Return true if block a dominates block b (both reachable), i.e.,
+     * every path from the entry to b goes through a.
+     ***/
+    public boolean dominates(Block a, Block b) {
+        return a.pre() <= b.pre() && b.post() <= a.post();
+    }
+
+    // **********************************************************************
+    // building
+    // **********************************************************************
+
+    private Block newBlock(String kind) {
+        Block b = new Block(kind);
+        add(b);
+        return b;
+    }
+
+    private void add(Block b) {
+        b.setId(blocks.size());
+        blocks.add(b);
+    }
+
+    // add the statements of the given list to the graph, starting in block
+    // cur; return the block that control reaches at the end of the list
+    private Block addStmts(StmtListNode list, Block cur) {
+        for (StmtNode stmt : list.stmts()) {
+            if (stmt instanceof IfStmtNode) {
+                IfStmtNode ifStmt = (IfStmtNode)stmt;
+                cur.setBranch(ifStmt);
+                Block then = newBlock("then");
+                cur.addSucc(then);
+                Block thenEnd = addStmts(ifStmt.stmtList(), then);
+                Block join = newBlock("endif");
+                cur.addSucc(join);
+                thenEnd.addSucc(join);
+                cur = join;
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                IfElseStmtNode ifStmt = (IfElseStmtNode)stmt;
+                cur.setBranch(ifStmt);
+                Block then = newBlock("then");
+                cur.addSucc(then);
+                Block thenEnd = addStmts(ifStmt.thenStmtList(), then);
+                Block other = newBlock("else");
+                cur.addSucc(other);
+                Block otherEnd = addStmts(ifStmt.elseStmtList(), other);
+                Block join = newBlock("endif");
+                thenEnd.addSucc(join);
+                otherEnd.addSucc(join);
+                cur = join;
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                WhileStmtNode whileStmt = (WhileStmtNode)stmt;
+                Block header = newBlock("while");
+                cur.addSucc(header);
+                header.setBranch(whileStmt);
+                Block body = newBlock("body");
+                header.addSucc(body);
+                Block bodyEnd = addStmts(whileStmt.stmtList(), body);
+                bodyEnd.addSucc(header);
+                cur = newBlock("endwhile");
+                header.addSucc(cur);
+            }
+            else {
+                cur.stmts().add(stmt);
+                if (stmt instanceof ReturnStmtNode) {
+                    cur.addSucc(exit);
+                    cur = newBlock("after return");
+                }
+            }
+        }
+        return cur;
+    }
+
+    // number the reachable blocks in reverse postorder, and remove the
+    // edges of the unreachable ones
+    private void findOrder() {
+        List<Block> post = new ArrayList<Block>();
+        boolean[] seen = new boolean[blocks.size()];
+        int[] next = new int[blocks.size()];   // next successor to visit
+        ArrayDeque<Block> stack = new ArrayDeque<Block>();
+        stack.push(entry);
+        seen[entry.id()] = true;
+        while (!stack.isEmpty()) {
+            Block b = stack.peek();
+            if (next[b.id()] < b.succs().size()) {
+                Block s = b.succs().get(next[b.id()]++);
+                if (!seen[s.id()]) {
+                    seen[s.id()] = true;
+                    stack.push(s);
+                }
+            } else {
+                stack.pop();
+                post.add(b);
+            }
+        }
+
+        order = new ArrayList<Block>(post.size());
+        for (int k = post.size() - 1; k >= 0; k--) {
+            post.get(k).setOrder(order.size());
+            order.add(post.get(k));
+        }
+
+        for (Block b : blocks) {
+            if (!seen[b.id()]) {
+                for (Block s : b.succs()) {
+                    s.preds().remove(b);
+                }
+                b.succs().clear();
+            }
+        }
+    }
+
+    // find the immediate dominator of each reachable block (iterating in
+    // reverse postorder until nothing changes), then number the dominator
+    // tree in preorder and postorder (for dominates)
+    private void findDominators() {
+        entry.setIdom(entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block b : order) {
+                if (b == entry) {
+                    continue;
+                }
+                Block idom = null;
+                for (Block p : b.preds()) {
+                    if (p.idom() != null) {
+                        idom = (idom == null ? p : intersect(p, idom));
+                    }
+                }
+                if (idom != b.idom()) {
+                    b.setIdom(idom);
+                    changed = true;
+                }
+            }
+        }
+        entry.setIdom(null);
+
+        for (Block b : order) {
+            if (b != entry) {
+                b.idom().children().add(b);
+            }
+        }
+
+        int num = 0;
+        ArrayDeque<Block> stack = new ArrayDeque<Block>();
+        stack.push(entry);
+        while (!stack.isEmpty()) {
+            Block b = stack.pop();
+            if (b.pre() < 0) {
+                b.setPre(num++);
+                stack.push(b);   // again, to number it in postorder
+                for (int k = b.children().size() - 1; k >= 0; k--) {
+                    stack.push(b.children().get(k));
+                }
+            } else {
+                b.setPost(num++);
+            }
+        }
+    }
+
+    // the nearest common dominator of a and b (given the dominators found
+    // so far)
+    private static Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (a.order() > b.order()) {
+                a = a.idom();
+            }
+            while (b.order() > a.order()) {
+                b = b.idom();
+            }
+        }
+        return a;
+    }
+
+    // the dominance frontier of block x is the set of blocks y such that
+    // x dominates a predecessor of y but does not strictly dominate y;
+    // so for each join y, walk up the dominator tree from each of its
+    // predecessors to the immediate dominator of y
+    private void findFrontiers() {
+        for (Block b : order) {
+            if (b.preds().size() < 2) {
+                continue;
+            }
+            for (Block p : b.preds()) {
+                Block runner = p;
+                while (runner != b.idom()) {
+                    List<Block> frontier = runner.frontier();
+                    if (frontier.isEmpty() ||
+                        frontier.get(frontier.size() - 1) != b) {
+                        frontier.add(b);
+                    }
+                    runner = runner.idom();
+                }
+            }
+        }
+    }
+}
+
+// **********************************************************************
+// A Block is a basic block of a control-flow graph (see Cfg): a list of
+// simple statements, possibly followed by the condition of an if,
+// if-else or while statement (the block's branch).
+// **********************************************************************
+class Block {
+    private int myId;
+    private String myKind;          // where the block starts, e.g. "then"
+    private List<StmtNode> myStmts;
+    private StmtNode myBranch;      // null if the block has no condition
+    private List<Block> mySuccs;
+    private List<Block> myPreds;
+    private int myOrder;            // in reverse postorder, -1 if unreachable
+    private Block myIdom;
+    private List<Block> myChildren; // in the dominator tree
+    private int myPre;              // number in the dominator tree, in
+    private int myPost;             // preorder and postorder
+    private List<Block> myFrontier;
+    private List<SsaValue> myPhis;  // see Ssa
+
+    public Block(String kind) {
+        myKind = kind;
+        myStmts = new ArrayList<StmtNode>();
+        mySuccs = new ArrayList<Block>(2);
+        myPreds = new ArrayList<Block>(2);
+        myOrder = -1;
+        myChildren = new ArrayList<Block>(2);
+        myPre = -1;
+        myPost = -1;
+        myFrontier = new ArrayList<Block>(2);
+        myPhis = new ArrayList<SsaValue>();
+    }
+
+    public int id() {
+        return myId;
+    }
+
+    public void setId(int id) {
+        myId = id;
+    }
+
+    public String kind() {
+        return myKind;
+    }
+
+    /***
+     * Return the simple statements of the block (not including the if,
+     * if-else or while statement whose condition ends it).
+     ***/
+    public List<StmtNode> stmts() {
+        return myStmts;
+    }
+
+    /***
+     * Return the if, if-else or while statement whose condition ends the
+     * block, or null if there is none.
+     ***/
+    public StmtNode branch() {
+        return myBranch;
+    }
+
+    public void setBranch(StmtNode stmt) {
+        myBranch = stmt;
+    }
+
+    /***
+     * Return the condition that ends the block, or null if there is none.
+     ***/
+    public ExpNode cond() {
+        if (myBranch instanceof IfStmtNode) {
+            return ((IfStmtNode)myBranch).exp();
+        }
+        if (myBranch instanceof IfElseStmtNode) {
+            return ((IfElseStmtNode)myBranch).exp();
+        }
+        if (myBranch instanceof WhileStmtNode) {
+            return ((WhileStmtNode)myBranch).exp();
+        }
+        return null;
+    }
+
+    public List<Block> succs() {
+        return mySuccs;
+    }
+
+    public List<Block> preds() {
+        return myPreds;
+    }
+
+    public void addSucc(Block b) {
+        mySuccs.add(b);
+        b.myPreds.add(this);
+    }
+
+    public boolean isReachable() {
+        return myOrder >= 0;
+    }
+
+    public int order() {
+        return myOrder;
+    }
+
+    public void setOrder(int order) {
+        myOrder = order;
+    }
+
+    /***
+     * Return the immediate dominator of the block (null for the entry
+     * block and unreachable blocks).
+     ***/
+    public Block idom() {
+        return myIdom;
+    }
+
+    public void setIdom(Block idom) {
+        myIdom = idom;
+    }
+
+    public List<Block> children() {
+        return myChildren;
+    }
+
+    public int pre() {
+        return myPre;
+    }
+
+    public void setPre(int pre) {
+        myPre = pre;
+    }
+
+    public int post() {
+        return myPost;
+    }
+
+    public void setPost(int post) {
+        myPost = post;
+    }
+
+    public List<Block> frontier() {
+        return myFrontier;
+    }
+
+    /***
+     * Return the phis at the start of the block (empty unless the
+     * function is in SSA form).
+     ***/
+    public List<SsaValue> phis() {
+        return myPhis;
+    }
+
+    public String toString() {
+        return "B" + myId;
+    }
+}
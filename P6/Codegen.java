@@ -1,15 +1,17 @@
 import java.io.*;
+import java.util.*;
 
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, RA, V0, V1, A0, T0, T1 (and temp(k) for the
+//                temporaries $t0 - $t9)
 //     Values: TRUE, FALSE
 //
-// The operations are include various "generate" methods to print nicely
-// formatted assembly code:
+// The operations are include various "generate" methods to add
+// instructions (see Instr) to the code:
 //     generateWithComment
 //     generate
 //     generateIndexed
@@ -17,8 +19,21 @@ import java.io.*;
 //     genPush
 //     genPop
 //     genLabel
+//     genText
+// (and beginBody to mark the end of the entry code of a function)
 // and a method nextLabel to create and return a new label.
 //
+// Functions are generated one at a time (possibly several at once, by
+// different threads): beginFunction makes the "generate" methods of the
+// calling thread add to a list of instrs for the function, and
+// endFunction returns the list (see FuncCode), to be printed by the
+// Emitter.  Each function has its own label namespace, so the code for a
+// function does not depend on what has been generated before it.
+// Anything generated outside of a function is printed right away.
+//
+// String literals are kept in a pool (addString/stringLabel) that is
+// filled before any function is generated and written out by genStrings.
+//
 // **********************************************************************
 
 public class Codegen {
@@ -39,14 +54,95 @@ public class Codegen {
     public static final String T0 = "$t0";
     public static final String T1 = "$t1";
 
+    // the temporaries used to evaluate expressions (see temp)
+    public static final int NUM_TEMPS = 10;
+    private static final String[] TEMPS = {
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7", "$t8", "$t9"
+    };
 
-    // for pretty printing generated code
-    private static final int MAXLEN = 4;
+    // ways to evaluate the operands of a binary operator (see operandOrder)
+    public static final int LEFT_FIRST = 0;
+    public static final int RIGHT_FIRST = 1;
+    public static final int SPILL = 2;
 
 
     // for generating labels
     private static int currLabel = 0;
 
+    // whether while loops are generated with the test at the bottom (see
+    // enableLoopRotation)
+    private static boolean rotateLoops = false;
+
+    // whether multiplies and divides by literals are done without mul and
+    // div (see enableStrengthReduction)
+    private static boolean reduceStrength = false;
+
+    // whether conditions are generated as jumps (see enableJumpingCode)
+    private static boolean jumpingCode = false;
+
+    // whether calls in returns reuse the frame (see enableTailCalls)
+    private static boolean tailCalls = false;
+
+    // the function being generated by each thread
+    private static ThreadLocal<FuncCode> currFunc = new ThreadLocal<FuncCode>();
+
+    // string literal pool: label for each string value, in the order the
+    // values were added
+    private static Map<String, String> strings =
+        Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+
+    /***
+     * Generate each while loop with the test at the bottom: the condition
+     * is tested once before the loop, and then after the body, branching
+     * back to the body while it is true (one branch per iteration instead
+     * of two).
+     ***/
+    public static void enableLoopRotation() {
+        rotateLoops = true;
+    }
+
+    public static boolean rotateLoops() {
+        return rotateLoops;
+    }
+
+    /***
+     * Generate multiplies and divides by integer literals with shifts,
+     * adds and subtracts, or a multiply keeping the high word, instead of
+     * mul and div (see genMultiply and genDivide).
+     ***/
+    public static void enableStrengthReduction() {
+        reduceStrength = true;
+    }
+
+    public static boolean reduceStrength() {
+        return reduceStrength;
+    }
+
+    /***
+     * Generate the conditions of ifs and whiles as jumps: comparisons
+     * branch on their operands (e.g., blt) instead of computing 0 or 1,
+     * and &, | and ^ just jump (see ExpNode.genJump).
+     ***/
+    public static void enableJumpingCode() {
+        jumpingCode = true;
+    }
+
+    public static boolean jumpingCode() {
+        return jumpingCode;
+    }
+
+    /***
+     * Generate a return of the value of a call (return f(...)) as a jump
+     * that reuses the frame of the function returning (see genTailCall).
+     ***/
+    public static void enableTailCalls() {
+        tailCalls = true;
+    }
+
+    public static boolean tailCalls() {
+        return tailCalls;
+    }
 
     // **********************************************************************
     // **********************************************************************
@@ -57,26 +153,11 @@ public class Codegen {
     // **********************************************************************
     // generateWithComment
     //    given:  op code, comment, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction to the code
     // **********************************************************************
     public static void generateWithComment(String opcode, String comment,
                                         String arg1, String arg2, String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") 
-                    p.print(", " + arg3);
-            }
-        }
-        if (comment != "") 
-            p.print("\t\t# " + comment);
-        p.println();
+        add(Instr.op(opcode, comment, arg1, arg2, arg3));
     }
 
     public static void generateWithComment(String opcode, String comment,
@@ -96,24 +177,11 @@ public class Codegen {
     // **********************************************************************
     // generate
     //    given:  op code, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction to the code
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") 
-                    p.print(", " + arg3);
-            }
-        }
-        p.println();
+        add(Instr.op(opcode, "", arg1, arg2, arg3));
     }
 
     public static void generate(String opcode, String arg1, String arg2) {
@@ -131,50 +199,32 @@ public class Codegen {
     // **********************************************************************
     // generate (two string args, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction to the code
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 int arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+        generate(opcode, arg1, arg2, "" + arg3);
     }
     
     // **********************************************************************
     // generate (one string arg, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the instruction to the code
     // **********************************************************************
     public static void generate(String opcode, String arg1, int arg2) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+        generate(opcode, arg1, "" + arg2, "");
     }
     
     // **********************************************************************
     // generateIndexed
     //    given:  op code, target register T1 (as string), indexed register T2
     //            (as string), - offset xx (int), and optional comment
-    //    do:     write nicely formatted code (ending with new line):
+    //    do:     add the instruction to the code:
     //                 op T1, xx(T2) # comment
     // **********************************************************************
     public static void generateIndexed(String opcode, String arg1, String arg2,
                                        int arg3, String comment) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
-        if (comment != "") 
-            p.print("\t# " + comment);
-        p.println();
+        add(Instr.mem(opcode, arg1, arg2, arg3, comment));
     }
     
     public static void generateIndexed(String opcode, String arg1, String arg2,
@@ -185,22 +235,12 @@ public class Codegen {
     // **********************************************************************
     // generateLabeled (string args -- perhaps empty)
     //    given:  label, op code, comment, and arg
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     add the label and the instruction to the code
     // **********************************************************************
     public static void generateLabeled(String label, String opcode,
                                        String comment, String arg1) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print(label + ":");
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-        }
-        if (comment != "") 
-            p.print("\t# " + comment);
-        p.println();
+        genLabel(label);
+        generateWithComment(opcode, comment, arg1);
     }
 
     public static void generateLabeled(String label, String opcode,
@@ -208,6 +248,221 @@ public class Codegen {
         generateLabeled(label, opcode, comment, "");
     }
 
+    // **********************************************************************
+    // temp
+    //    return the name of temporary k (0 <= k < NUM_TEMPS)
+    // **********************************************************************
+    public static String temp(int k) {
+        return TEMPS[k];
+    }
+
+    // **********************************************************************
+    // operandOrder
+    //    given:  the first free temporary k, the number of temporaries
+    //            needed by each operand of a binary operator (see
+    //            ExpNode.regs), and whether the right operand may be
+    //            evaluated before the left one
+    //    return: LEFT_FIRST   left into temp k, then right into temp k+1
+    //            RIGHT_FIRST  right into temp k, then left into temp k+1
+    //            SPILL        left into temp k, pushed while the right is
+    //                         evaluated into temp k, then popped into V1
+    //    (Sethi-Ullman: the operand needing more temporaries goes first,
+    //    so that the other one can be evaluated with one temporary less)
+    // **********************************************************************
+    public static int operandOrder(int k, int regs1, int regs2,
+                                   boolean canSwap) {
+        int free = NUM_TEMPS - k;
+        if (regs2 > regs1 && regs1 < free && canSwap) {
+            return RIGHT_FIRST;
+        }
+        if (regs2 < free) {
+            return LEFT_FIRST;
+        }
+        return SPILL;
+    }
+
+    // **********************************************************************
+    // genBranch
+    //    given:  a conditional branch opcode (beq, bne, blt, ble, bgt or
+    //            bge), its two operands, and a true and a false label (one
+    //            of them may be null, to fall through)
+    //    do:     generate code to jump to trueLabel if the test holds and
+    //            to falseLabel if it does not
+    // **********************************************************************
+    public static void genBranch(String op, String src1, String src2,
+                                 String trueLabel, String falseLabel) {
+        if (trueLabel == null) {
+            generate(oppositeBranch(op), src1, src2, falseLabel);
+            return;
+        }
+        generate(op, src1, src2, trueLabel);
+        if (falseLabel != null) {
+            generate("b", falseLabel);
+        }
+    }
+
+    // **********************************************************************
+    // oppositeBranch
+    //    given:  a conditional branch opcode
+    //    return: the one that jumps when it does not (null if op is not a
+    //            conditional branch)
+    // **********************************************************************
+    public static String oppositeBranch(String op) {
+        switch (op) {
+            case "beq":  return "bne";
+            case "bne":  return "beq";
+            case "blt":  return "bge";
+            case "bge":  return "blt";
+            case "bgt":  return "ble";
+            case "ble":  return "bgt";
+            case "beqz": return "bnez";
+            case "bnez": return "beqz";
+            case "bltz": return "bgez";
+            case "bgez": return "bltz";
+            case "bgtz": return "blez";
+            case "blez": return "bgtz";
+            default:     return null;
+        }
+    }
+
+    // **********************************************************************
+    // genMultiply
+    //    given:  a register holding x, and an integer c
+    //    do:     if c is 0, +-2^a, or +-(2^a + 2^b) or +-(2^a - 2^b),
+    //            generate code to put x * c in the register with shifts
+    //            and adds or subtracts (using V1), and return true;
+    //            otherwise generate nothing and return false
+    //    (the shifts and the unsigned adds and subtracts wrap around like
+    //    mul does)
+    // **********************************************************************
+    public static boolean genMultiply(String reg, int c) {
+        long m = Math.abs((long)c);
+        if (m == 0) {
+            generate("li", reg, 0);
+            return true;
+        }
+        int low = Long.numberOfTrailingZeros(m);
+        if (m == 1L << low) {
+            if (low > 0) {
+                generate("sll", reg, reg, low);
+            }
+        }
+        else if (Long.bitCount(m) == 2) {
+            // 2^a + 2^low
+            generate("sll", V1, reg, 63 - Long.numberOfLeadingZeros(m));
+            if (low > 0) {
+                generate("sll", reg, reg, low);
+            }
+            generate("addu", reg, reg, V1);
+        }
+        else if (Long.bitCount(m + (1L << low)) == 1) {
+            // 2^a - 2^low
+            generate("sll", V1, reg, Long.numberOfTrailingZeros(m + (1L << low)));
+            if (low > 0) {
+                generate("sll", reg, reg, low);
+            }
+            generate("subu", reg, V1, reg);
+        }
+        else {
+            return false;
+        }
+        if (c < 0) {
+            generate("subu", reg, "$zero", reg);
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // genDivide
+    //    given:  a register holding x, and an integer d
+    //    do:     unless d is 0 or MIN_VALUE, generate code to put x / d
+    //            (rounded towards 0, like div) in the register without a
+    //            div (using V1), and return true; otherwise generate
+    //            nothing and return false
+    //    A power of two 2^k is done with shifts, adding 2^k - 1 to x first
+    //    if it is negative; any other d with a multiply by a "magic"
+    //    number M, keeping the high word, and a shift (see magic), adding
+    //    1 to the result if it is negative (Hacker's Delight, 10-1).
+    // **********************************************************************
+    public static boolean genDivide(String reg, int d) {
+        if (d == 0 || d == Integer.MIN_VALUE) {
+            return false;
+        }
+        int ad = Math.abs(d);
+        if (ad == 1) {
+            // nothing to do (or just negate)
+        }
+        else if ((ad & (ad - 1)) == 0) {
+            int k = Integer.numberOfTrailingZeros(ad);
+            if (k == 1) {
+                generate("srl", V1, reg, 31);
+            }
+            else {
+                generate("sra", V1, reg, 31);
+                generate("srl", V1, V1, 32 - k);
+            }
+            generate("addu", V1, reg, V1);
+            generate("sra", reg, V1, k);
+        }
+        else {
+            int[] magic = magic(d);
+            generate("li", V1, magic[0]);
+            generate("mult", reg, V1);
+            generate("mfhi", V1);
+            if (d > 0 && magic[0] < 0) {
+                generate("addu", V1, V1, reg);
+            }
+            else if (d < 0 && magic[0] > 0) {
+                generate("subu", V1, V1, reg);
+            }
+            if (magic[1] > 0) {
+                generate("sra", V1, V1, magic[1]);
+            }
+            generate("srl", reg, V1, 31);
+            generate("addu", reg, V1, reg);
+            return true;
+        }
+        if (d < 0) {
+            generate("subu", reg, "$zero", reg);
+        }
+        return true;
+    }
+
+    // return the magic number and shift for signed division by d
+    // (2 <= |d| < 2^31, not a power of two); the arithmetic is unsigned
+    // 32-bit, done in longs
+    private static int[] magic(int d) {
+        final long two31 = 0x80000000L;
+        final long mask = 0xffffffffL;
+        long ad = Math.abs((long)d);
+        long t = two31 + (d < 0 ? 1 : 0);
+        long anc = t - 1 - t % ad;        // |nc|
+        int p = 31;
+        long q1 = two31 / anc;            // 2^p / |nc|
+        long r1 = two31 - q1 * anc;       // rem(2^p, |nc|)
+        long q2 = two31 / ad;             // 2^p / |d|
+        long r2 = two31 - q2 * ad;        // rem(2^p, |d|)
+        long delta;
+        do {
+            p++;
+            q1 = (2 * q1) & mask;
+            r1 = (2 * r1) & mask;
+            if (r1 >= anc) {
+                q1 = (q1 + 1) & mask;
+                r1 = (r1 - anc) & mask;
+            }
+            q2 = (2 * q2) & mask;
+            r2 = (2 * r2) & mask;
+            if (r2 >= ad) {
+                q2 = (q2 + 1) & mask;
+                r2 = (r2 - ad) & mask;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+        int m = (int)(q2 + 1);
+        return new int[] { d < 0 ? -m : m, p - 32 };
+    }
+
     // **********************************************************************
     // genPush
     //    generate code to push the given value onto the stack
@@ -232,23 +487,189 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
-        if (comment != "") 
-            p.print("\t\t" + "# " + comment);
-        p.println();
+        add(Instr.label(label, comment));
     }
     
     public static void genLabel(String label) {
         genLabel(label, "");
     }
+
+    // **********************************************************************
+    // genText
+    //   given:    a line of text (directive or comment)
+    //   generate: the line, as is
+    // **********************************************************************
+    public static void genText(String text) {
+        add(Instr.text(text));
+    }
+
+    // **********************************************************************
+    // add
+    //    add an instr to the code of the function this thread is
+    //    generating; outside of a function, print it to p right away
+    // **********************************************************************
+    private static void add(Instr instr) {
+        FuncCode func = currFunc.get();
+        if (func == null) {
+            Emitter.emit(instr, p);
+        } else {
+            func.code().add(instr);
+        }
+    }
     
     // **********************************************************************
     // Return a different label each time:
     //        L0 L1 L2, etc.
+    // or, inside a function f:
+    //        Lf_0 Lf_1 Lf_2, etc.
     // **********************************************************************
     public static String nextLabel() {
+        FuncCode func = currFunc.get();
+        if (func != null) {
+            return ".L" + func.name() + "_" + func.nextLabelNum();
+        }
         Integer k = Integer.valueOf(currLabel++);
         String tmp = ".L" + k;
         return(tmp);
     }
+
+    // **********************************************************************
+    // **********************************************************************
+    // FUNCTIONS AND STRINGS
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // beginFunction
+    //    given:  label and name of a function (its labels are based on
+    //            the name, its exit label on the label)
+    //    do:     start adding this thread's code to a new list
+    // **********************************************************************
+    public static void beginFunction(String label, String name) {
+        currFunc.set(new FuncCode(label, name));
+    }
+
+    // **********************************************************************
+    // beginBody
+    //    given:  the sizes of the locals and params of the current function
+    //    do:     mark the end of its entry code (see FuncCode.setBodyStart)
+    // **********************************************************************
+    public static void beginBody(int localsSize, int paramsSize) {
+        currFunc.get().setBodyStart(localsSize, paramsSize);
+    }
+
+    // **********************************************************************
+    // canTailCall
+    //    given:  the label of a function and the number of args of a call
+    //            of it that is returned by the current function
+    //    return: true if tail calls are enabled and the call can reuse
+    //            the frame: the current function is not main and has at
+    //            least as many params (the args fit in their place, and
+    //            its caller removes them), and the args fit in the temps
+    // **********************************************************************
+    public static boolean canTailCall(String label, int numArgs) {
+        FuncCode func = currFunc.get();
+        return tailCalls && !func.label().equals("main") &&
+               4 * numArgs <= func.paramsSize() && numArgs <= NUM_TEMPS;
+    }
+
+    // **********************************************************************
+    // genTailCall
+    //    given:  the label of a function and the number of args of a call
+    //            of it that canTailCall allows, with the args pushed (as
+    //            for a call, the first one on top)
+    //    do:     for a call of the current function, store the args in its
+    //            params and jump back to the start of its body; otherwise
+    //            remove the frame (as the exit code does, leaving $sp where
+    //            it was at the entry), store the args where the params of
+    //            the current function were, and jump to the function,
+    //            which then returns to the caller of the current one
+    // **********************************************************************
+    public static void genTailCall(String label, int numArgs) {
+        FuncCode func = currFunc.get();
+        for (int k = 0; k < numArgs; k++) {
+            genPop(temp(k));
+        }
+        if (label.equals(func.label())) {
+            for (int k = 0; k < numArgs; k++) {
+                generateIndexed("sw", temp(k), FP, 4 + 4 * k);
+            }
+            generateWithComment("b", "TAIL CALL", func.bodyLabel());
+        } else {
+            generateIndexed("lw", RA, FP, 0);
+            generate("move", SP, FP);
+            generateIndexed("lw", FP, SP, -4);
+            for (int k = 0; k < numArgs; k++) {
+                generateIndexed("sw", temp(k), SP, 4 + 4 * k);
+            }
+            generateWithComment("j", "TAIL CALL", label);
+        }
+        func.count("tail calls", 1);
+    }
+
+    // **********************************************************************
+    // endFunction
+    //    return the code generated since beginFunction (with the locals
+    //    put in registers, the branches cleaned up and improved by the
+    //    peephole optimizer if they are enabled)
+    // **********************************************************************
+    public static FuncCode endFunction() {
+        FuncCode func = currFunc.get();
+        currFunc.remove();
+        if (RegAlloc.enabled()) {
+            RegAlloc.allocate(func);
+        }
+        if (JumpThreading.enabled()) {
+            JumpThreading.optimize(func);
+        }
+        if (Peephole.enabled()) {
+            Peephole.optimize(func);
+        }
+        return func;
+    }
+
+    // **********************************************************************
+    // exitLabel
+    //    return the label of the exit code of the current function
+    // **********************************************************************
+    public static String exitLabel() {
+        return currFunc.get().label() + "_Exit";
+    }
+
+    // **********************************************************************
+    // addString
+    //    add a string literal value (including the quotes) to the pool,
+    //    if it is not already there
+    // **********************************************************************
+    public static void addString(String value) {
+        synchronized (strings) {
+            if (!strings.containsKey(value)) {
+                strings.put(value, ".S" + strings.size());
+            }
+        }
+    }
+
+    // **********************************************************************
+    // stringLabel
+    //    return the label of a string literal value in the pool
+    // **********************************************************************
+    public static String stringLabel(String value) {
+        return strings.get(value);
+    }
+
+    // **********************************************************************
+    // genStrings
+    //    write out the string literal pool
+    // **********************************************************************
+    public static void genStrings() {
+        if (strings.isEmpty()) {
+            return;
+        }
+        genText(".data");
+        synchronized (strings) {
+            for (Map.Entry<String, String> entry : strings.entrySet()) {
+                genText(entry.getValue() + ":" + "\t.asciiz " + entry.getKey());
+            }
+        }
+    }
 }
@@ -0,0 +1,611 @@
+import java.util.*;
+
+// **********************************************************************
+// The Cse class eliminates common subexpressions in a function in SSA
+// form (see Ssa), by value numbering: either within each basic block
+// (local value numbering), or over the dominator tree of the function
+// (global value numbering), so that a value computed in a block is also
+// reused in the blocks it dominates.
+//
+// The expressions of each block (its statements, then its condition) are
+// numbered in the order they are evaluated: two expressions get the same
+// value number if they apply the same operator to operands with the same
+// value numbers (in either order for +, *, == and !=).  A use of a local
+// or param in SSA form is numbered by its SSA value, so assignments to it
+// need no special care; any other variable (a global, or a local that is
+// not in SSA form) gets a new value number when it is assigned or read,
+// and a global also after each call (which may change it).  Calls,
+// assignments, strings and colon-accesses are never the same as
+// anything else.
+//
+// An operator (other than & and |) whose value number is available (it
+// was computed earlier in the block, or in a block that dominates it) is
+// then replaced by a temp (see FuncDeclNode.newTemp), and the earlier
+// occurrence, x op y, becomes (t = x op y).  An expression in the right
+// operand of & or | (which may not be evaluated) can use a temp, but
+// cannot be the one that computes it.  A single ID is not worth a temp:
+// loading it costs the same as loading the temp.
+//
+// In global value numbering, the blocks are numbered in a preorder walk
+// of the dominator tree, and what is available in a block is undone when
+// the walk leaves it.  At a join, paths from the immediate dominator may
+// have assigned any variable that is not in SSA form, or made calls, so
+// these get new value numbers there.  But a value that depends only on
+// literals and SSA values, and is available at the end of each of the
+// predecessors of the join (e.g., it is computed in both arms of an
+// if-else), is also available at the join: all the occurrences that
+// compute it assign the same temp.
+//
+// A temp is used from the block that computes it (or the immediate
+// dominator of the join) through the blocks it dominates; temps whose
+// uses cannot overlap are shared.  The function is put back in SSA form
+// if it changed.  The number of expressions replaced is counted as "cse
+// hits" or "gvn hits" (see Stats).
+// **********************************************************************
+public class Cse {
+    /***
+     * Eliminate the common subexpressions within the basic blocks of the
+     * given function (in SSA form).
+     ***/
+    public static void run(FuncDeclNode func) {
+        run(func, false);
+    }
+
+    /***
+     * Eliminate the common subexpressions of the given function (in SSA
+     * form) over its dominator tree.
+     ***/
+    public static void runGlobal(FuncDeclNode func) {
+        run(func, true);
+    }
+
+    private static void run(FuncDeclNode func, boolean global) {
+        Cse cse = new Cse(func, global);
+        cse.number();
+        cse.replace();
+        if (cse.hits > 0) {
+            func.setCfg(Cfg.build(func));
+            func.setSsa(Ssa.build(func.cfg()));
+        }
+        func.count(global ? "gvn hits" : "cse hits", cse.hits);
+    }
+
+    // a value computed by some occurrences (see firsts) in the blocks
+    // dominated by owner, and the temp they assign if it is used; the
+    // groups of a value that is available at the end of each predecessor
+    // of a join have the same parent, owned by the join's immediate
+    // dominator
+    private static class Group {
+        Type type;
+        Block owner;
+        Group parent;
+        boolean used;   // replaces some occurrence
+        IdNode temp;
+    }
+
+    private FuncDeclNode func;
+    private Ssa ssa;
+    private boolean global;
+    private List<Block> blocks;                 // the reachable blocks
+    private HashMap<String, Integer> numbers;   // key -> value number
+    private BitSet pure;                        // of literals and SSA values
+    private HashMap<Integer, Group> avail;      // value number -> its group
+    private HashMap<Sym, Integer> versions;     // see varKey
+    private HashMap<Sym, Integer> symNums;
+    private List<Object[]> undo;                // {map, key, old value}
+    private int mem;        // the version of the globals (see varKey)
+    private int epoch;      // the version of other variables since a join
+    private int nextVersion;
+    private int nextNum;
+    private IdentityHashMap<ExpNode, Group> repeats;   // exp -> its value
+    private IdentityHashMap<ExpNode, Group> firsts;    // exp -> its group
+    private List<Group> groups;
+    private List<Map<Integer, Group>> atEnd;    // of a pred of a join
+    private int[] endMarks;                     // size of undo after a block
+    private int hits;
+
+    private Cse(FuncDeclNode func, boolean global) {
+        this.func = func;
+        this.global = global;
+        ssa = func.ssa();
+        blocks = func.cfg().order();
+        numbers = new HashMap<String, Integer>();
+        pure = new BitSet();
+        avail = new HashMap<Integer, Group>();
+        versions = new HashMap<Sym, Integer>();
+        symNums = new HashMap<Sym, Integer>();
+        undo = new ArrayList<Object[]>();
+        repeats = new IdentityHashMap<ExpNode, Group>();
+        firsts = new IdentityHashMap<ExpNode, Group>();
+        groups = new ArrayList<Group>();
+        int size = func.cfg().blocks().size();
+        atEnd = new ArrayList<Map<Integer, Group>>(
+                    Collections.<Map<Integer, Group>>nCopies(size, null));
+        endMarks = new int[size];
+    }
+
+    // **********************************************************************
+    // walking the blocks
+    // **********************************************************************
+
+    // what to do on entering and leaving a block in a preorder walk of
+    // the dominator tree
+    private interface Walker {
+        void enter(Block b);
+        void leave(Block b);
+    }
+
+    // walk the dominator tree (for global value numbering), or each block
+    // on its own (for local value numbering)
+    private void walk(Walker w) {
+        if (!global) {
+            for (Block b : blocks) {
+                w.enter(b);
+                w.leave(b);
+            }
+            return;
+        }
+        int[] next = new int[endMarks.length];   // next child to visit
+        ArrayDeque<Block> stack = new ArrayDeque<Block>();
+        stack.push(func.cfg().entry());
+        w.enter(func.cfg().entry());
+        while (!stack.isEmpty()) {
+            Block b = stack.peek();
+            if (next[b.id()] < b.children().size()) {
+                Block c = b.children().get(next[b.id()]++);
+                stack.push(c);
+                w.enter(c);
+            } else {
+                stack.pop();
+                w.leave(b);
+            }
+        }
+    }
+
+    // **********************************************************************
+    // numbering
+    // **********************************************************************
+
+    private void number() {
+        final int[] marks = new int[endMarks.length];
+        final int[] mems = new int[endMarks.length];
+        final int[] epochs = new int[endMarks.length];
+        walk(new Walker() {
+            public void enter(Block b) {
+                marks[b.id()] = undo.size();
+                mems[b.id()] = mem;
+                epochs[b.id()] = epoch;
+                if (b.preds().size() > 1) {
+                    mem = nextVersion++;
+                    epoch = nextVersion++;
+                    join(b);
+                }
+                number(b);
+                endMarks[b.id()] = undo.size();
+                if (global) {
+                    saveAtEnd(b);
+                }
+            }
+
+            public void leave(Block b) {
+                while (undo.size() > marks[b.id()]) {
+                    Object[] entry = undo.remove(undo.size() - 1);
+                    restore(entry);
+                }
+                mem = mems[b.id()];
+                epoch = epochs[b.id()];
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void restore(Object[] entry) {
+        Map<Object, Object> map = (Map<Object, Object>)entry[0];
+        if (entry[2] == null) {
+            map.remove(entry[1]);
+        } else {
+            map.put(entry[1], entry[2]);
+        }
+    }
+
+    // put (key, value) in the given map, so that leaving the block undoes it
+    private <K, V> void put(Map<K, V> map, K key, V value) {
+        undo.add(new Object[] { map, key, map.put(key, value) });
+    }
+
+    // if b is the predecessor of a join whose predecessors all come
+    // before it (i.e., not a loop), save the pure values that are available
+    // at the end of b but not at the end of the join's immediate dominator
+    // (the exit block, where the returns join, has no uses)
+    private void saveAtEnd(Block b) {
+        for (Block s : b.succs()) {
+            if (!isForwardJoin(s) || s == func.cfg().exit()) {
+                continue;
+            }
+            Map<Integer, Group> values = new HashMap<Integer, Group>();
+            for (int k = endMarks[s.idom().id()]; k < undo.size(); k++) {
+                Object[] entry = undo.get(k);
+                if (entry[0] == avail && pure.get((Integer)entry[1])) {
+                    values.put((Integer)entry[1], avail.get(entry[1]));
+                }
+            }
+            atEnd.set(b.id(), values);
+        }
+    }
+
+    private boolean isForwardJoin(Block b) {
+        if (b.preds().size() < 2) {
+            return false;
+        }
+        for (Block p : b.preds()) {
+            if (p.order() >= b.order()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // make the values available at the end of each predecessor of join b
+    // available in b
+    private void join(Block b) {
+        if (!global || !isForwardJoin(b) || b == func.cfg().exit()) {
+            return;
+        }
+        Map<Integer, Group> first = atEnd.get(b.preds().get(0).id());
+        for (Map.Entry<Integer, Group> entry : first.entrySet()) {
+            Integer n = entry.getKey();
+            if (avail.containsKey(n)) {
+                continue;
+            }
+            List<Group> parts = new ArrayList<Group>();
+            for (Block p : b.preds()) {
+                Group g = atEnd.get(p.id()).get(n);
+                if (g == null || g.parent != null) {
+                    break;
+                }
+                parts.add(g);
+            }
+            if (parts.size() == b.preds().size()) {
+                Group merged = new Group();
+                merged.type = parts.get(0).type;
+                merged.owner = b.idom();
+                for (Group g : parts) {
+                    g.parent = merged;
+                }
+                groups.add(merged);
+                put(avail, n, merged);
+            }
+        }
+    }
+
+    // number the expressions of block b (its statements, then its
+    // condition)
+    private void number(Block b) {
+        for (StmtNode stmt : b.stmts()) {
+            number(stmt, b);
+        }
+        if (b.cond() != null) {
+            number(b.cond(), false, b);
+        }
+    }
+
+    private void number(StmtNode stmt, Block b) {
+        if (stmt instanceof AssignStmtNode) {
+            number(((AssignStmtNode)stmt).assign(), false, b);
+        }
+        else if (stmt instanceof PostIncStmtNode) {
+            assigned(((PostIncStmtNode)stmt).exp());
+        }
+        else if (stmt instanceof PostDecStmtNode) {
+            assigned(((PostDecStmtNode)stmt).exp());
+        }
+        else if (stmt instanceof ReadStmtNode) {
+            assigned(((ReadStmtNode)stmt).exp());
+        }
+        else if (stmt instanceof WriteStmtNode) {
+            number(((WriteStmtNode)stmt).exp(), false, b);
+        }
+        else if (stmt instanceof CallStmtNode) {
+            number(((CallStmtNode)stmt).call(), false, b);
+        }
+        else if (stmt instanceof ReturnStmtNode) {
+            ExpNode exp = ((ReturnStmtNode)stmt).exp();
+            if (exp != null) {
+                number(exp, false, b);
+            }
+        }
+    }
+
+    // return the value number of exp (in block b), numbering its
+    // subexpressions in the order they are evaluated (cond is true if exp
+    // may not be evaluated)
+    private int number(ExpNode exp, boolean cond, Block b) {
+        Integer lit = exp.litValue();
+        if (lit != null) {
+            return pureNumber("lit " + lit);
+        }
+        if (exp instanceof IdNode) {
+            IdNode id = (IdNode)exp;
+            SsaValue value = ssa.value(id);
+            if (value != null) {
+                return pureNumber("ssa " + value.num());
+            }
+            if (id.sym().getType().isIntegerType() ||
+                id.sym().getType().isBooleanType()) {
+                return numberOf(varKey(id.sym()));
+            }
+            return nextNum++;
+        }
+        if (exp instanceof AssignExpNode) {
+            AssignExpNode assign = (AssignExpNode)exp;
+            number(assign.exp(), cond, b);
+            assigned(assign.lhs());
+            return nextNum++;
+        }
+        if (exp instanceof CallExpNode) {
+            ExpListNode args = ((CallExpNode)exp).expList();
+            if (args != null) {
+                List<ExpNode> exps = args.exps();
+                for (int k = exps.size() - 1; k >= 0; k--) {
+                    number(exps.get(k), cond, b);
+                }
+            }
+            mem = nextVersion++;
+            return nextNum++;
+        }
+        if (exp instanceof UnaryExpNode) {
+            int n = number(((UnaryExpNode)exp).exp(), cond, b);
+            return occurrence(exp, opName(exp) + " " + n, pure.get(n), cond, b);
+        }
+        if (exp instanceof AndNode || exp instanceof OrNode) {
+            BinaryExpNode binary = (BinaryExpNode)exp;
+            number(binary.exp1(), cond, b);
+            number(binary.exp2(), true, b);
+            return nextNum++;
+        }
+        if (exp instanceof BinaryExpNode) {
+            BinaryExpNode binary = (BinaryExpNode)exp;
+            int n1 = number(binary.exp1(), cond, b);
+            int n2 = number(binary.exp2(), cond, b);
+            if (n1 > n2 && (exp instanceof PlusNode || exp instanceof TimesNode ||
+                            exp instanceof EqualsNode || exp instanceof NotEqNode)) {
+                int n = n1;
+                n1 = n2;
+                n2 = n;
+            }
+            return occurrence(exp, opName(exp) + " " + n1 + " " + n2,
+                              pure.get(n1) && pure.get(n2), cond, b);
+        }
+        return nextNum++;   // strings and colon-accesses
+    }
+
+    // return the value number for the given key (a new one if it has none)
+    private int numberOf(String key) {
+        Integer n = numbers.get(key);
+        if (n == null) {
+            n = nextNum++;
+            numbers.put(key, n);
+        }
+        return n;
+    }
+
+    private int pureNumber(String key) {
+        int n = numberOf(key);
+        pure.set(n);
+        return n;
+    }
+
+    // record an occurrence of an operator with the given key in block b;
+    // return its value number
+    private int occurrence(ExpNode exp, String key, boolean isPure,
+                           boolean cond, Block b) {
+        int n = (isPure ? pureNumber(key) : numberOf(key));
+        Group g = avail.get(n);
+        if (g != null) {
+            repeats.put(exp, g);
+        }
+        else if (!cond) {
+            g = new Group();
+            g.type = exp.type();
+            g.owner = b;
+            groups.add(g);
+            firsts.put(exp, g);
+            put(avail, n, g);
+        }
+        return n;
+    }
+
+    private static String opName(ExpNode exp) {
+        return exp.getClass().getName();
+    }
+
+    // the key of the current value of a variable not in SSA form: a global
+    // also changes with each call and join (mem), another variable at each
+    // join (epoch)
+    private String varKey(Sym sym) {
+        Integer num = symNums.get(sym);
+        if (num == null) {
+            num = symNums.size();
+            symNums.put(sym, num);
+        }
+        Integer version = versions.get(sym);
+        return "var " + num + " " + (version == null ? 0 : version) + " " +
+               (sym.isGlobal() ? mem : epoch);
+    }
+
+    // record that exp (the target of an assignment, ++, -- or read) is
+    // assigned
+    private void assigned(ExpNode exp) {
+        if (exp instanceof IdNode && ssa.value((IdNode)exp) == null) {
+            put(versions, ((IdNode)exp).sym(), ++nextVersion);
+        }
+    }
+
+    // **********************************************************************
+    // replacing
+    // **********************************************************************
+
+    private void replace() {
+        if (repeats.isEmpty()) {
+            return;
+        }
+
+        // choose the occurrences to replace (not the ones inside another
+        // one that is replaced)
+        IdentityHashMap<ExpNode, ExpNode> map = new IdentityHashMap<ExpNode, ExpNode>();
+        IdentityHashMap<ExpNode, Group> chosen = new IdentityHashMap<ExpNode, Group>();
+        for (Block b : blocks) {
+            for (StmtNode stmt : b.stmts()) {
+                choose(stmt, chosen);
+            }
+            if (b.cond() != null) {
+                choose(b.cond(), chosen);
+            }
+        }
+        if (chosen.isEmpty()) {
+            return;
+        }
+
+        // give the groups temps, then replace
+        allocateTemps();
+        for (Map.Entry<ExpNode, Group> entry : chosen.entrySet()) {
+            map.put(entry.getKey(), top(entry.getValue()).temp.copy());
+        }
+        for (Map.Entry<ExpNode, Group> entry : firsts.entrySet()) {
+            Group g = top(entry.getValue());
+            if (g != null) {
+                AssignExpNode assign = new AssignExpNode(g.temp.copy(),
+                                                         entry.getKey());
+                assign.typeCheck();
+                map.put(entry.getKey(), assign);
+            }
+        }
+        for (Block b : blocks) {
+            for (StmtNode stmt : b.stmts()) {
+                stmt.substitute(map);
+            }
+            if (b.branch() != null) {
+                b.branch().substitute(map);
+            }
+        }
+    }
+
+    private void choose(StmtNode stmt, IdentityHashMap<ExpNode, Group> chosen) {
+        if (stmt instanceof AssignStmtNode) {
+            choose(((AssignStmtNode)stmt).assign(), chosen);
+        }
+        else if (stmt instanceof WriteStmtNode) {
+            choose(((WriteStmtNode)stmt).exp(), chosen);
+        }
+        else if (stmt instanceof CallStmtNode) {
+            choose(((CallStmtNode)stmt).call(), chosen);
+        }
+        else if (stmt instanceof ReturnStmtNode &&
+                 ((ReturnStmtNode)stmt).exp() != null) {
+            choose(((ReturnStmtNode)stmt).exp(), chosen);
+        }
+    }
+
+    // if exp is a repeated value (that does not compute another one), it
+    // is replaced, otherwise look at its subexpressions
+    private void choose(ExpNode exp, IdentityHashMap<ExpNode, Group> chosen) {
+        Group g = repeats.get(exp);
+        if (g != null && !computes(exp)) {
+            g.used = true;
+            chosen.put(exp, g);
+            hits++;
+        }
+        else if (exp instanceof AssignExpNode) {
+            choose(((AssignExpNode)exp).exp(), chosen);
+        }
+        else if (exp instanceof CallExpNode) {
+            ExpListNode args = ((CallExpNode)exp).expList();
+            if (args != null) {
+                for (ExpNode arg : args.exps()) {
+                    choose(arg, chosen);
+                }
+            }
+        }
+        else if (exp instanceof UnaryExpNode) {
+            choose(((UnaryExpNode)exp).exp(), chosen);
+        }
+        else if (exp instanceof BinaryExpNode) {
+            choose(((BinaryExpNode)exp).exp1(), chosen);
+            choose(((BinaryExpNode)exp).exp2(), chosen);
+        }
+    }
+
+    // return true if a subexpression of exp computes a value (so exp
+    // cannot be replaced)
+    private boolean computes(ExpNode exp) {
+        if (exp instanceof UnaryExpNode) {
+            ExpNode e = ((UnaryExpNode)exp).exp();
+            return firsts.containsKey(e) || computes(e);
+        }
+        if (exp instanceof BinaryExpNode) {
+            ExpNode e1 = ((BinaryExpNode)exp).exp1();
+            ExpNode e2 = ((BinaryExpNode)exp).exp2();
+            return firsts.containsKey(e1) || computes(e1) ||
+                   firsts.containsKey(e2) || computes(e2);
+        }
+        return false;
+    }
+
+    // the group whose temp the occurrences of g use: the outermost one
+    // (following parents) that is used, or null if none is
+    private static Group top(Group g) {
+        Group top = null;
+        for (; g != null; g = g.parent) {
+            if (g.used) {
+                top = g;
+            }
+        }
+        return top;
+    }
+
+    // give each group that is the top of a used one a temp; a temp is in
+    // use from its group's owner through the blocks the owner dominates, so
+    // blocks that do not dominate each other can use the same temps
+    private void allocateTemps() {
+        final HashMap<Block, List<Group>> owned = new HashMap<Block, List<Group>>();
+        for (Group g : groups) {
+            if (g.used && top(g) == g) {
+                List<Group> list = owned.get(g.owner);
+                if (list == null) {
+                    list = new ArrayList<Group>();
+                    owned.put(g.owner, list);
+                }
+                list.add(g);
+            }
+        }
+        final List<IdNode> intTemps = new ArrayList<IdNode>();
+        final List<IdNode> boolTemps = new ArrayList<IdNode>();
+        final int[] ints = new int[endMarks.length];    // in use on entry
+        final int[] bools = new int[endMarks.length];
+        final int[] used = new int[2];                      // ints, bools
+        walk(new Walker() {
+            public void enter(Block b) {
+                ints[b.id()] = used[0];
+                bools[b.id()] = used[1];
+                List<Group> list = owned.get(b);
+                if (list == null) {
+                    return;
+                }
+                for (Group g : list) {
+                    boolean bool = g.type.isBooleanType();
+                    List<IdNode> temps = (bool ? boolTemps : intTemps);
+                    int k = (bool ? used[1]++ : used[0]++);
+                    if (k == temps.size()) {
+                        temps.add(func.newTemp(g.type));
+                    }
+                    g.temp = temps.get(k);
+                }
+            }
+
+            public void leave(Block b) {
+                used[0] = ints[b.id()];
+                used[1] = bools[b.id()];
+            }
+        });
+    }
+}
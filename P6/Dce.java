@@ -0,0 +1,363 @@
+import java.util.*;
+
+// **********************************************************************
+// The Dce class removes dead code from a function in SSA form (see Ssa):
+//
+//   - statements that can never be executed: those after a statement
+//     that never completes (a return, a while (TRUE), or an if-else whose
+//     arms both never complete) in the same list, the arms of if (FALSE),
+//     if (TRUE) ... else and while (FALSE), and ifs with no statements
+//     whose condition has no effects and cannot trap (see
+//     ExpNode.canTrap);
+//   - dead stores: assignments to locals and params whose values are
+//     never used (the right-hand side must have no effects and not trap,
+//     except that x = f(...) becomes the call f(...)); ++ and -- are
+//     kept, since they are done with add, which traps on overflow;
+//   - the locals that are then no longer used; the other locals are given
+//     new offsets so that the frame of the function shrinks (see
+//     FuncSym.getLocalsSize).
+//
+// The dead values are found by marking the live ones from the statements
+// that must be kept (the ones with effects, and the conditions): a value
+// used there is live, and so are the values used to compute a live value
+// (the operands of a live phi, the right-hand side of a live assignment).
+//
+// The function is put back in SSA form if it changed.  The numbers of
+// statements, stores and locals removed are counted as "dce unreachable",
+// "dce stores" and "dce locals" (see Stats).
+// **********************************************************************
+public class Dce {
+    /***
+     * Remove the dead code of the given function (in SSA form).
+     ***/
+    public static void run(FuncDeclNode func) {
+        int unreachable = removeUnreachable(func.body().stmtList());
+        if (unreachable > 0) {
+            update(func);
+        }
+        int stores = new Dce(func.ssa()).removeStores(func.body().stmtList());
+        if (stores > 0) {
+            unreachable += removeUnreachable(func.body().stmtList());
+            update(func);
+        }
+        int locals = removeLocals(func);
+        func.count("dce unreachable", unreachable);
+        func.count("dce stores", stores);
+        func.count("dce locals", locals);
+    }
+
+    // put the function back in SSA form after it changed
+    private static void update(FuncDeclNode func) {
+        func.setCfg(Cfg.build(func));
+        func.setSsa(Ssa.build(func.cfg()));
+    }
+
+    // **********************************************************************
+    // unreachable statements
+    // **********************************************************************
+
+    // remove the statements in list (and the lists nested in it) that can
+    // never be executed; return the number of statements removed
+    private static int removeUnreachable(StmtListNode list) {
+        int count = 0;
+        List<StmtNode> stmts = list.stmts();
+        List<StmtNode> kept = new ArrayList<StmtNode>(stmts.size());
+        int k = 0;
+        while (k < stmts.size()) {
+            StmtNode stmt = stmts.get(k++);
+            StmtListNode arm = null;   // to be put in place of stmt
+            if (stmt instanceof IfStmtNode) {
+                IfStmtNode ifStmt = (IfStmtNode)stmt;
+                Integer cond = ifStmt.exp().litValue();
+                if (cond != null && cond == 0) {
+                    count += 1 + size(ifStmt.stmtList());
+                    continue;
+                }
+                count += removeUnreachable(ifStmt.stmtList());
+                if (cond != null) {
+                    arm = ifStmt.stmtList();
+                }
+                else if (ifStmt.stmtList().stmts().isEmpty() &&
+                         !ifStmt.exp().hasEffects() &&
+                         !ifStmt.exp().canTrap()) {
+                    count++;
+                    continue;
+                }
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                IfElseStmtNode ifStmt = (IfElseStmtNode)stmt;
+                Integer cond = ifStmt.exp().litValue();
+                if (cond != null) {
+                    arm = (cond != 0 ? ifStmt.thenStmtList() :
+                                       ifStmt.elseStmtList());
+                    count += size(cond != 0 ? ifStmt.elseStmtList() :
+                                              ifStmt.thenStmtList());
+                    count += removeUnreachable(arm);
+                } else {
+                    count += removeUnreachable(ifStmt.thenStmtList());
+                    count += removeUnreachable(ifStmt.elseStmtList());
+                }
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                WhileStmtNode whileStmt = (WhileStmtNode)stmt;
+                Integer cond = whileStmt.exp().litValue();
+                if (cond != null && cond == 0) {
+                    count += 1 + size(whileStmt.stmtList());
+                    continue;
+                }
+                count += removeUnreachable(whileStmt.stmtList());
+            }
+
+            if (arm == null) {
+                kept.add(stmt);
+            } else {
+                count++;
+                kept.addAll(arm.stmts());
+            }
+            if (arm == null ? !completes(stmt) : !completes(arm)) {
+                break;   // the rest of the list is never executed
+            }
+        }
+        for (; k < stmts.size(); k++) {
+            count += 1 + size(stmts.get(k));
+        }
+        if (count > 0) {
+            stmts.clear();
+            stmts.addAll(kept);
+        }
+        return count;
+    }
+
+    // return false if control never goes on after stmt
+    private static boolean completes(StmtNode stmt) {
+        if (stmt instanceof ReturnStmtNode) {
+            return false;
+        }
+        if (stmt instanceof IfElseStmtNode) {
+            IfElseStmtNode ifStmt = (IfElseStmtNode)stmt;
+            return completes(ifStmt.thenStmtList()) ||
+                   completes(ifStmt.elseStmtList());
+        }
+        if (stmt instanceof WhileStmtNode) {
+            Integer cond = ((WhileStmtNode)stmt).exp().litValue();
+            return cond == null || cond == 0;
+        }
+        return true;
+    }
+
+    private static boolean completes(StmtListNode list) {
+        for (StmtNode stmt : list.stmts()) {
+            if (!completes(stmt)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // return the number of statements in list, counting nested ones
+    private static int size(StmtListNode list) {
+        int n = 0;
+        for (StmtNode stmt : list.stmts()) {
+            n += 1 + size(stmt);
+        }
+        return n;
+    }
+
+    // return the number of statements nested in stmt
+    private static int size(StmtNode stmt) {
+        if (stmt instanceof IfStmtNode) {
+            return size(((IfStmtNode)stmt).stmtList());
+        }
+        if (stmt instanceof IfElseStmtNode) {
+            return size(((IfElseStmtNode)stmt).thenStmtList()) +
+                   size(((IfElseStmtNode)stmt).elseStmtList());
+        }
+        if (stmt instanceof WhileStmtNode) {
+            return size(((WhileStmtNode)stmt).stmtList());
+        }
+        return 0;
+    }
+
+    // **********************************************************************
+    // dead stores
+    // **********************************************************************
+
+    private Ssa ssa;
+    private boolean[] live;           // value number -> live?
+    private ArrayDeque<SsaValue> work;
+    private Ssa.Visitor marker;       // marks the values used
+
+    private Dce(Ssa ssa) {
+        this.ssa = ssa;
+        live = new boolean[ssa.values().size()];
+        work = new ArrayDeque<SsaValue>();
+        marker = new Ssa.Visitor() {
+            public void use(IdNode id) {
+                SsaValue value = Dce.this.ssa.value(id);
+                if (value != null) {
+                    mark(value);
+                }
+            }
+
+            public void def(IdNode id, ASTnode node, int kind, boolean cond) {
+            }
+        };
+    }
+
+    private void mark(SsaValue value) {
+        if (!live[value.num()]) {
+            live[value.num()] = true;
+            work.add(value);
+        }
+    }
+
+    // find the live values, then remove the stores of the others in list
+    // (and the lists nested in it); return the number removed
+    private int removeStores(StmtListNode list) {
+        for (Block b : ssa.cfg().order()) {
+            for (StmtNode stmt : b.stmts()) {
+                if (isStore(stmt) == null) {
+                    Ssa.walk(stmt, marker);
+                }
+            }
+            if (b.cond() != null) {
+                Ssa.walk(b.cond(), false, marker);
+            }
+        }
+        while (!work.isEmpty()) {
+            SsaValue value = work.remove();
+            if (value.kind() == SsaValue.PHI) {
+                for (SsaValue operand : value.operands()) {
+                    mark(operand);
+                }
+            }
+            else if (value.kind() == SsaValue.ASSIGN) {
+                Ssa.walk(((AssignExpNode)value.node()).exp(), false, marker);
+            }
+            else if (value.kind() == SsaValue.INC || value.kind() == SsaValue.DEC) {
+                Ssa.walk((StmtNode)value.node(), marker);
+            }
+        }
+        return removeStores(list, 0);
+    }
+
+    private int removeStores(StmtListNode list, int count) {
+        List<StmtNode> stmts = list.stmts();
+        List<StmtNode> kept = new ArrayList<StmtNode>(stmts.size());
+        int before = count;
+        for (StmtNode stmt : stmts) {
+            SsaValue value = isStore(stmt);
+            if (value == null && stmt instanceof AssignStmtNode) {
+                // x = f(...) with x dead is the call f(...)
+                AssignExpNode assign = ((AssignStmtNode)stmt).assign();
+                value = ssa.defined(assign);
+                if (value != null && !live[value.num()] &&
+                    assign.exp() instanceof CallExpNode) {
+                    kept.add(new CallStmtNode((CallExpNode)assign.exp()));
+                    count++;
+                    continue;
+                }
+            }
+            else if (value != null && !live[value.num()]) {
+                count++;
+                continue;
+            }
+            kept.add(stmt);
+
+            if (stmt instanceof IfStmtNode) {
+                count = removeStores(((IfStmtNode)stmt).stmtList(), count);
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                count = removeStores(((IfElseStmtNode)stmt).thenStmtList(), count);
+                count = removeStores(((IfElseStmtNode)stmt).elseStmtList(), count);
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                count = removeStores(((WhileStmtNode)stmt).stmtList(), count);
+            }
+        }
+        if (kept.size() != stmts.size() || count > before) {
+            stmts.clear();
+            stmts.addAll(kept);
+        }
+        return count;
+    }
+
+    // return the value stored by stmt if it is a store that can be removed
+    // if the value is dead (an assignment to a variable in SSA form with no
+    // effects but the store, that cannot trap), otherwise null
+    private SsaValue isStore(StmtNode stmt) {
+        if (stmt instanceof AssignStmtNode) {
+            AssignExpNode assign = ((AssignStmtNode)stmt).assign();
+            if (assign.exp().hasEffects() || assign.exp().canTrap()) {
+                return null;
+            }
+            return ssa.defined(assign);
+        }
+        return null;
+    }
+
+    // **********************************************************************
+    // unused locals
+    // **********************************************************************
+
+    // remove the decls of the locals that are no longer used, and give the
+    // others new offsets (in the same order); return the number removed
+    private static int removeLocals(FuncDeclNode func) {
+        final Set<Sym> used = new HashSet<Sym>();
+        final List<DeclListNode> declLists = new ArrayList<DeclListNode>();
+        func.body().accept(new ASTVisitor() {
+            private IdNode declared;   // the ID of the decl being visited
+
+            public void pre(ASTnode node) {
+                if (node instanceof DeclListNode) {
+                    declLists.add((DeclListNode)node);
+                }
+                else if (node instanceof VarDeclNode) {
+                    declared = ((VarDeclNode)node).idNode();
+                }
+                else if (node instanceof IdNode && node != declared &&
+                         ((IdNode)node).sym() != null) {
+                    used.add(((IdNode)node).sym());
+                }
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+
+        int removed = 0;
+        for (DeclListNode declList : declLists) {
+            Iterator<DeclNode> it = declList.decls().iterator();
+            while (it.hasNext()) {
+                DeclNode decl = it.next();
+                if (decl instanceof VarDeclNode &&
+                    !used.contains(((VarDeclNode)decl).idNode().sym())) {
+                    it.remove();
+                    removed++;
+                }
+            }
+        }
+
+        // the scalar locals (params have offsets >= 4), by offset
+        List<Sym> locals = new ArrayList<Sym>();
+        for (Sym sym : used) {
+            if (!sym.isGlobal() && sym.getOffset() <= -8 &&
+                !sym.getType().isStructType()) {
+                locals.add(sym);
+            }
+        }
+        FuncSym funcSym = (FuncSym)func.idNode().sym();
+        if (4 * locals.size() < funcSym.getLocalsSize()) {
+            Collections.sort(locals, new Comparator<Sym>() {
+                public int compare(Sym s1, Sym s2) {
+                    return s2.getOffset() - s1.getOffset();
+                }
+            });
+            for (int k = 0; k < locals.size(); k++) {
+                locals.get(k).setOffset(-8 - 4 * k);
+            }
+            funcSym.setLocalsSize(4 * locals.size());
+        }
+        return removed;
+    }
+}
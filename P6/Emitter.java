@@ -0,0 +1,97 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Emitter class prints generated code (Instrs) as nicely formatted
+// assembly code:
+//     OP      <tab>op  arg1, arg2, arg3<tab><tab># comment
+//     MEM     <tab>op  reg, offset(base)<tab># comment
+//     LABEL   label:<tab><tab># comment
+//     TEXT    the text
+// (the args of an instruction start in the same column whatever the
+// length of the op code, for op codes up to MAXLEN characters).
+// **********************************************************************
+public class Emitter {
+    // for pretty printing generated code
+    private static final int MAXLEN = 4;
+
+    /***
+     * Print one instr (ending with a new line).
+     ***/
+    public static void emit(Instr instr, PrintWriter p) {
+        switch (instr.kind()) {
+            case Instr.OP:
+                p.print("\t" + instr.opcode());
+                if (instr.numArgs() > 0) {
+                    space(instr.opcode(), p);
+                    p.print(instr.arg(0));
+                    for (int k = 1; k < instr.numArgs(); k++) {
+                        p.print(", " + instr.arg(k));
+                    }
+                }
+                if (!instr.comment().equals("")) {
+                    p.print("\t\t# " + instr.comment());
+                }
+                break;
+            case Instr.MEM:
+                p.print("\t" + instr.opcode());
+                space(instr.opcode(), p);
+                p.print(instr.arg(0) + ", " + instr.offset() + "(" +
+                        instr.arg(1) + ")");
+                if (!instr.comment().equals("")) {
+                    p.print("\t# " + instr.comment());
+                }
+                break;
+            case Instr.LABEL:
+                p.print(instr.label() + ":");
+                if (!instr.comment().equals("")) {
+                    p.print("\t\t" + "# " + instr.comment());
+                }
+                break;
+            default:
+                p.print(instr.text());
+        }
+        p.println();
+    }
+
+    /***
+     * Print a list of instrs.
+     ***/
+    public static void emit(List<Instr> code, PrintWriter p) {
+        for (Instr instr : code) {
+            emit(instr, p);
+        }
+    }
+
+    /***
+     * Print the code for a function (see render).
+     ***/
+    public static void emit(FuncCode func, PrintWriter p) {
+        if (func.text() != null) {
+            p.print(func.text());
+        } else {
+            emit(func.code(), p);
+        }
+    }
+
+    /***
+     * Format the code for a function now, so that emit(func, p) only has
+     * to print the resulting text (used when functions are generated in
+     * parallel, so that the formatting is also done in parallel).
+     ***/
+    public static void render(FuncCode func) {
+        StringWriter buf = new StringWriter();
+        PrintWriter p = new PrintWriter(buf);
+        emit(func.code(), p);
+        p.flush();
+        func.setText(buf.toString());
+    }
+
+    // print the spaces between an op code and its first arg
+    private static void space(String opcode, PrintWriter p) {
+        int space = MAXLEN - opcode.length() + 2;
+        for (int k = 1; k <= space; k++) {
+            p.print(" ");
+        }
+    }
+}
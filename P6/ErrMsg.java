@@ -1,3 +1,5 @@
+import java.util.*;
+
 /**
  * ErrMsg
  *
@@ -6,6 +8,20 @@
 class ErrMsg {
     private static boolean err = false;
 
+    // while name analysis and type checking are done in a single pass
+    // (see ProgramNode.check), messages reported with fatal are held back
+    // in this list; name errors are reported with nameError and are
+    // never held back
+    private static List<String> held = null;
+    private static boolean heldAfterErr = false;   // err, when holdBack was called
+    private static boolean nameErr = false;
+
+    // while functions are type checked in parallel (see
+    // DeclListNode.typeCheck), each thread collects the messages for the
+    // function it is checking in its own list
+    private static ThreadLocal<List<String>> collected =
+        new ThreadLocal<List<String>>();
+
     /**
      * Generates a fatal error message.
      * @param lineNum line number for error location
@@ -13,10 +29,93 @@ class ErrMsg {
      * @param msg associated message for error
      */
     static void fatal(int lineNum, int charNum, String msg) {
+        List<String> list = collected.get();
+        if (list != null) {
+            list.add(lineNum + ":" + charNum + " ****ERROR**** " + msg);
+            return;
+        }
+        if (held != null) {
+            held.add(lineNum + ":" + charNum + " ****ERROR**** " + msg);
+            return;
+        }
+        err = true;
+        System.err.println(lineNum + ":" + charNum + " ****ERROR**** " + msg);
+    }
+
+    /**
+     * Generates a fatal error message for an error found during name
+     * analysis.
+     * @param lineNum line number for error location
+     * @param charNum character number (i.e., column) for error location
+     * @param msg associated message for error
+     */
+    static void nameError(int lineNum, int charNum, String msg) {
         err = true;
+        nameErr = true;
         System.err.println(lineNum + ":" + charNum + " ****ERROR**** " + msg);
     }
 
+    /**
+     * Starts holding back the messages reported with fatal.
+     */
+    static void holdBack() {
+        held = new ArrayList<String>();
+        heldAfterErr = err;
+    }
+
+    /**
+     * Stops holding back messages. If there has been no error (before
+     * holdBack, or a name error since), the held-back messages are printed
+     * (in the order they were reported); otherwise they are dropped, just
+     * as type checking would not have been done after the scanner or name
+     * analysis found an error.
+     */
+    static void release() {
+        List<String> msgs = held;
+        held = null;
+        if (nameErr || heldAfterErr) {
+            return;
+        }
+        for (String msg : msgs) {
+            err = true;
+            System.err.println(msg);
+        }
+    }
+
+    /**
+     * Starts collecting the messages reported with fatal by this thread.
+     */
+    static void collect() {
+        collected.set(new ArrayList<String>());
+    }
+
+    /**
+     * Stops collecting messages for this thread and returns the messages
+     * collected (in the order they were reported).
+     */
+    static List<String> endCollect() {
+        List<String> msgs = collected.get();
+        collected.remove();
+        return msgs;
+    }
+
+    /**
+     * Prints messages returned by endCollect.
+     */
+    static void report(List<String> msgs) {
+        for (String msg : msgs) {
+            err = true;
+            System.err.println(msg);
+        }
+    }
+
+    /**
+     * Returns true if a name error has been reported.
+     */
+    static boolean getNameErr() {
+        return nameErr;
+    }
+
     /**
      * Generates a warning message.
      * @param lineNum line number for warning location
@@ -0,0 +1,1794 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The FlatAst class is a compact, struct-of-arrays encoding of the
+// abstract-syntax tree built by the parser.
+//
+// Every node is identified by an int ID (its index in the arrays below).
+// Node IDs are assigned in preorder, so the root is always node 0.
+// For each node the following parallel arrays hold:
+//     kind         one of the node-kind constants below
+//     firstChild   ID of the first child (NONE if the node is a leaf)
+//     nextSibling  ID of the next child of the same parent (or NONE)
+//     line, col    source position (same as lineNum()/charNum() of the
+//                  corresponding ExpNode; 0 for other nodes)
+//     payload      int value of an IntLitNode, index into the string
+//                  table for an IdNode or a StringLitNode, mySize of a
+//                  VarDeclNode
+//     sym          index into the symbol pool of the Sym an ID or a
+//                  colon-access is linked to (NONE if unlinked)
+//
+// The flat tree is built by calling flatten on the ProgramNode; it
+// provides nameAnalysis, typeCheck and codeGen operations that behave
+// exactly like the ones of the tree (same error messages in the same
+// order, same generated code).
+// **********************************************************************
+
+public class FlatAst {
+    // node kinds
+    public static final int PROGRAM = 0;
+    public static final int DECL_LIST = 1;
+    public static final int STMT_LIST = 2;
+    public static final int EXP_LIST = 3;
+    public static final int FORMALS_LIST = 4;
+    public static final int FUNC_BODY = 5;
+    public static final int VAR_DECL = 6;
+    public static final int FUNC_DECL = 7;
+    public static final int FORMAL_DECL = 8;
+    public static final int STRUCT_DECL = 9;
+    public static final int BOOLEAN_TYPE = 10;
+    public static final int INTEGER_TYPE = 11;
+    public static final int VOID_TYPE = 12;
+    public static final int STRUCT_TYPE = 13;
+    public static final int ASSIGN_STMT = 14;
+    public static final int POST_INC = 15;
+    public static final int POST_DEC = 16;
+    public static final int IF = 17;
+    public static final int IF_ELSE = 18;
+    public static final int WHILE = 19;
+    public static final int READ = 20;
+    public static final int WRITE = 21;
+    public static final int CALL_STMT = 22;
+    public static final int RETURN = 23;
+    public static final int TRUE = 24;
+    public static final int FALSE = 25;
+    public static final int ID = 26;
+    public static final int INT_LIT = 27;
+    public static final int STR_LIT = 28;
+    public static final int STRUCT_ACCESS = 29;
+    public static final int ASSIGN = 30;
+    public static final int CALL = 31;
+    public static final int UNARY_MINUS = 32;
+    public static final int NOT = 33;
+    public static final int AND = 34;
+    public static final int OR = 35;
+    public static final int PLUS = 36;
+    public static final int MINUS = 37;
+    public static final int TIMES = 38;
+    public static final int DIVIDE = 39;
+    public static final int EQUALS = 40;
+    public static final int NOT_EQ = 41;
+    public static final int LESS = 42;
+    public static final int LESS_EQ = 43;
+    public static final int GREATER = 44;
+    public static final int GREATER_EQ = 45;
+
+    // marks a missing child, sibling or symbol
+    public static final int NONE = -1;
+
+    // the parallel node arrays
+    private int[] kind;
+    private int[] firstChild;
+    private int[] nextSibling;
+    private int[] lastChild;   // only used while building
+    private int[] line;
+    private int[] col;
+    private int[] payload;
+    private int[] sym;
+    private boolean[] badAccess;  // for colon-access nodes
+    private Type[] expTypes;      // type of each exp node, set by typeCheck
+    private int[] regs;           // see regs (0 until computed)
+    private boolean[] effects;    // see hasEffects
+    private int size;
+
+    // string table (names and string literals) and symbol pool
+    private List<String> strings;
+    private HashMap<String, Integer> stringIndex;
+    private List<Sym> syms;
+    private IdentityHashMap<Sym, Integer> symIndex;
+
+    // state used by the passes
+    private boolean noMain;
+
+    public FlatAst() {
+        int cap = 256;
+        kind = new int[cap];
+        firstChild = new int[cap];
+        nextSibling = new int[cap];
+        lastChild = new int[cap];
+        line = new int[cap];
+        col = new int[cap];
+        payload = new int[cap];
+        sym = new int[cap];
+        badAccess = new boolean[cap];
+        size = 0;
+        strings = new ArrayList<String>();
+        stringIndex = new HashMap<String, Integer>();
+        syms = new ArrayList<Sym>();
+        symIndex = new IdentityHashMap<Sym, Integer>();
+        noMain = true;
+    }
+
+    /***
+     * Convert the tree rooted at the given ProgramNode.
+     ***/
+    public static FlatAst fromTree(ProgramNode root) {
+        FlatAst f = new FlatAst();
+        root.flatten(f);
+        f.lastChild = null;  // no longer needed
+        f.trim();
+        return f;
+    }
+
+    // **********************************************************************
+    // building
+    // **********************************************************************
+
+    /***
+     * Add a new node and return its ID.
+     ***/
+    public int add(int k, int lineNum, int charNum, int value) {
+        if (size == kind.length) {
+            grow();
+        }
+        int n = size++;
+        kind[n] = k;
+        firstChild[n] = NONE;
+        nextSibling[n] = NONE;
+        lastChild[n] = NONE;
+        line[n] = lineNum;
+        col[n] = charNum;
+        payload[n] = value;
+        sym[n] = NONE;
+        return n;
+    }
+
+    public int add(int k) {
+        return add(k, 0, 0, 0);
+    }
+
+    /***
+     * Append child c to the children of node n.
+     ***/
+    public void addChild(int n, int c) {
+        if (firstChild[n] == NONE) {
+            firstChild[n] = c;
+        }
+        else {
+            nextSibling[lastChild[n]] = c;
+        }
+        lastChild[n] = c;
+    }
+
+    /***
+     * Return the string-table index of s (adding it if needed).
+     ***/
+    public int intern(String s) {
+        Integer k = stringIndex.get(s);
+        if (k == null) {
+            k = strings.size();
+            strings.add(s);
+            stringIndex.put(s, k);
+        }
+        return k;
+    }
+
+    private void grow() {
+        int cap = kind.length * 2;
+        kind = Arrays.copyOf(kind, cap);
+        firstChild = Arrays.copyOf(firstChild, cap);
+        nextSibling = Arrays.copyOf(nextSibling, cap);
+        lastChild = Arrays.copyOf(lastChild, cap);
+        line = Arrays.copyOf(line, cap);
+        col = Arrays.copyOf(col, cap);
+        payload = Arrays.copyOf(payload, cap);
+        sym = Arrays.copyOf(sym, cap);
+        badAccess = Arrays.copyOf(badAccess, cap);
+    }
+
+    // drop the unused capacity left by grow
+    private void trim() {
+        kind = Arrays.copyOf(kind, size);
+        firstChild = Arrays.copyOf(firstChild, size);
+        nextSibling = Arrays.copyOf(nextSibling, size);
+        line = Arrays.copyOf(line, size);
+        col = Arrays.copyOf(col, size);
+        payload = Arrays.copyOf(payload, size);
+        sym = Arrays.copyOf(sym, size);
+        badAccess = Arrays.copyOf(badAccess, size);
+    }
+
+    // **********************************************************************
+    // access
+    // **********************************************************************
+
+    public int size() {
+        return size;
+    }
+
+    public int kind(int n) {
+        return kind[n];
+    }
+
+    /***
+     * Return the i-th child of n (NONE if there is no such child).
+     ***/
+    public int child(int n, int i) {
+        int c = firstChild[n];
+        while (c != NONE && i > 0) {
+            c = nextSibling[c];
+            i--;
+        }
+        return c;
+    }
+
+    public int numChildren(int n) {
+        int k = 0;
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            k++;
+        }
+        return k;
+    }
+
+    private String name(int n) {
+        return strings.get(payload[n]);
+    }
+
+    private Sym symOf(int n) {
+        return sym[n] == NONE ? null : syms.get(sym[n]);
+    }
+
+    private void link(int n, Sym s) {
+        Integer k = symIndex.get(s);
+        if (k == null) {
+            k = syms.size();
+            syms.add(s);
+            symIndex.put(s, k);
+        }
+        sym[n] = k;
+    }
+
+    /***
+     * Return the number of bytes used by the node arrays allocated so far
+     * (their capacity, counting 4 bytes per reference in expTypes; not
+     * counting the array headers, the string table or the symbol pool).
+     ***/
+    public long arrayBytes() {
+        long bytes = 0;
+        for (int[] a : new int[][] { kind, firstChild, nextSibling, lastChild,
+                                     line, col, payload, sym, regs }) {
+            if (a != null) {
+                bytes += 4L * a.length;
+            }
+        }
+        for (boolean[] a : new boolean[][] { badAccess, effects }) {
+            if (a != null) {
+                bytes += a.length;
+            }
+        }
+        if (expTypes != null) {
+            bytes += 4L * expTypes.length;
+        }
+        return bytes;
+    }
+
+    // **********************************************************************
+    // nameAnalysis
+    // **********************************************************************
+
+    /****
+     * nameAnalysis
+     * Same as ProgramNode.nameAnalysis.
+     ****/
+    public void nameAnalysis() {
+        SymTab symTab = new SymTab();
+        declListNames(child(0, 0), symTab, symTab);
+        if (noMain) {
+            ErrMsg.nameError(0, 0, "No main function");
+        }
+    }
+
+    private void declListNames(int n, SymTab symTab, SymTab globalTab) {
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            switch (kind[c]) {
+                case VAR_DECL:
+                    varDeclNames(c, symTab, globalTab);
+                    break;
+                case FUNC_DECL:
+                    funcDeclNames(c, symTab);
+                    break;
+                case STRUCT_DECL:
+                    structDeclNames(c, symTab);
+                    break;
+                default:
+                    formalDeclNames(c, symTab);
+            }
+        }
+    }
+
+    private Sym varDeclNames(int n, SymTab symTab, SymTab globalTab) {
+        int type = child(n, 0);
+        int id = child(n, 1);
+        boolean badDecl = false;
+        String name = name(id);
+        Sym s = null;
+        int structId = NONE;
+
+        if (kind[type] == VOID_TYPE) {  // check for void type
+            ErrMsg.nameError(line[id], col[id], "Non-function declared void");
+            badDecl = true;
+        }
+
+        else if (kind[type] == STRUCT_TYPE) {
+            structId = child(type, 0);
+            try {
+                s = globalTab.lookupGlobal(name(structId));
+
+                // if the name for the struct type is not found,
+                // or is not a struct type
+                if (s == null || !(s instanceof StructDefSym)) {
+                    ErrMsg.nameError(line[structId], col[structId],
+                                 "Name of struct type invalid");
+                    badDecl = true;
+                }
+                else {
+                    link(structId, s);
+                }
+            } catch (SymTabEmptyException ex) {
+                System.err.println("Unexpected SymTabEmptyException " +
+                                   " in FlatAst.varDeclNames");
+                System.exit(-1);
+            }
+        }
+
+        try {
+            if (symTab.lookupLocal(name) != null) {
+                ErrMsg.nameError(line[id], col[id], "Identifier multiply-declared");
+                badDecl = true;
+            }
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in FlatAst.varDeclNames");
+            System.exit(-1);
+        }
+
+        if (!badDecl) {  // insert into symbol table
+            try {
+                if (kind[type] == STRUCT_TYPE) {
+                    s = new StructSym(structIdNode(structId));
+                }
+                else {
+                    s = new Sym(typeOf(type));
+                    if (!globalTab.isGlobalScope()) {
+                        int offset = globalTab.getOffset();
+                        s.setOffset(offset);
+                        globalTab.setOffset(offset - 4);
+                    } else {
+                        s.setOffset(1);
+                    }
+                }
+                symTab.addDecl(name, s);
+                link(id, s);
+            } catch (SymDuplicateException ex) {
+                System.err.println("Unexpected SymDuplicateException " +
+                                   " in FlatAst.varDeclNames");
+                System.exit(-1);
+            } catch (SymTabEmptyException ex) {
+                System.err.println("Unexpected SymTabEmptyException " +
+                                   " in FlatAst.varDeclNames");
+                System.exit(-1);
+            }
+        }
+
+        return s;
+    }
+
+    private void funcDeclNames(int n, SymTab symTab) {
+        int type = child(n, 0);
+        int id = child(n, 1);
+        int formals = child(n, 2);
+        int body = child(n, 3);
+        String name = name(id);
+        FuncSym s = null;
+        try {
+            if (symTab.lookupLocal(name) != null) {
+                ErrMsg.nameError(line[id], col[id], "Identifier multiply-declared");
+            }
+            else { // add function name to local symbol table
+                if (name.equals("main")) {
+                    noMain = false;
+                }
+                try {
+                    s = new FuncSym(typeOf(type), numChildren(formals));
+                    symTab.addDecl(name, s);
+                    link(id, s);
+                } catch (SymDuplicateException ex) {
+                    System.err.println("Unexpected SymDuplicateException " +
+                                       " in FlatAst.funcDeclNames");
+                    System.exit(-1);
+                }
+            }
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in FlatAst.funcDeclNames");
+            System.exit(-1);
+        }
+
+        symTab.setGlobalScope(false);
+        symTab.setOffset(4);  // offset of first param
+        symTab.addScope();  // add a new scope for locals and params
+
+        // process the formals
+        List<Type> typeList = new LinkedList<Type>();
+        for (int c = firstChild[formals]; c != NONE; c = nextSibling[c]) {
+            Sym formal = formalDeclNames(c, symTab);
+            if (formal != null) {
+                typeList.add(formal.getType());
+            }
+        }
+        if (s != null) {
+            s.addFormals(typeList);
+            s.setParamsSize(symTab.getOffset() - 4);
+        }
+
+        symTab.setOffset(-8);  // offset of first local
+        int temp = symTab.getOffset();
+
+        declListNames(child(body, 0), symTab, symTab);
+        stmtListNames(child(body, 1), symTab);
+
+        if (s != null) {
+            s.setLocalsSize(-1*(symTab.getOffset() - temp));
+        }
+        symTab.setGlobalScope(true);
+
+        removeScope(symTab);
+    }
+
+    private Sym formalDeclNames(int n, SymTab symTab) {
+        int type = child(n, 0);
+        int id = child(n, 1);
+        String name = name(id);
+        boolean badDecl = false;
+        Sym s = null;
+
+        if (kind[type] == VOID_TYPE) {
+            ErrMsg.nameError(line[id], col[id], "Non-function declared void");
+            badDecl = true;
+        }
+
+        try {
+            if (symTab.lookupLocal(name) != null) {
+                ErrMsg.nameError(line[id], col[id], "Identifier multiply-declared");
+                badDecl = true;
+            }
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in FlatAst.formalDeclNames");
+            System.exit(-1);
+        }
+
+        if (!badDecl) {  // insert into symbol table
+            try {
+                int offset = symTab.getOffset();
+                s = new Sym(typeOf(type));
+                s.setOffset(offset);
+                symTab.setOffset(offset + 4);
+                symTab.addDecl(name, s);
+                link(id, s);
+            } catch (SymDuplicateException ex) {
+                System.err.println("Unexpected SymDuplicateException " +
+                                   " in FlatAst.formalDeclNames");
+                System.exit(-1);
+            } catch (SymTabEmptyException ex) {
+                System.err.println("Unexpected SymTabEmptyException " +
+                                   " in FlatAst.formalDeclNames");
+                System.exit(-1);
+            }
+        }
+
+        return s;
+    }
+
+    private void structDeclNames(int n, SymTab symTab) {
+        int id = child(n, 0);
+        String name = name(id);
+        boolean badDecl = false;
+        try {
+            if (symTab.lookupLocal(name) != null) {
+                ErrMsg.nameError(line[id], col[id], "Identifier multiply-declared");
+                badDecl = true;
+            }
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in FlatAst.structDeclNames");
+            System.exit(-1);
+        }
+
+        SymTab structSymTab = new SymTab();
+
+        // process the fields of the struct
+        declListNames(child(n, 1), structSymTab, symTab);
+
+        if (!badDecl) {
+            try {   // add entry to symbol table
+                StructDefSym s = new StructDefSym(structSymTab);
+                symTab.addDecl(name, s);
+                link(id, s);
+            } catch (SymDuplicateException ex) {
+                System.err.println("Unexpected SymDuplicateException " +
+                                   " in FlatAst.structDeclNames");
+                System.exit(-1);
+            } catch (SymTabEmptyException ex) {
+                System.err.println("Unexpected SymTabEmptyException " +
+                                   " in FlatAst.structDeclNames");
+                System.exit(-1);
+            }
+        }
+    }
+
+    private void stmtListNames(int n, SymTab symTab) {
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            stmtNames(c, symTab);
+        }
+    }
+
+    private void stmtNames(int n, SymTab symTab) {
+        switch (kind[n]) {
+            case IF:
+            case WHILE:
+                expNames(child(n, 0), symTab);
+                symTab.addScope();
+                declListNames(child(n, 1), symTab, symTab);
+                stmtListNames(child(n, 2), symTab);
+                removeScope(symTab);
+                break;
+            case IF_ELSE:
+                expNames(child(n, 0), symTab);
+                symTab.addScope();
+                declListNames(child(n, 1), symTab, symTab);
+                stmtListNames(child(n, 2), symTab);
+                removeScope(symTab);
+                symTab.addScope();
+                declListNames(child(n, 3), symTab, symTab);
+                stmtListNames(child(n, 4), symTab);
+                removeScope(symTab);
+                break;
+            default:
+                // all other statements have (at most) one expression child
+                if (firstChild[n] != NONE) {
+                    expNames(firstChild[n], symTab);
+                }
+        }
+    }
+
+    private void expNames(int n, SymTab symTab) {
+        switch (kind[n]) {
+            case ID:
+                try {
+                    Sym s = symTab.lookupGlobal(name(n));
+                    if (s == null) {
+                        ErrMsg.nameError(line[n], col[n], "Identifier undeclared");
+                    } else {
+                        link(n, s);
+                    }
+                } catch (SymTabEmptyException ex) {
+                    System.err.println("Unexpected SymTabEmptyException " +
+                                       " in FlatAst.expNames");
+                    System.exit(-1);
+                }
+                break;
+            case STRUCT_ACCESS:
+                structAccessNames(n, symTab);
+                break;
+            default:
+                // literals have no children; all other expressions
+                // process their children left to right
+                for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+                    expNames(c, symTab);
+                }
+        }
+    }
+
+    /****
+     * Same as StructAccessExpNode.nameAnalysis; the Sym for the struct
+     * type of the RHS (if any) is linked to the colon-access node itself.
+     ****/
+    private void structAccessNames(int n, SymTab symTab) {
+        int loc = child(n, 0);
+        int id = child(n, 1);
+        badAccess[n] = false;
+        SymTab structSymTab = null; // to lookup RHS of colon-access
+        Sym s = null;
+
+        expNames(loc, symTab);  // do name analysis on LHS
+
+        if (kind[loc] == ID) {
+            s = symOf(loc);
+            if (s == null) { // ID was undeclared
+                badAccess[n] = true;
+            }
+            else if (s instanceof StructSym) {
+                Sym tempSym = ((StructSym)s).getStructType().sym();
+                structSymTab = ((StructDefSym)tempSym).getSymTab();
+            }
+            else {  // LHS is not a struct type
+                ErrMsg.nameError(line[loc], col[loc], "Colon-access of non-struct type");
+                badAccess[n] = true;
+            }
+        }
+
+        else if (kind[loc] == STRUCT_ACCESS) {
+            if (badAccess[loc]) {  // if errors in processing loc
+                badAccess[n] = true;
+            }
+            else { //  no errors in processing loc
+                s = symOf(loc);
+                if (s == null) {  // no struct in which to look up RHS
+                    ErrMsg.nameError(line[loc], col[loc], "Colon-access of non-struct type");
+                    badAccess[n] = true;
+                }
+                else if (s instanceof StructDefSym) {
+                    structSymTab = ((StructDefSym)s).getSymTab();
+                }
+                else {
+                    System.err.println("Unexpected Sym type in StructAccessExpNode");
+                    System.exit(-1);
+                }
+            }
+        }
+
+        else { // don't know what kind of thing loc is
+            System.err.println("Unexpected node type in LHS of colon-access");
+            System.exit(-1);
+        }
+
+        // do name analysis on RHS of colon-access in the struct's symbol table
+        if (!badAccess[n]) {
+            try {
+                s = structSymTab.lookupGlobal(name(id)); // lookup
+                if (s == null) { // not found - RHS is not a valid field name
+                    ErrMsg.nameError(line[id], col[id], "Name of struct field invalid");
+                    badAccess[n] = true;
+                }
+                else {
+                    link(id, s);
+                    if (s instanceof StructSym) {
+                        link(n, ((StructSym)s).getStructType().sym());
+                    }
+                }
+            } catch (SymTabEmptyException ex) {
+                System.err.println("Unexpected SymTabEmptyException " +
+                                   " in FlatAst.structAccessNames");
+                System.exit(-1);
+            }
+        }
+    }
+
+    private void removeScope(SymTab symTab) {
+        try {
+            symTab.removeScope();
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in FlatAst.removeScope");
+            System.exit(-1);
+        }
+    }
+
+    /****
+     * Return the Type denoted by type node n.
+     ****/
+    private Type typeOf(int n) {
+        switch (kind[n]) {
+            case BOOLEAN_TYPE:
+                return Type.BOOLEAN;
+            case INTEGER_TYPE:
+                return Type.INTEGER;
+            case VOID_TYPE:
+                return Type.VOID;
+            default:
+                return StructType.get(structIdNode(child(n, 0)));
+        }
+    }
+
+    /****
+     * Struct types and struct syms refer to the name of their struct
+     * type by an IdNode; build one for the given flat ID node.
+     ****/
+    private IdNode structIdNode(int id) {
+        IdNode node = new IdNode(line[id], col[id], name(id));
+        node.link(symOf(id));
+        return node;
+    }
+
+    // **********************************************************************
+    // typeCheck
+    // **********************************************************************
+
+    /***
+     * typeCheck
+     * Same as ProgramNode.typeCheck.
+     ***/
+    public void typeCheck() {
+        expTypes = new Type[size];
+        int decls = child(0, 0);
+        for (int c = firstChild[decls]; c != NONE; c = nextSibling[c]) {
+            if (kind[c] == FUNC_DECL) {
+                stmtListTypes(child(child(c, 3), 1), typeOf(child(c, 0)));
+            }
+        }
+    }
+
+    private void stmtListTypes(int n, Type retType) {
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            stmtTypes(c, retType);
+        }
+    }
+
+    private void stmtTypes(int n, Type retType) {
+        int exp = firstChild[n];
+        Type type;
+        switch (kind[n]) {
+            case ASSIGN_STMT:
+            case CALL_STMT:
+                expType(exp);
+                break;
+            case POST_INC:
+            case POST_DEC:
+                type = expType(exp);
+                if (!type.isErrorType() && !type.isIntegerType()) {
+                    ErrMsg.fatal(line[exp], col[exp],
+                                 "Arithmetic operator with non-integer operand");
+                }
+                break;
+            case IF:
+                condType(exp, "if");
+                stmtListTypes(child(n, 2), retType);
+                break;
+            case IF_ELSE:
+                condType(exp, "if");
+                stmtListTypes(child(n, 2), retType);
+                stmtListTypes(child(n, 4), retType);
+                break;
+            case WHILE:
+                condType(exp, "while");
+                stmtListTypes(child(n, 2), retType);
+                break;
+            case READ:
+                type = expType(exp);
+                if (type.isFuncType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to read function name");
+                }
+                if (type.isStructDefType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to read struct name");
+                }
+                if (type.isStructType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to read struct variable");
+                }
+                break;
+            case WRITE:
+                type = expType(exp);
+                if (type.isFuncType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to write function name");
+                }
+                if (type.isStructDefType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to write struct name");
+                }
+                if (type.isStructType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to write struct variable");
+                }
+                if (type.isVoidType()) {
+                    ErrMsg.fatal(line[exp], col[exp], "Attempt to write void");
+                }
+                break;
+            case RETURN:
+                if (exp != NONE) {  // return value given
+                    type = expType(exp);
+                    if (retType.isVoidType()) {
+                        ErrMsg.fatal(line[exp], col[exp],
+                                     "Return value in void function");
+                    }
+                    else if (!retType.isErrorType() && !type.isErrorType() &&
+                             !retType.equals(type)) {
+                        ErrMsg.fatal(line[exp], col[exp], "Bad return value type");
+                    }
+                }
+                else if (!retType.isVoidType()) {
+                    ErrMsg.fatal(0, 0, "Missing return value");
+                }
+                break;
+        }
+    }
+
+    private void condType(int exp, String stmt) {
+        Type type = expType(exp);
+        if (!type.isErrorType() && !type.isBooleanType()) {
+            ErrMsg.fatal(line[exp], col[exp],
+                         "Non-boolean expression in " + stmt + " condition");
+        }
+    }
+
+    private Type expType(int n) {
+        if (expTypes[n] == null) {
+            expTypes[n] = computeExpType(n);
+        }
+        return expTypes[n];
+    }
+
+    private Type computeExpType(int n) {
+        switch (kind[n]) {
+            case TRUE:
+            case FALSE:
+                return Type.BOOLEAN;
+            case INT_LIT:
+                return Type.INTEGER;
+            case STR_LIT:
+                return Type.STRING;
+            case ID:
+                if (sym[n] == NONE) {
+                    System.err.println("ID with null sym field in FlatAst.expType");
+                    System.exit(-1);
+                }
+                return symOf(n).getType();
+            case STRUCT_ACCESS:
+                return expType(child(n, 1));
+            case ASSIGN:
+                return assignType(n);
+            case CALL:
+                return callType(n);
+            case NOT:
+                return unaryType(n, Type.BOOLEAN, "Logical");
+            case UNARY_MINUS:
+                return unaryType(n, Type.INTEGER, "Arithmetic");
+            case AND:
+            case OR:
+                return binaryType(n, Type.BOOLEAN, "Logical");
+            case PLUS:
+            case MINUS:
+            case TIMES:
+            case DIVIDE:
+                return binaryType(n, Type.INTEGER, "Arithmetic");
+            case LESS:
+            case LESS_EQ:
+            case GREATER:
+            case GREATER_EQ:
+                return binaryType(n, Type.INTEGER, "Relational");
+            default:
+                return equalityType(n);
+        }
+    }
+
+    private Type assignType(int n) {
+        Type typeLhs = expType(child(n, 0));
+        Type typeExp = expType(child(n, 1));
+        Type retType = typeLhs;
+
+        if (typeLhs.isFuncType() && typeExp.isFuncType()) {
+            ErrMsg.fatal(line[n], col[n], "Assignment to function name");
+            retType = Type.ERROR;
+        }
+        if (typeLhs.isStructDefType() && typeExp.isStructDefType()) {
+            ErrMsg.fatal(line[n], col[n], "Assignment to struct name");
+            retType = Type.ERROR;
+        }
+        if (typeLhs.isStructType() && typeExp.isStructType()) {
+            ErrMsg.fatal(line[n], col[n], "Assignment to struct variable");
+            retType = Type.ERROR;
+        }
+        if (!typeLhs.equals(typeExp) && !typeLhs.isErrorType() && !typeExp.isErrorType()) {
+            ErrMsg.fatal(line[n], col[n], "Type mismatch");
+            retType = Type.ERROR;
+        }
+        if (typeLhs.isErrorType() || typeExp.isErrorType()) {
+            retType = Type.ERROR;
+        }
+        return retType;
+    }
+
+    private Type callType(int n) {
+        int id = child(n, 0);
+        int args = child(n, 1);
+        if (!expType(id).isFuncType()) {
+            ErrMsg.fatal(line[id], col[id], "Attempt to call non-function");
+            return Type.ERROR;
+        }
+
+        FuncSym fctnSym = (FuncSym)symOf(id);
+        if (numChildren(args) != fctnSym.getNumParams()) {
+            ErrMsg.fatal(line[id], col[id], "Wrong # of args in function call");
+            return fctnSym.getReturnType();
+        }
+
+        List<Type> typeList = fctnSym.getParamTypes();
+        int k = 0;
+        for (int c = firstChild[args]; c != NONE; c = nextSibling[c]) {
+            Type actualType = expType(c);
+            if (!actualType.isErrorType()) {
+                Type formalType = typeList.get(k);
+                if (!formalType.equals(actualType)) {
+                    ErrMsg.fatal(line[c], col[c],
+                                 "Actual type and formal type do not match");
+                }
+            }
+            k++;
+        }
+        return fctnSym.getReturnType();
+    }
+
+    private Type unaryType(int n, Type resType, String what) {
+        Type type = expType(child(n, 0));
+        Type retType = resType;
+        if (!type.isErrorType() && !type.equals(resType)) {
+            ErrMsg.fatal(line[n], col[n], what + " operator with non-" +
+                         resType + " operand");
+            retType = Type.ERROR;
+        }
+        if (type.isErrorType()) {
+            retType = Type.ERROR;
+        }
+        return retType;
+    }
+
+    /****
+     * Arithmetic, logical and relational operators: opType is the type
+     * both operands must have.
+     ****/
+    private Type binaryType(int n, Type opType, String what) {
+        int e1 = child(n, 0);
+        int e2 = child(n, 1);
+        Type type1 = expType(e1);
+        Type type2 = expType(e2);
+        Type retType = what.equals("Relational") ? Type.BOOLEAN : opType;
+
+        if (!type1.isErrorType() && !type1.equals(opType)) {
+            ErrMsg.fatal(line[e1], col[e1], what + " operator with non-" +
+                         opType + " operand");
+            retType = Type.ERROR;
+        }
+        if (!type2.isErrorType() && !type2.equals(opType)) {
+            ErrMsg.fatal(line[e2], col[e2], what + " operator with non-" +
+                         opType + " operand");
+            retType = Type.ERROR;
+        }
+        if (type1.isErrorType() || type2.isErrorType()) {
+            retType = Type.ERROR;
+        }
+        return retType;
+    }
+
+    private Type equalityType(int n) {
+        Type type1 = expType(child(n, 0));
+        Type type2 = expType(child(n, 1));
+        Type retType = Type.BOOLEAN;
+
+        if (type1.isVoidType() && type2.isVoidType()) {
+            ErrMsg.fatal(line[n], col[n],
+                         "Equality operator applied to void function calls");
+            retType = Type.ERROR;
+        }
+        if (type1.isFuncType() && type2.isFuncType()) {
+            ErrMsg.fatal(line[n], col[n],
+                         "Equality operator applied to function names");
+            retType = Type.ERROR;
+        }
+        if (type1.isStructDefType() && type2.isStructDefType()) {
+            ErrMsg.fatal(line[n], col[n],
+                         "Equality operator applied to struct names");
+            retType = Type.ERROR;
+        }
+        if (type1.isStructType() && type2.isStructType()) {
+            ErrMsg.fatal(line[n], col[n],
+                         "Equality operator applied to struct variables");
+            retType = Type.ERROR;
+        }
+        if (!type1.equals(type2) && !type1.isErrorType() && !type2.isErrorType()) {
+            ErrMsg.fatal(line[n], col[n], "Type mismatch");
+            retType = Type.ERROR;
+        }
+        if (type1.isErrorType() || type2.isErrorType()) {
+            retType = Type.ERROR;
+        }
+        return retType;
+    }
+
+    // **********************************************************************
+    // fold
+    // **********************************************************************
+
+    /***
+     * fold
+     * Same as ProgramNode.fold; nodes are changed in place (a node that is
+     * replaced by one of its descendants gets a copy of it).
+     ***/
+    public void fold() {
+        regs = new int[size];
+        effects = new boolean[size];
+
+        int decls = child(0, 0);
+        for (int c = firstChild[decls]; c != NONE; c = nextSibling[c]) {
+            if (kind[c] == FUNC_DECL) {
+                stmtListFold(child(child(c, 3), 1));
+            }
+        }
+    }
+
+    private void stmtListFold(int n) {
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            int exp = firstChild[c];
+            switch (kind[c]) {
+                case IF:
+                case WHILE:
+                    expFold(exp);
+                    stmtListFold(child(c, 2));
+                    break;
+                case IF_ELSE:
+                    expFold(exp);
+                    stmtListFold(child(c, 2));
+                    stmtListFold(child(c, 4));
+                    break;
+                case ASSIGN_STMT:
+                case CALL_STMT:
+                case WRITE:
+                    expFold(exp);
+                    break;
+                case RETURN:
+                    if (exp != NONE) {
+                        expFold(exp);
+                    }
+                    break;
+            }
+        }
+    }
+
+    // same as ExpNode.fold
+    private void expFold(int n) {
+        int e1 = firstChild[n];
+        int e2 = e1 == NONE ? NONE : nextSibling[e1];
+        switch (kind[n]) {
+            case ASSIGN:
+                expFold(e2);
+                return;
+            case CALL:
+                for (int c = firstChild[e2]; c != NONE; c = nextSibling[c]) {
+                    expFold(c);
+                }
+                return;
+            case NOT:
+            case UNARY_MINUS:
+                expFold(e1);
+                if (isLit(e1) && (kind[n] == NOT ||
+                                  litValue(e1) != Integer.MIN_VALUE)) {
+                    makeLit(n, kind[n] == NOT ? 1 - litValue(e1) : -litValue(e1));
+                }
+                else if (kind[n] == NOT && kind[e1] == NOT) {   // ^^b is b
+                    replaceBy(n, firstChild[e1]);
+                }
+                return;
+            case AND: case OR:
+            case PLUS: case MINUS: case TIMES: case DIVIDE:
+            case EQUALS: case NOT_EQ: case LESS: case LESS_EQ:
+            case GREATER: case GREATER_EQ:
+                break;
+            default:
+                return;   // literals, IDs and colon-accesses
+        }
+
+        expFold(e1);
+        expFold(e2);
+        if (isLit(e1) && isLit(e2) && foldBinary(n, litValue(e1), litValue(e2))) {
+            return;
+        }
+        Integer v1 = isLit(e1) ? litValue(e1) : null;
+        Integer v2 = isLit(e2) ? litValue(e2) : null;
+        switch (kind[n]) {   // same as the simplify methods
+            case PLUS:
+                if (v2 != null && v2 == 0) {
+                    replaceBy(n, e1);
+                }
+                else if (v1 != null && v1 == 0) {
+                    replaceBy(n, e2);
+                }
+                break;
+            case MINUS:
+                if (v2 != null && v2 == 0) {
+                    replaceBy(n, e1);
+                }
+                else if (v1 != null && v1 == 0) {
+                    kind[n] = UNARY_MINUS;
+                    firstChild[n] = e2;
+                    regs[n] = 0;
+                }
+                break;
+            case TIMES:
+                if (v2 != null && v2 == 1) {
+                    replaceBy(n, e1);
+                }
+                else if (v1 != null && v1 == 1) {
+                    replaceBy(n, e2);
+                }
+                else if (v2 != null && v2 == 0 && !hasEffects(e1) && !canTrap(e1) ||
+                         v1 != null && v1 == 0 && !hasEffects(e2) && !canTrap(e2)) {
+                    makeLit(n, 0);
+                }
+                break;
+            case DIVIDE:
+                if (v2 != null && v2 == 1) {
+                    replaceBy(n, e1);
+                }
+                break;
+            case AND:
+                if (v1 != null) {
+                    if (v1 != 0) {
+                        replaceBy(n, e2);
+                    } else {
+                        makeLit(n, 0);
+                    }
+                }
+                else if (v2 != null && v2 != 0) {
+                    replaceBy(n, e1);
+                }
+                else if (v2 != null && !hasEffects(e1) && !canTrap(e1)) {
+                    makeLit(n, 0);
+                }
+                break;
+            case OR:
+                if (v1 != null) {
+                    if (v1 != 0) {
+                        makeLit(n, 1);
+                    } else {
+                        replaceBy(n, e2);
+                    }
+                }
+                else if (v2 != null && v2 == 0) {
+                    replaceBy(n, e1);
+                }
+                else if (v2 != null && !hasEffects(e1) && !canTrap(e1)) {
+                    makeLit(n, 1);
+                }
+                break;
+        }
+    }
+
+    // same as the eval methods: if binary operator node n can be folded
+    // for the given operand values, make it a literal and return true
+    private boolean foldBinary(int n, int v1, int v2) {
+        int value;
+        switch (kind[n]) {
+            case PLUS:
+            case MINUS:
+                long sum = (kind[n] == PLUS ? (long)v1 + v2 : (long)v1 - v2);
+                if (sum != (int)sum) {
+                    return false;   // add and sub trap on overflow
+                }
+                value = (int)sum;
+                break;
+            case TIMES:      value = v1 * v2; break;
+            case DIVIDE:
+                if (v2 == 0 || v1 == Integer.MIN_VALUE && v2 == -1) {
+                    return false;
+                }
+                value = v1 / v2;
+                break;
+            case AND:        value = v1 & v2; break;
+            case OR:         value = v1 | v2; break;
+            case EQUALS:     value = v1 == v2 ? 1 : 0; break;
+            case NOT_EQ:     value = v1 != v2 ? 1 : 0; break;
+            case LESS:       value = v1 < v2 ? 1 : 0; break;
+            case LESS_EQ:    value = v1 <= v2 ? 1 : 0; break;
+            case GREATER:    value = v1 > v2 ? 1 : 0; break;
+            default:         value = v1 >= v2 ? 1 : 0; break;
+        }
+        makeLit(n, value);
+        return true;
+    }
+
+    // same as ExpNode.litValue (for a literal)
+    private boolean isLit(int n) {
+        return kind[n] == TRUE || kind[n] == FALSE || kind[n] == INT_LIT;
+    }
+
+    private int litValue(int n) {
+        return kind[n] == INT_LIT ? payload[n] : kind[n] == TRUE ? 1 : 0;
+    }
+
+    // make exp node n a literal of its type with the given value
+    private void makeLit(int n, int value) {
+        if (!expTypes[n].isBooleanType()) {
+            kind[n] = INT_LIT;
+            payload[n] = value;
+        }
+        else {
+            kind[n] = value != 0 ? TRUE : FALSE;
+            payload[n] = 0;
+        }
+        firstChild[n] = NONE;
+        regs[n] = 0;
+    }
+
+    // make node n a copy of node c (keeping its place among its siblings)
+    private void replaceBy(int n, int c) {
+        kind[n] = kind[c];
+        firstChild[n] = firstChild[c];
+        line[n] = line[c];
+        col[n] = col[c];
+        payload[n] = payload[c];
+        sym[n] = sym[c];
+        badAccess[n] = badAccess[c];
+        expTypes[n] = expTypes[c];
+        regs[n] = regs[c];
+        effects[n] = effects[c];
+    }
+
+    // **********************************************************************
+    // codeGen
+    // **********************************************************************
+
+    /***
+     * codeGen
+     * Same as ProgramNode.codeGen.
+     ***/
+    public void codeGen() {
+        if (regs == null) {   // not already allocated by fold
+            regs = new int[size];
+            effects = new boolean[size];
+        }
+
+        // add the string literals in preorder, i.e., in the same order as
+        // ProgramNode.codeGen (only the ones still in the tree: fold may
+        // have removed some)
+        addStrings(0);
+
+        int decls = child(0, 0);
+        for (int c = firstChild[decls]; c != NONE; c = nextSibling[c]) {
+            if (kind[c] == VAR_DECL) {
+                varDeclCode(c);
+            }
+            else if (kind[c] == FUNC_DECL) {
+                funcDeclCode(c);
+            }
+        }
+        Codegen.genStrings();
+    }
+
+    private void addStrings(int n) {
+        if (kind[n] == STR_LIT) {
+            Codegen.addString(name(n));
+        }
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            addStrings(c);
+        }
+    }
+
+    private void varDeclCode(int n) {
+        if (payload[n] != VarDeclNode.NON_STRUCT) {
+            throw new IllegalStateException("cannot generate code for structures");
+        }
+        Codegen.genText("\t.data");
+        Codegen.genText("\t.align 2");
+        Codegen.genText("_" + name(child(n, 1)) + ":" + "\t.space 4");
+    }
+
+    private void funcDeclCode(int n) {
+        int id = child(n, 1);
+        boolean isMain = name(id).equals("main");
+        String labelFunc = name(id);
+        if (!isMain) {
+            labelFunc = "_" + labelFunc;
+        }
+        Codegen.beginFunction(labelFunc, name(id));
+        Codegen.genText(".text");
+        if (isMain) {
+            Codegen.genText(".globl main");
+        }
+        // function entry instructions
+        Codegen.genLabel(labelFunc, "FUNCTION ENTRY: " + labelFunc);
+        Codegen.genPush(Codegen.RA);
+        Codegen.genPush(Codegen.FP);
+        Codegen.generate("addu", Codegen.FP, Codegen.SP, 8);
+
+        FuncSym funcSym = (FuncSym)symOf(id);
+        if (funcSym.getLocalsSize() > 0) {
+            Codegen.genText("# LOCALS");
+            Codegen.generate("subu", Codegen.SP, Codegen.SP, funcSym.getLocalsSize());
+        }
+        Codegen.beginBody(funcSym.getLocalsSize(), funcSym.getParamsSize());
+
+        // instructions for function body
+        stmtListCode(child(child(n, 3), 1));
+
+        // function exit instructions
+        Codegen.genLabel(Codegen.exitLabel(), "FUNCTION EXIT: " + labelFunc);
+        Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0);
+        Codegen.generate("move", Codegen.T0, Codegen.FP);
+        Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4);
+        Codegen.generate("move", Codegen.SP, Codegen.T0);
+
+        if (isMain) {
+            Codegen.generate("li", Codegen.V0, 10);
+            Codegen.generate("syscall");
+        }
+        else {
+            Codegen.generate("jr", Codegen.RA);
+        }
+        FuncCode code = Codegen.endFunction();
+        Stats.add(code);
+        Emitter.emit(code, Codegen.p);
+    }
+
+    private void stmtListCode(int n) {
+        for (int c = firstChild[n]; c != NONE; c = nextSibling[c]) {
+            Codegen.genText("# STATEMENT");
+            stmtCode(c);
+        }
+    }
+
+    private void stmtCode(int n) {
+        int exp = firstChild[n];
+        String label1, label2;
+        switch (kind[n]) {
+            case ASSIGN_STMT:
+                expCode(exp, 0);
+                break;
+            case POST_INC:
+            case POST_DEC:
+                if (kind[exp] != ID) {
+                    throw new IllegalStateException("expression in postInc invalid");
+                }
+                loadValue(exp, Codegen.T0);
+                Codegen.generate("add", Codegen.T0, Codegen.T0,
+                                 kind[n] == POST_INC ? 1 : -1);
+                storeValue(exp, Codegen.T0);
+                break;
+            case IF:
+                label1 = Codegen.nextLabel();
+                jumpCode(exp, 0, null, label1);
+                stmtListCode(child(n, 2));
+                Codegen.genLabel(label1);
+                break;
+            case IF_ELSE:
+                label1 = Codegen.nextLabel();
+                label2 = Codegen.nextLabel();
+                jumpCode(exp, 0, null, label1);
+                stmtListCode(child(n, 2));
+                Codegen.generate("b", label2);
+                Codegen.genLabel(label1);
+                stmtListCode(child(n, 4));
+                Codegen.genLabel(label2);
+                break;
+            case WHILE:
+                label1 = Codegen.nextLabel();
+                label2 = Codegen.nextLabel();
+                if (Codegen.rotateLoops()) {
+                    jumpCode(exp, 0, null, label2);
+                    Codegen.genLabel(label1);
+                    stmtListCode(child(n, 2));
+                    jumpCode(exp, 0, label1, null);
+                    Codegen.genLabel(label2);
+                    break;
+                }
+                Codegen.genLabel(label1);
+                jumpCode(exp, 0, null, label2);
+                stmtListCode(child(n, 2));
+                Codegen.generate("b", label1);
+                Codegen.genLabel(label2);
+                break;
+            case READ:
+                if (kind[exp] != ID) {
+                    throw new IllegalStateException("expression in read invalid");
+                }
+                Codegen.generate("li", Codegen.V0, 5);
+                Codegen.generate("syscall");
+                if (symOf(exp).getType().isBooleanType()) {
+                    // need to generate 0 or 1 for the value
+                    Codegen.generate("sgt", Codegen.V0, Codegen.V0, 0);
+                }
+                storeValue(exp, Codegen.V0);
+                break;
+            case WRITE:
+                Type t = expTypes[exp];
+                expCode(exp, 0);
+                Codegen.generate("move", Codegen.A0, Codegen.T0);
+                if (t.isIntegerType() || t.isBooleanType()) {
+                    Codegen.generate("li", Codegen.V0, 1);
+                }
+                else if (t.isStringType()) {
+                    Codegen.generate("li", Codegen.V0, 4);
+                }
+                Codegen.generate("syscall");
+                break;
+            case CALL_STMT:
+                callCode(exp, 0);
+                break;
+            case RETURN:
+                if (exp != NONE && kind[exp] == CALL && tailCallCode(exp)) {
+                    break;
+                }
+                if (exp != NONE) {
+                    expCode(exp, 0);
+                    Codegen.generate("move", Codegen.V0, Codegen.T0);
+                }
+                Codegen.generateWithComment("b", "RETURN", Codegen.exitLabel());
+                break;
+        }
+    }
+
+    // same as ExpNode.genJump(k, trueLabel, falseLabel)
+    private void jumpCode(int n, int k, String trueLabel, String falseLabel) {
+        int e1 = firstChild[n];
+        int e2 = e1 == NONE ? NONE : nextSibling[e1];
+        String label;
+        if (Codegen.jumpingCode()) {
+            switch (kind[n]) {
+                case TRUE:
+                    if (trueLabel != null) {
+                        Codegen.generate("b", trueLabel);
+                    }
+                    return;
+                case FALSE:
+                    if (falseLabel != null) {
+                        Codegen.generate("b", falseLabel);
+                    }
+                    return;
+                case NOT:
+                    jumpCode(e1, k, falseLabel, trueLabel);
+                    return;
+                case AND:
+                    label = falseLabel != null ? falseLabel :
+                                                 Codegen.nextLabel();
+                    jumpCode(e1, k, null, label);
+                    jumpCode(e2, k, trueLabel, falseLabel);
+                    if (falseLabel == null) {
+                        Codegen.genLabel(label);
+                    }
+                    return;
+                case OR:
+                    label = trueLabel != null ? trueLabel :
+                                                Codegen.nextLabel();
+                    jumpCode(e1, k, label, null);
+                    jumpCode(e2, k, trueLabel, falseLabel);
+                    if (trueLabel == null) {
+                        Codegen.genLabel(label);
+                    }
+                    return;
+                case EQUALS:
+                case NOT_EQ:
+                case LESS:
+                case LESS_EQ:
+                case GREATER:
+                case GREATER_EQ:
+                    String[] src = operandCode(n, k);
+                    Codegen.genBranch(branchOp(n), src[0], src[1],
+                                      trueLabel, falseLabel);
+                    return;
+            }
+        }
+        expCode(n, k);
+        Codegen.genBranch("bne", Codegen.temp(k), Codegen.FALSE,
+                          trueLabel, falseLabel);
+    }
+
+    // the branch for comparison node n (same as BinaryExpNode.branchOp)
+    private String branchOp(int n) {
+        switch (kind[n]) {
+            case EQUALS:
+                return "beq";
+            case NOT_EQ:
+                return "bne";
+            case LESS:
+                return "blt";
+            case LESS_EQ:
+                return "ble";
+            case GREATER:
+                return "bgt";
+            case GREATER_EQ:
+                return "bge";
+        }
+        return null;
+    }
+
+    // same as ExpNode.codeGen(k)
+    private void expCode(int n, int k) {
+        int e1 = firstChild[n];
+        int e2 = e1 == NONE ? NONE : nextSibling[e1];
+        String dst = Codegen.temp(k);
+        String labelDone;
+        switch (kind[n]) {
+            case TRUE:
+                Codegen.generate("li", dst, 1);
+                return;
+            case FALSE:
+                Codegen.generate("li", dst, 0);
+                return;
+            case INT_LIT:
+                Codegen.generate("li", dst, payload[n]);
+                return;
+            case ID:
+                loadValue(n, dst);
+                return;
+            case STR_LIT:
+                Codegen.generate("la", dst, Codegen.stringLabel(name(n)));
+                return;
+            case STRUCT_ACCESS:
+                Codegen.generate("li", dst, 0);
+                return;
+            case ASSIGN:
+                if (kind[e1] != ID) {
+                    throw new IllegalStateException("left side of assignment must be id");
+                }
+                expCode(e2, k);
+                storeValue(e1, dst);
+                return;
+            case CALL:
+                callCode(n, k);
+                Codegen.generate("move", dst, Codegen.V0);
+                return;
+            case NOT:
+                expCode(e1, k);
+                Codegen.generate("xori", dst, dst, 1);
+                return;
+            case UNARY_MINUS:
+                expCode(e1, k);
+                Codegen.generate("neg", dst, dst);
+                return;
+            case AND:
+            case OR:
+                labelDone = Codegen.nextLabel();
+                expCode(e1, k);
+                Codegen.generate("beq", dst,
+                                 kind[n] == AND ? Codegen.FALSE : Codegen.TRUE,
+                                 labelDone);
+                expCode(e2, k);
+                Codegen.genLabel(labelDone);
+                return;
+        }
+
+        // a multiply or divide by a literal, with strength reduction (same
+        // as TimesNode.codeGen and DivideNode.codeGen)
+        if (Codegen.reduceStrength() &&
+            (kind[n] == TIMES && (isLit(e1) || isLit(e2)) ||
+             kind[n] == DIVIDE && isLit(e2))) {
+            int exp = e1;
+            int c = e2;
+            if (!isLit(e2)) {
+                exp = e2;   // the literal has no effects
+                c = e1;
+            }
+            expCode(exp, k);
+            if (kind[n] == TIMES ? Codegen.genMultiply(dst, litValue(c)) :
+                                   Codegen.genDivide(dst, litValue(c))) {
+                return;
+            }
+            Codegen.generate("li", Codegen.V1, litValue(c));
+            opCode(n, dst, dst, Codegen.V1);
+            return;
+        }
+
+        // the remaining expressions are binary operators
+        // (same as BinaryExpNode.codeGen)
+        String[] src = operandCode(n, k);
+        opCode(n, dst, src[0], src[1]);
+    }
+
+    // evaluate the operands of binary operator node n and return the
+    // registers holding them (same as BinaryExpNode.genOperands)
+    private String[] operandCode(int n, int k) {
+        int e1 = firstChild[n];
+        int e2 = nextSibling[e1];
+        String dst = Codegen.temp(k);
+        boolean canSwap = !hasEffects(e1) &&
+                          (!hasEffects(e2) || isConstant(e1));
+        switch (Codegen.operandOrder(k, regs(e1), regs(e2), canSwap)) {
+            case Codegen.LEFT_FIRST:
+                expCode(e1, k);
+                expCode(e2, k + 1);
+                return new String[] { dst, Codegen.temp(k + 1) };
+            case Codegen.RIGHT_FIRST:
+                expCode(e2, k);
+                expCode(e1, k + 1);
+                return new String[] { Codegen.temp(k + 1), dst };
+            default:
+                expCode(e1, k);
+                Codegen.genPush(dst);
+                expCode(e2, k);
+                Codegen.genPop(Codegen.V1);
+                return new String[] { Codegen.V1, dst };
+        }
+    }
+
+    // generate dst = src1 op src2 for binary operator node n
+    private void opCode(int n, String dst, String src1, String src2) {
+        switch (kind[n]) {
+            case PLUS:
+                Codegen.generateWithComment("add", "ADD", dst, src1, src2);
+                break;
+            case MINUS:
+                Codegen.generateWithComment("sub", "SUBTRACT", dst, src1, src2);
+                break;
+            case TIMES:
+                Codegen.generateWithComment("mul", "MULTIPLY", dst, src1, src2);
+                break;
+            case DIVIDE:
+                Codegen.generateWithComment("div", "DIVIDE", dst, src1, src2);
+                break;
+            case EQUALS:
+                Codegen.generate("seq", dst, src1, src2);
+                break;
+            case NOT_EQ:
+                Codegen.generate("sne", dst, src1, src2);
+                break;
+            case LESS:
+                Codegen.generate("slt", dst, src1, src2);
+                break;
+            case LESS_EQ:
+                Codegen.generate("sle", dst, src1, src2);
+                break;
+            case GREATER:
+                Codegen.generate("sgt", dst, src1, src2);
+                break;
+            case GREATER_EQ:
+                Codegen.generate("sge", dst, src1, src2);
+                break;
+        }
+    }
+
+    /****
+     * Same as CallExpNode.genCall: the return value is left in V0.
+     ****/
+    private void callCode(int n, int k) {
+        int id = child(n, 0);
+        int args = child(n, 1);
+        int numArgs = numChildren(args);
+        for (int t = 0; t < k; t++) {
+            Codegen.genPush(Codegen.temp(t));
+        }
+        for (int a = numArgs - 1; a >= 0; a--) {
+            expCode(child(args, a), 0);
+            Codegen.genPush(Codegen.T0);
+        }
+        Codegen.generate("jal", "_" + name(id));
+        if (numArgs > 0) {
+            // remove parameters from stack
+            Codegen.generate("addu", Codegen.SP, numArgs * 4);
+        }
+        for (int t = k - 1; t >= 0; t--) {
+            Codegen.genPop(Codegen.temp(t));
+        }
+    }
+
+    // same as CallExpNode.genTailCall
+    private boolean tailCallCode(int n) {
+        int id = child(n, 0);
+        int args = child(n, 1);
+        int numArgs = numChildren(args);
+        if (!Codegen.canTailCall("_" + name(id), numArgs)) {
+            return false;
+        }
+        for (int a = numArgs - 1; a >= 0; a--) {
+            expCode(child(args, a), 0);
+            Codegen.genPush(Codegen.T0);
+        }
+        Codegen.genTailCall("_" + name(id), numArgs);
+        return true;
+    }
+
+    // same as ExpNode.regs
+    private int regs(int n) {
+        if (regs[n] == 0) {
+            int e1 = firstChild[n];
+            int e2 = e1 == NONE ? NONE : nextSibling[e1];
+            switch (kind[n]) {
+                case ASSIGN:
+                    regs[n] = regs(e2);
+                    effects[n] = true;
+                    break;
+                case CALL:
+                    regs[n] = Codegen.NUM_TEMPS;
+                    effects[n] = true;
+                    break;
+                case NOT:
+                case UNARY_MINUS:
+                    regs[n] = regs(e1);
+                    effects[n] = effects[e1];
+                    break;
+                case AND:
+                case OR:
+                    regs[n] = Math.max(regs(e1), regs(e2));
+                    effects[n] = effects[e1] || effects[e2];
+                    break;
+                case PLUS: case MINUS: case TIMES: case DIVIDE:
+                case EQUALS: case NOT_EQ: case LESS: case LESS_EQ:
+                case GREATER: case GREATER_EQ:
+                    int regs1 = regs(e1);
+                    int regs2 = regs(e2);
+                    regs[n] = regs1 == regs2 ? regs1 + 1 : Math.max(regs1, regs2);
+                    effects[n] = effects[e1] || effects[e2];
+                    break;
+                default:
+                    regs[n] = 1;
+            }
+        }
+        return regs[n];
+    }
+
+    // same as ExpNode.hasEffects
+    private boolean hasEffects(int n) {
+        regs(n);
+        return effects[n];
+    }
+
+    // same as ExpNode.canTrap
+    private boolean canTrap(int n) {
+        int e1 = firstChild[n];
+        int e2 = e1 == NONE ? NONE : nextSibling[e1];
+        switch (kind[n]) {
+            case ASSIGN:
+                return canTrap(e2);
+            case CALL:
+                for (int c = firstChild[e2]; c != NONE; c = nextSibling[c]) {
+                    if (canTrap(c)) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOT:
+                return canTrap(e1);
+            case UNARY_MINUS:
+                return !isLit(e1) || litValue(e1) == Integer.MIN_VALUE;
+            case PLUS: case MINUS:
+                if (!isLit(e1) || !isLit(e2)) {
+                    return true;
+                }
+                long sum = (kind[n] == PLUS ? (long)litValue(e1) + litValue(e2) :
+                                              (long)litValue(e1) - litValue(e2));
+                return sum != (int)sum;
+            case DIVIDE:
+                if (!isLit(e2) || litValue(e2) == 0) {
+                    return true;
+                }
+                return canTrap(e1);
+            case AND: case OR: case TIMES:
+            case EQUALS: case NOT_EQ: case LESS: case LESS_EQ:
+            case GREATER: case GREATER_EQ:
+                return canTrap(e1) || canTrap(e2);
+            default:
+                return false;   // literals, IDs and colon-accesses
+        }
+    }
+
+    // same as ExpNode.isConstant
+    private boolean isConstant(int n) {
+        return kind[n] == TRUE || kind[n] == FALSE || kind[n] == INT_LIT ||
+               kind[n] == STR_LIT;
+    }
+
+    private void loadValue(int id, String regDst) {
+        Sym s = symOf(id);
+        if (s.isGlobal()) {
+            Codegen.generate("lw", regDst, "_" + name(id));
+        }
+        else {
+            Codegen.generateIndexed("lw", regDst, Codegen.FP, s.getOffset());
+        }
+    }
+
+    private void storeValue(int id, String regSrc) {
+        Sym s = symOf(id);
+        if (s.isGlobal()) {
+            Codegen.generate("sw", regSrc, "_" + name(id));
+        }
+        else {
+            Codegen.generateIndexed("sw", regSrc, Codegen.FP, s.getOffset());
+        }
+    }
+}
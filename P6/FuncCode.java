@@ -0,0 +1,120 @@
+import java.util.*;
+
+// **********************************************************************
+// FuncCode
+//    the code (list of instrs) for a function, and the state used while
+//    generating it
+// **********************************************************************
+public class FuncCode {
+    private String myLabel;
+    private String myName;
+    private int myCurrLabel;
+    private List<Instr> myCode;
+    private String myText;   // the formatted code (see Emitter.render)
+    private Map<String, Integer> myCounts;  // see Stats
+    private int myBodyStart;  // index of the first instr of the body
+    private int myLocalsSize;
+    private int myParamsSize;
+    private boolean myHasBodyLabel;  // see bodyLabel
+
+    public FuncCode(String label, String name) {
+        myLabel = label;
+        myName = name;
+        myCurrLabel = 0;
+        myCode = new ArrayList<Instr>();
+        myText = null;
+        myCounts = new LinkedHashMap<String, Integer>();
+        myBodyStart = 0;
+        myLocalsSize = 0;
+        myParamsSize = 0;
+        myHasBodyLabel = false;
+    }
+
+    // label of the function's entry
+    public String label() {
+        return myLabel;
+    }
+
+    // name of the function
+    public String name() {
+        return myName;
+    }
+
+    public int nextLabelNum() {
+        return myCurrLabel++;
+    }
+
+    public List<Instr> code() {
+        return myCode;
+    }
+
+    /***
+     * Return the number of instructions (not counting labels and text).
+     ***/
+    public int numInstructions() {
+        int n = 0;
+        for (Instr instr : myCode) {
+            if (instr.isInstruction()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /***
+     * Record that the entry code is done: the body starts with the next
+     * instr, and the frame has localsSize bytes of locals (see RegAlloc)
+     * and paramsSize bytes of params (see Codegen.genTailCall).
+     ***/
+    public void setBodyStart(int localsSize, int paramsSize) {
+        myBodyStart = myCode.size();
+        myLocalsSize = localsSize;
+        myParamsSize = paramsSize;
+    }
+
+    public int bodyStart() {
+        return myBodyStart;
+    }
+
+    public int localsSize() {
+        return myLocalsSize;
+    }
+
+    public int paramsSize() {
+        return myParamsSize;
+    }
+
+    /***
+     * Return the label of the start of the body, for a jump back to it
+     * (see Codegen.genTailCall); the label is added (at bodyStart) the
+     * first time.
+     ***/
+    public String bodyLabel() {
+        String label = myLabel + "_Body";
+        if (!myHasBodyLabel) {
+            myCode.add(myBodyStart, Instr.label(label, "FUNCTION BODY"));
+            myHasBodyLabel = true;
+        }
+        return label;
+    }
+
+    public String text() {
+        return myText;
+    }
+
+    public void setText(String text) {
+        myText = text;
+    }
+
+    /***
+     * Add n to the count of what (see Stats).
+     ***/
+    public void count(String what, int n) {
+        Integer count = myCounts.get(what);
+        myCounts.put(what, n + (count == null ? 0 : count));
+    }
+
+    public Map<String, Integer> counts() {
+        return myCounts;
+    }
+}
@@ -0,0 +1,362 @@
+import java.util.*;
+
+// **********************************************************************
+// The Inline class replaces calls of small functions by copies of their
+// bodies.  A call is inlined where it is a whole statement, or the whole
+// right side of an assignment to a variable, or the whole value of a
+// return or a write:
+//
+//     x = f(a, b).   =>   p2 = b.  p1 = a.  body'  x = r.
+//
+// where p1, p2 and r are new temps of the caller (see
+// FuncDeclNode.newTemp) for the params and the result, and body' is a
+// copy of the body of f with its params and locals replaced by temps of
+// the caller too.  The arguments are evaluated last to first, as for a
+// call (see ExpListNode.codeGen).  The returns in body' become
+// assignments to r, and the statements after an if that returns move
+// into its other arm, so that control goes on after body' instead:
+//
+//     if (c) { s1. return e1. }        if (c) { s1. r = e1. }
+//     s2.                        =>    else { s2. r = e2. }
+//     return e2.
+//
+// A function is inlined if it is not main, does not call itself, has no
+// structs, no decls in nested blocks and no return in a while or in an
+// arm of an if that does not always return, and its body has at most
+// budget nodes.  Functions are done in the order of the program, so
+// calls of the functions a callee calls have already been inlined in
+// its body (bach functions are declared before they are called, so
+// recursion is always self-recursion).
+//
+// The calls inlined in each function are counted as "inlined calls" (see
+// Stats).  This is done before the CFGs are built.
+// **********************************************************************
+public class Inline {
+    /***
+     * Inline the calls of small functions, of at most budget nodes, in all
+     * of the functions of the program.
+     ***/
+    public static void run(ProgramNode root, int budget) {
+        Map<Sym, FuncDeclNode> inlinable = new HashMap<Sym, FuncDeclNode>();
+        for (FuncDeclNode func : root.funcDecls()) {
+            Inline inline = new Inline(func, inlinable);
+            inline.inline(func.body().stmtList());
+            func.count("inlined calls", inline.inlined);
+            if (isInlinable(func, budget)) {
+                inlinable.put(func.idNode().sym(), func);
+            }
+        }
+    }
+
+    private FuncDeclNode func;
+    private Type retType;
+    private Map<Sym, FuncDeclNode> inlinable;
+    private int inlined;
+
+    private Inline(FuncDeclNode func, Map<Sym, FuncDeclNode> inlinable) {
+        this.func = func;
+        retType = ((FuncSym)func.idNode().sym()).getReturnType();
+        this.inlinable = inlinable;
+        inlined = 0;
+    }
+
+    // **********************************************************************
+    // the calls
+    // **********************************************************************
+
+    // inline the calls in the statements of list (and the lists nested in
+    // it)
+    private void inline(StmtListNode list) {
+        List<StmtNode> result = new ArrayList<StmtNode>();
+        for (StmtNode stmt : list.stmts()) {
+            if (stmt instanceof IfStmtNode) {
+                inline(((IfStmtNode)stmt).stmtList());
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                inline(((IfElseStmtNode)stmt).thenStmtList());
+                inline(((IfElseStmtNode)stmt).elseStmtList());
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                inline(((WhileStmtNode)stmt).stmtList());
+            }
+            if (!inline(stmt, result)) {
+                result.add(stmt);
+            }
+        }
+        list.stmts().clear();
+        list.stmts().addAll(result);
+    }
+
+    // if stmt has a call that can be inlined, add the statements that
+    // replace it to result and return true
+    private boolean inline(StmtNode stmt, List<StmtNode> result) {
+        ExpNode exp = null;
+        if (stmt instanceof CallStmtNode) {
+            exp = ((CallStmtNode)stmt).call();
+        }
+        else if (stmt instanceof AssignStmtNode &&
+                 ((AssignStmtNode)stmt).assign().lhs() instanceof IdNode) {
+            exp = ((AssignStmtNode)stmt).assign().exp();
+        }
+        else if (stmt instanceof ReturnStmtNode) {
+            exp = ((ReturnStmtNode)stmt).exp();
+        }
+        else if (stmt instanceof WriteStmtNode) {
+            exp = ((WriteStmtNode)stmt).exp();
+        }
+        if (!(exp instanceof CallExpNode)) {
+            return false;
+        }
+        CallExpNode call = (CallExpNode)exp;
+        FuncDeclNode callee = inlinable.get(call.idNode().sym());
+        if (callee == null) {
+            return false;
+        }
+
+        // the params, last to first
+        List<FormalDeclNode> formals = callee.formalsList().formals();
+        List<ExpNode> args = call.expList().exps();
+        IdentityHashMap<Sym, IdNode> temps = new IdentityHashMap<Sym, IdNode>();
+        for (int k = formals.size() - 1; k >= 0; k--) {
+            IdNode temp = temp(formals.get(k).idNode().sym(), temps);
+            result.add(assign(temp, args.get(k)));
+        }
+
+        // the body, with its params and locals replaced by temps
+        Type type = ((FuncSym)callee.idNode().sym()).getReturnType();
+        IdNode value = null;
+        if (!(stmt instanceof CallStmtNode)) {
+            value = func.newTemp(type);
+        }
+        List<StmtNode> body = new ArrayList<StmtNode>();
+        for (StmtNode s : callee.body().stmtList().stmts()) {
+            StmtNode copy = s.copy();
+            rename(copy, temps);
+            copy.typeCheck(type);
+            body.add(copy);
+        }
+        result.addAll(lower(body, value));
+
+        // the use of the value
+        if (stmt instanceof AssignStmtNode) {
+            IdNode lhs = (IdNode)((AssignStmtNode)stmt).assign().lhs();
+            result.add(assign(lhs, value.copy()));
+        }
+        else if (stmt instanceof ReturnStmtNode) {
+            StmtNode ret = new ReturnStmtNode(value.copy());
+            ret.typeCheck(retType);
+            result.add(ret);
+        }
+        else if (stmt instanceof WriteStmtNode) {
+            StmtNode write = new WriteStmtNode(value.copy());
+            write.typeCheck(retType);
+            result.add(write);
+        }
+        inlined++;
+        return true;
+    }
+
+    // make the IDs of the params and locals of the callee in stmt temps
+    // of the caller (the same temp for the same symbol)
+    private void rename(StmtNode stmt, final IdentityHashMap<Sym, IdNode> temps) {
+        stmt.accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                if (node instanceof IdNode) {
+                    Sym sym = ((IdNode)node).sym();
+                    if (!sym.isGlobal() && !(sym instanceof FuncSym)) {
+                        ((IdNode)node).relink(temp(sym, temps));
+                    }
+                }
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+    }
+
+    // return the temp for the param or local sym of the callee
+    private IdNode temp(Sym sym, IdentityHashMap<Sym, IdNode> temps) {
+        IdNode temp = temps.get(sym);
+        if (temp == null) {
+            temp = func.newTemp(sym.getType());
+            temps.put(sym, temp);
+        }
+        return temp;
+    }
+
+    // **********************************************************************
+    // the returns
+    // **********************************************************************
+
+    // return the statements of list (a copy of a body that is inlinable,
+    // see canLower) with each return replaced by an assignment of its
+    // value to the temp value (if not null), and control going to the end
+    // of the list after it
+    private static List<StmtNode> lower(List<StmtNode> list, IdNode value) {
+        List<StmtNode> result = new ArrayList<StmtNode>();
+        for (int k = 0; k < list.size(); k++) {
+            StmtNode stmt = list.get(k);
+            if (stmt instanceof ReturnStmtNode) {
+                ExpNode exp = ((ReturnStmtNode)stmt).exp();
+                if (value != null && exp != null) {
+                    result.add(assign(value, exp));
+                }
+                return result;   // the rest is never executed
+            }
+            if (!hasReturn(stmt)) {
+                result.add(stmt);
+                continue;
+            }
+
+            // an if that returns: the rest of the list goes into the arm
+            // that does not always return (if any)
+            List<StmtNode> rest = list.subList(k + 1, list.size());
+            ExpNode cond;
+            List<StmtNode> thenList;
+            List<StmtNode> elseList;
+            DeclListNode thenDecls;
+            DeclListNode elseDecls = new DeclListNode(new LinkedList<DeclNode>());
+            if (stmt instanceof IfStmtNode) {
+                cond = ((IfStmtNode)stmt).exp();
+                thenList = ((IfStmtNode)stmt).stmtList().stmts();
+                thenDecls = ((IfStmtNode)stmt).declList();
+                elseList = new ArrayList<StmtNode>();
+            } else {
+                cond = ((IfElseStmtNode)stmt).exp();
+                thenList = ((IfElseStmtNode)stmt).thenStmtList().stmts();
+                thenDecls = ((IfElseStmtNode)stmt).thenDeclList();
+                elseList = ((IfElseStmtNode)stmt).elseStmtList().stmts();
+                elseDecls = ((IfElseStmtNode)stmt).elseDeclList();
+            }
+            result.add(new IfElseStmtNode(cond,
+                thenDecls, new StmtListNode(lower(join(thenList, rest), value)),
+                elseDecls, new StmtListNode(lower(join(elseList, rest), value))));
+            return result;
+        }
+        return result;
+    }
+
+    // return list followed by rest, unless list always returns
+    private static List<StmtNode> join(List<StmtNode> list,
+                                       List<StmtNode> rest) {
+        if (alwaysReturns(list)) {
+            return list;
+        }
+        List<StmtNode> result = new ArrayList<StmtNode>(list);
+        result.addAll(rest);   // (at most one arm does not always return)
+        return result;
+    }
+
+    // return true if the returns in list can be lowered (see lower): none
+    // is in a while, and the arms of ifs either always return or have no
+    // returns
+    private static boolean canLower(List<StmtNode> list) {
+        for (StmtNode stmt : list) {
+            if (!hasReturn(stmt) || stmt instanceof ReturnStmtNode) {
+                continue;
+            }
+            if (stmt instanceof WhileStmtNode) {
+                return false;
+            }
+            List<List<StmtNode>> arms = new ArrayList<List<StmtNode>>();
+            if (stmt instanceof IfStmtNode) {
+                arms.add(((IfStmtNode)stmt).stmtList().stmts());
+            } else {
+                arms.add(((IfElseStmtNode)stmt).thenStmtList().stmts());
+                arms.add(((IfElseStmtNode)stmt).elseStmtList().stmts());
+            }
+            for (List<StmtNode> arm : arms) {
+                if (!canLower(arm) ||
+                    hasReturn(arm) && !alwaysReturns(arm)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // return true if every path through list ends in a return
+    private static boolean alwaysReturns(List<StmtNode> list) {
+        for (StmtNode stmt : list) {
+            if (stmt instanceof ReturnStmtNode ||
+                stmt instanceof IfElseStmtNode &&
+                alwaysReturns(((IfElseStmtNode)stmt).thenStmtList().stmts()) &&
+                alwaysReturns(((IfElseStmtNode)stmt).elseStmtList().stmts())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasReturn(List<StmtNode> list) {
+        for (StmtNode stmt : list) {
+            if (hasReturn(stmt)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasReturn(StmtNode stmt) {
+        final boolean[] found = new boolean[1];
+        stmt.accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                if (node instanceof ReturnStmtNode) {
+                    found[0] = true;
+                }
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+        return found[0];
+    }
+
+    // **********************************************************************
+    // the cost model
+    // **********************************************************************
+
+    // return true if the calls of func can be inlined (see the top)
+    private static boolean isInlinable(FuncDeclNode func, int budget) {
+        if (func.idNode().isMain()) {
+            return false;
+        }
+        for (FormalDeclNode formal : func.formalsList().formals()) {
+            if (formal.idNode().sym().getType().isStructType()) {
+                return false;
+            }
+        }
+        final Sym self = func.idNode().sym();
+        final int[] size = new int[1];
+        func.body().accept(new ASTVisitor() {
+            private int depth = 0;   // of statement lists
+
+            public void pre(ASTnode node) {
+                if (node instanceof StmtListNode) {
+                    depth++;
+                }
+                if (node instanceof DeclNode && depth > 0 ||
+                    node instanceof StructAccessExpNode ||
+                    node instanceof IdNode &&
+                    (((IdNode)node).sym() == self ||
+                     ((IdNode)node).sym().getType().isStructType())) {
+                    size[0] = Integer.MAX_VALUE / 2;
+                }
+                size[0]++;
+            }
+
+            public void post(ASTnode node) {
+                if (node instanceof StmtListNode) {
+                    depth--;
+                }
+            }
+        });
+        return size[0] <= budget && canLower(func.body().stmtList().stmts());
+    }
+
+    private static StmtNode assign(IdNode temp, ExpNode exp) {
+        AssignExpNode assign = new AssignExpNode(temp.copy(), exp);
+        assign.typeCheck();
+        return new AssignStmtNode(assign);
+    }
+}
@@ -0,0 +1,142 @@
+import java.util.*;
+
+// **********************************************************************
+// The Instr class represents one line of generated code.  The code
+// generation methods of the Codegen class create Instrs; the Emitter
+// class prints them.
+//
+// There are four kinds of Instr:
+//     OP      an instruction with 0 to 3 args:   op  arg1, arg2, arg3
+//     MEM     a load or store:                    op  reg, offset(base)
+//     LABEL   a label:                            label:
+//     TEXT    any other line (a directive or a comment), printed as is
+// Instrs of the first three kinds may have a comment.
+//
+// Instrs are never changed once created; a pass that improves the code
+// replaces Instrs by new ones.
+// **********************************************************************
+public class Instr {
+    public static final int OP = 0;
+    public static final int MEM = 1;
+    public static final int LABEL = 2;
+    public static final int TEXT = 3;
+
+    private static final String[] NO_ARGS = new String[0];
+
+    private int myKind;
+    private String myOpcode;   // OP, MEM
+    private String[] myArgs;   // OP: the args; MEM: reg and base
+    private int myOffset;      // MEM
+    private String myLabel;    // LABEL
+    private String myText;     // TEXT
+    private String myComment;  // "" if none
+
+    private Instr(int kind) {
+        myKind = kind;
+        myOpcode = "";
+        myArgs = NO_ARGS;
+        myOffset = 0;
+        myLabel = "";
+        myText = "";
+        myComment = "";
+    }
+
+    /***
+     * Return an OP instr; empty args (and any args after them) are left
+     * out.
+     ***/
+    public static Instr op(String opcode, String comment, String... args) {
+        Instr instr = new Instr(OP);
+        instr.myOpcode = opcode;
+        instr.myComment = comment;
+        int n = 0;
+        while (n < args.length && !args[n].equals("")) {
+            n++;
+        }
+        instr.myArgs = Arrays.copyOf(args, n);
+        return instr;
+    }
+
+    /***
+     * Return a MEM instr:  opcode reg, offset(base)
+     ***/
+    public static Instr mem(String opcode, String reg, String base, int offset,
+                            String comment) {
+        Instr instr = new Instr(MEM);
+        instr.myOpcode = opcode;
+        instr.myArgs = new String[] { reg, base };
+        instr.myOffset = offset;
+        instr.myComment = comment;
+        return instr;
+    }
+
+    public static Instr label(String label, String comment) {
+        Instr instr = new Instr(LABEL);
+        instr.myLabel = label;
+        instr.myComment = comment;
+        return instr;
+    }
+
+    public static Instr text(String text) {
+        Instr instr = new Instr(TEXT);
+        instr.myText = text;
+        return instr;
+    }
+
+    /***
+     * Return a copy of this instr (an OP or MEM instr) with arg k replaced
+     * by the given one.
+     ***/
+    public Instr withArg(int k, String arg) {
+        Instr instr = new Instr(myKind);
+        instr.myOpcode = myOpcode;
+        instr.myArgs = myArgs.clone();
+        instr.myArgs[k] = arg;
+        instr.myOffset = myOffset;
+        instr.myComment = myComment;
+        return instr;
+    }
+
+    public int kind() {
+        return myKind;
+    }
+
+    /***
+     * Return true for OP and MEM instrs (the ones that are executed).
+     ***/
+    public boolean isInstruction() {
+        return myKind == OP || myKind == MEM;
+    }
+
+    public String opcode() {
+        return myOpcode;
+    }
+
+    public int numArgs() {
+        return myArgs.length;
+    }
+
+    /***
+     * Return arg k (0-based) of an OP instr; for a MEM instr, arg 0 is the
+     * register loaded or stored and arg 1 is the base register.
+     ***/
+    public String arg(int k) {
+        return myArgs[k];
+    }
+
+    public int offset() {
+        return myOffset;
+    }
+
+    public String label() {
+        return myLabel;
+    }
+
+    public String text() {
+        return myText;
+    }
+
+    public String comment() {
+        return myComment;
+    }
+}
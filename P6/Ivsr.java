@@ -0,0 +1,516 @@
+import java.util.*;
+
+// **********************************************************************
+// The Ivsr class does strength reduction of induction variables in the
+// while loops of a function in SSA form (see Ssa).
+//
+// An induction variable of a loop is a local or param in SSA form that
+// is changed only by one statement of the loop body (not nested in
+// another one): i++, i--, i = i + k, i = k + i or i = i - k, with k a
+// nonzero literal (see Unroll.update).  The products i * c and c * i,
+// where c does not change in the loop (a literal, minus a literal, or
+// an SSA value defined outside it), and i * i, that use the value of i at the top of
+// the loop (before the update) are replaced by a temp (see
+// FuncDeclNode.newTemp) that is set to the product just before the loop
+// and kept up to date by an addition just after the update:
+//
+//     t = i * c.                    (before the loop)
+//     d = c * k.
+//     ...
+//     i = i + k.                    (in the loop)
+//     t = t + d.
+//
+// (d is a literal if c is; for i * i the difference d = 2*k*i + k*k is
+// a temp too, and goes up by 2*k*k each time).  Occurrences of the same
+// product share a temp.  * wraps around on overflow but + traps (see
+// ExpNode.canTrap), so these additions are WrappingPlusNodes (addu);
+// then the temp always has the value of the product, even when the
+// product overflows, and no trap is added.  Outer loops are done first.
+//
+// If the loop condition then is the only use of i left, i op n (or
+// n op i) with n a constant, it is replaced by t op' n * c for a temp
+// t = i * c with c a nonzero constant (op' is op, or op the other way if
+// c is negative), and the update of i is removed.  This is only done
+// when the values i has on entry are constants too, i moves toward n,
+// and the products of c and all the values i can be tested with fit in
+// an int (so t op' n * c gives the same result as i op n).
+//
+// The function is put back in SSA form if it changed.  The numbers of
+// products replaced by temps and of variables removed are counted as
+// "ivsr reduced" and "ivsr eliminated" (see Stats).
+// **********************************************************************
+public class Ivsr {
+    /***
+     * Reduce the strength of the products of induction variables in the
+     * loops of the given function (in SSA form).
+     ***/
+    public static void run(FuncDeclNode func) {
+        Ivsr ivsr = new Ivsr(func);
+        ivsr.reduce(func.body().stmtList());
+        if (ivsr.reduced > 0) {
+            func.setCfg(Cfg.build(func));
+            func.setSsa(Ssa.build(func.cfg()));
+        }
+        func.count("ivsr reduced", ivsr.reduced);
+        func.count("ivsr eliminated", ivsr.eliminated);
+    }
+
+    // a product replaced by a temp
+    private static class Product {
+        SsaValue var;       // the value of i at the top of the loop
+        Integer factor;     // c, if it is a literal (null for i * i)
+        IdNode temp;
+
+        Product(SsaValue var, Integer factor, IdNode temp) {
+            this.var = var;
+            this.factor = factor;
+            this.temp = temp;
+        }
+    }
+
+    private FuncDeclNode func;
+    private Ssa ssa;
+    private Cfg cfg;
+    private IdentityHashMap<StmtNode, Block> headers;   // loop -> its header
+    private int reduced;
+    private int eliminated;
+    private Set<SsaValue> read;     // values read to set temps
+
+    // for the loop being done
+    private Block header;
+    private Block exit;             // where the loop goes when it ends
+    private HashMap<Sym, StmtNode> updates;   // variable -> its update
+
+    private Ivsr(FuncDeclNode func) {
+        this.func = func;
+        ssa = func.ssa();
+        cfg = func.cfg();
+        read = new HashSet<SsaValue>();
+        headers = new IdentityHashMap<StmtNode, Block>();
+        for (Block b : cfg.order()) {
+            if (b.branch() instanceof WhileStmtNode) {
+                headers.put(b.branch(), b);
+            }
+        }
+    }
+
+    // reduce the products in the loops in list (outer ones first),
+    // putting the code that sets the temps just before each loop
+    private void reduce(StmtListNode list) {
+        List<StmtNode> stmts = list.stmts();
+        List<StmtNode> result = null;   // if a loop got a preheader
+        for (int k = 0; k < stmts.size(); k++) {
+            StmtNode stmt = stmts.get(k);
+            if (stmt instanceof WhileStmtNode) {
+                List<StmtNode> preheader = reduce((WhileStmtNode)stmt);
+                if (!preheader.isEmpty() && result == null) {
+                    result = new ArrayList<StmtNode>(stmts.subList(0, k));
+                }
+                if (result != null) {
+                    result.addAll(preheader);
+                }
+                reduce(((WhileStmtNode)stmt).stmtList());
+            }
+            else if (stmt instanceof IfStmtNode) {
+                reduce(((IfStmtNode)stmt).stmtList());
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                reduce(((IfElseStmtNode)stmt).thenStmtList());
+                reduce(((IfElseStmtNode)stmt).elseStmtList());
+            }
+            if (result != null) {
+                result.add(stmt);
+            }
+        }
+        if (result != null) {
+            stmts.clear();
+            stmts.addAll(result);
+        }
+    }
+
+    // reduce the products of the given loop; return the statements that
+    // set the temps
+    private List<StmtNode> reduce(WhileStmtNode loop) {
+        List<StmtNode> preheader = new ArrayList<StmtNode>();
+        header = headers.get(loop);
+        if (header == null) {
+            return preheader;   // not reachable
+        }
+        exit = header.succs().get(1);
+        updates = new HashMap<Sym, StmtNode>();
+        List<ExpNode> found = new ArrayList<ExpNode>();
+        find(loop.exp(), found);
+        find(loop.stmtList(), found);
+        if (found.isEmpty()) {
+            return preheader;
+        }
+
+        // the statements to add after each update
+        IdentityHashMap<StmtNode, List<StmtNode>> after =
+            new IdentityHashMap<StmtNode, List<StmtNode>>();
+        IdentityHashMap<ExpNode, ExpNode> map = new IdentityHashMap<ExpNode, ExpNode>();
+        LinkedHashMap<String, Product> products = new LinkedHashMap<String, Product>();
+        for (ExpNode exp : found) {
+            BinaryExpNode times = (BinaryExpNode)exp;
+            IdNode var = (IdNode)(isCounter(times.exp1()) ? times.exp1() :
+                                                            times.exp2());
+            ExpNode c = (var == times.exp1() ? times.exp2() : times.exp1());
+            SsaValue value = ssa.value(var);
+            boolean square = isCounter(c) && ssa.value((IdNode)c) == value;
+            String key = "v" + value.num() + (square ? " sq" : " " + key(c));
+            Product product = products.get(key);
+            if (product == null) {
+                StmtNode update = updates.get(var.sym());
+                int step = Unroll.step(update);
+                product = new Product(value, square ? null : constant(c),
+                                      func.newTemp(exp.type()));
+                products.put(key, product);
+                for (int k = 0; k < value.operands().length; k++) {
+                    if (!inLoop(header.preds().get(k))) {
+                        read.add(value.operands()[k]);   // copies of var
+                    }
+                }
+                if (c instanceof IdNode) {
+                    read.add(ssa.value((IdNode)c));
+                }
+                preheader.add(assign(product.temp,
+                                     new TimesNode(var.copy(), c.copy())));
+                List<StmtNode> list = after.get(update);
+                if (list == null) {
+                    list = new ArrayList<StmtNode>();
+                    after.put(update, list);
+                }
+                if (square) {
+                    IdNode diff = func.newTemp(exp.type());
+                    preheader.add(assign(diff, new WrappingPlusNode(
+                        new TimesNode(var.copy(), lit(var, 2 * step)),
+                        lit(var, step * step))));
+                    list.add(assign(product.temp, new WrappingPlusNode(
+                        product.temp.copy(), diff.copy())));
+                    list.add(assign(diff, new WrappingPlusNode(
+                        diff.copy(), lit(var, 2 * step * step))));
+                }
+                else {
+                    ExpNode diff;
+                    if (product.factor != null) {
+                        diff = lit(var, product.factor * step);
+                    }
+                    else {
+                        IdNode temp = func.newTemp(exp.type());
+                        preheader.add(assign(temp, step == 1 ? c.copy() :
+                                             new TimesNode(c.copy(), lit(var, step))));
+                        diff = temp.copy();
+                    }
+                    list.add(assign(product.temp,
+                                    new WrappingPlusNode(product.temp.copy(), diff)));
+                }
+                reduced++;
+            }
+            map.put(exp, product.temp.copy());
+        }
+        loop.substitute(map);
+        Licm.substitute(loop.stmtList(), map);
+
+        final IdentityHashMap<ASTnode, Boolean> gone =
+            new IdentityHashMap<ASTnode, Boolean>();
+        for (ExpNode exp : found) {
+            exp.accept(new ASTVisitor() {
+                public void pre(ASTnode node) {
+                    gone.put(node, true);
+                }
+
+                public void post(ASTnode node) {
+                }
+            });
+        }
+        StmtNode removed = eliminate(loop, products, gone);
+
+        List<StmtNode> stmts = loop.stmtList().stmts();
+        List<StmtNode> body = new ArrayList<StmtNode>(stmts.size());
+        for (StmtNode stmt : stmts) {
+            if (stmt != removed) {
+                body.add(stmt);
+            }
+            if (after.containsKey(stmt)) {
+                body.addAll(after.get(stmt));
+            }
+        }
+        stmts.clear();
+        stmts.addAll(body);
+        return preheader;
+    }
+
+    // if the condition of loop is the only use left of an induction
+    // variable (other than its update and the products in gone, replaced
+    // by temps), there is a temp for a product of it and a nonzero
+    // literal, and the products cannot overflow (see fits), make the
+    // condition test the temp instead; return the update to remove, or
+    // null
+    private StmtNode eliminate(WhileStmtNode loop,
+                               LinkedHashMap<String, Product> products,
+                               IdentityHashMap<ASTnode, Boolean> gone) {
+        int op = Unroll.opCode(loop.exp());
+        if (op < 0) {
+            return null;
+        }
+        BinaryExpNode cond = (BinaryExpNode)loop.exp();
+        ExpNode var = cond.exp1();
+        ExpNode bound = cond.exp2();
+        if (!isCounter(var)) {
+            var = cond.exp2();
+            bound = cond.exp1();
+            op = Unroll.flip(op);
+        }
+        Integer n = constant(bound);
+        if (!isCounter(var) || n == null) {
+            return null;
+        }
+        Product product = null;
+        for (Product p : products.values()) {
+            if (p.var == ssa.value((IdNode)var) && p.factor != null &&
+                p.factor != 0) {
+                product = p;
+                break;
+            }
+        }
+        StmtNode update = updates.get(((IdNode)var).sym());
+        if (product == null || !onlyInTest((IdNode)var, update, gone)) {
+            return null;
+        }
+
+        int c = product.factor;
+        if (!fits((IdNode)var, op, Unroll.step(update), n, c)) {
+            return null;
+        }
+        ExpNode limit = lit(var, n * c);
+        ExpNode test = Unroll.compare(c < 0 ? Unroll.flip(op) : op,
+                                      product.temp.copy(), limit);
+        test.typeCheck();
+        IdentityHashMap<ExpNode, ExpNode> map = new IdentityHashMap<ExpNode, ExpNode>();
+        map.put(cond, test);
+        loop.substitute(map);
+        eliminated++;
+        return update;
+    }
+
+    // return true if the loop with counter var, condition var op n and
+    // the given step moves var toward n, and the products of c and the
+    // values var can be tested with (from its literal values on entry to
+    // the first one past n) fit in an int
+    private boolean fits(IdNode var, int op, int step, int n, int c) {
+        SsaValue value = ssa.value(var);
+        long lo = n;
+        long hi = n;
+        for (int k = 0; k < value.operands().length; k++) {
+            if (inLoop(header.preds().get(k))) {
+                continue;
+            }
+            Integer start = start(value.operands()[k]);
+            if (start == null) {
+                return false;
+            }
+            if (op == Unroll.NE && (((long)n - start) % step != 0 ||
+                                    ((long)n - start) / step < 0)) {
+                return false;   // may go past n
+            }
+            lo = Math.min(lo, start);
+            hi = Math.max(hi, start);
+        }
+        if (((op == Unroll.LT || op == Unroll.LE) && step < 0) ||
+            ((op == Unroll.GT || op == Unroll.GE) && step > 0)) {
+            return false;       // moves away from n
+        }
+        lo -= Math.abs(step);
+        hi += Math.abs(step);
+        return fitsInt(lo) && fitsInt(hi) && fitsInt(lo * c) && fitsInt(hi * c);
+    }
+
+    // return the value of the given value of a variable if it is set to a
+    // constant (see constant), otherwise null
+    private static Integer start(SsaValue value) {
+        if (value.kind() != SsaValue.ASSIGN) {
+            return null;
+        }
+        return constant(((AssignExpNode)value.node()).exp());
+    }
+
+    private static boolean fitsInt(long value) {
+        return value == (int)value;
+    }
+
+    // return true if the only reads of the values of the variable of the
+    // given use (in the loop condition) that come from the loop are that
+    // use, the ones in the update, and the ones in gone (replaced by
+    // temps), and no temp is set from them
+    private boolean onlyInTest(IdNode use, StmtNode update,
+                               final IdentityHashMap<ASTnode, Boolean> gone) {
+        gone.put(use, true);
+        update.accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                gone.put(node, true);
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+        ArrayDeque<SsaValue> work = new ArrayDeque<SsaValue>();
+        Set<SsaValue> done = new HashSet<SsaValue>();
+        work.push(ssa.value(use));
+        work.push(ssa.defined(update instanceof AssignStmtNode ?
+                              ((AssignStmtNode)update).assign() : update));
+        while (!work.isEmpty()) {
+            SsaValue value = work.pop();
+            if (read.contains(value)) {
+                return false;   // a temp is set from it before a loop
+            }
+            for (IdNode id : value.uses()) {
+                if (!gone.containsKey(id)) {
+                    return false;
+                }
+            }
+            for (SsaValue phi : value.phiUses()) {
+                if (done.add(phi)) {
+                    work.push(phi);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static StmtNode assign(IdNode temp, ExpNode exp) {
+        AssignExpNode assign = new AssignExpNode(temp.copy(), exp);
+        assign.typeCheck();
+        return new AssignStmtNode(assign);
+    }
+
+    private static ExpNode lit(ExpNode pos, int value) {
+        ExpNode lit = new IntLitNode(pos.lineNum(), pos.charNum(), value);
+        lit.typeCheck();
+        return lit;
+    }
+
+    // **********************************************************************
+    // finding the products
+    // **********************************************************************
+
+    // add the products to reduce in the statements of list (and the lists
+    // nested in it) to found
+    private void find(StmtListNode list, List<ExpNode> found) {
+        for (StmtNode stmt : list.stmts()) {
+            if (stmt instanceof AssignStmtNode) {
+                find(((AssignStmtNode)stmt).assign(), found);
+            }
+            else if (stmt instanceof WriteStmtNode) {
+                find(((WriteStmtNode)stmt).exp(), found);
+            }
+            else if (stmt instanceof CallStmtNode) {
+                find(((CallStmtNode)stmt).call(), found);
+            }
+            else if (stmt instanceof ReturnStmtNode) {
+                if (((ReturnStmtNode)stmt).exp() != null) {
+                    find(((ReturnStmtNode)stmt).exp(), found);
+                }
+            }
+            else if (stmt instanceof IfStmtNode) {
+                find(((IfStmtNode)stmt).exp(), found);
+                find(((IfStmtNode)stmt).stmtList(), found);
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                find(((IfElseStmtNode)stmt).exp(), found);
+                find(((IfElseStmtNode)stmt).thenStmtList(), found);
+                find(((IfElseStmtNode)stmt).elseStmtList(), found);
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                find(((WhileStmtNode)stmt).exp(), found);
+                find(((WhileStmtNode)stmt).stmtList(), found);
+            }
+        }
+    }
+
+    // add exp to found if it is a product to reduce, otherwise look in its
+    // subexpressions
+    private void find(ExpNode exp, List<ExpNode> found) {
+        if (exp instanceof TimesNode) {
+            ExpNode exp1 = ((TimesNode)exp).exp1();
+            ExpNode exp2 = ((TimesNode)exp).exp2();
+            if ((isCounter(exp1) && isInvariant(exp2)) ||
+                (isCounter(exp2) && isInvariant(exp1)) ||
+                (isCounter(exp1) && isCounter(exp2) &&
+                 ssa.value((IdNode)exp1) == ssa.value((IdNode)exp2))) {
+                found.add(exp);
+                return;
+            }
+        }
+        if (exp instanceof AssignExpNode) {
+            find(((AssignExpNode)exp).exp(), found);
+        }
+        else if (exp instanceof CallExpNode) {
+            ExpListNode args = ((CallExpNode)exp).expList();
+            if (args != null) {
+                for (ExpNode arg : args.exps()) {
+                    find(arg, found);
+                }
+            }
+        }
+        else if (exp instanceof UnaryExpNode) {
+            find(((UnaryExpNode)exp).exp(), found);
+        }
+        else if (exp instanceof BinaryExpNode) {
+            find(((BinaryExpNode)exp).exp1(), found);
+            find(((BinaryExpNode)exp).exp2(), found);
+        }
+    }
+
+    // return true if exp is a use of an induction variable of the loop
+    // being done, with its value at the top of the loop
+    private boolean isCounter(ExpNode exp) {
+        if (!(exp instanceof IdNode)) {
+            return false;
+        }
+        SsaValue value = ssa.value((IdNode)exp);
+        if (value == null || value.kind() != SsaValue.PHI ||
+            value.block() != header) {
+            return false;
+        }
+        Sym sym = value.var();
+        if (!updates.containsKey(sym)) {
+            updates.put(sym, Unroll.update((WhileStmtNode)header.branch(), sym));
+        }
+        return updates.get(sym) != null;
+    }
+
+    // return the value of exp if it is a literal or minus one, otherwise
+    // null
+    private static Integer constant(ExpNode exp) {
+        if (exp instanceof UnaryMinusNode) {
+            Integer value = ((UnaryMinusNode)exp).exp().litValue();
+            return value == null ? null : -value;
+        }
+        return exp.litValue();
+    }
+
+    // return true if exp is a constant (see constant) or an SSA value
+    // defined outside the loop being done
+    private boolean isInvariant(ExpNode exp) {
+        if (constant(exp) != null) {
+            return true;
+        }
+        if (!(exp instanceof IdNode)) {
+            return false;
+        }
+        SsaValue value = ssa.value((IdNode)exp);
+        return value != null && !inLoop(value.block());
+    }
+
+    // return true if block b (reachable) is in the loop being done: the
+    // header dominates it and the exit does not
+    private boolean inLoop(Block b) {
+        return cfg.dominates(header, b) && !cfg.dominates(exit, b);
+    }
+
+    // a key for an invariant expression (the same for the same value)
+    private String key(ExpNode exp) {
+        Integer lit = constant(exp);
+        return lit != null ? "" + lit : "v" + ssa.value((IdNode)exp).num();
+    }
+}
@@ -0,0 +1,193 @@
+import java.util.*;
+
+// **********************************************************************
+// The JumpThreading class cleans up the branches in the code for a
+// function (e.g., the jumps out of nested ifs and the jumps to the exit
+// code of a return):
+//     a branch to a label whose first instr is "b L"   =>  a branch to L
+//         (threaded through any number of such jumps)
+//     a branch to a label that follows                 =>  nothing
+//     bcond X, Y, L1; b L2; L1:                        =>  bopp X, Y, L2; L1:
+//         (bopp is the opposite branch, see Codegen.oppositeBranch)
+//     instrs after b, j or jr, up to the next label     =>  nothing
+//     a (local) label that no branch goes to           =>  nothing
+// so a block that only jumps elsewhere disappears once nothing branches to
+// it any more.  Text lines (comments) are kept.
+//
+// The changes are repeated until there are no more; the number of
+// branches given a new target is counted as "jumps threaded" and the
+// number of instructions removed as "jumps removed" (see Stats).
+// **********************************************************************
+public class JumpThreading {
+    private static boolean enabled = false;
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /***
+     * Clean up the branches in the code for the given function.
+     ***/
+    public static void optimize(FuncCode func) {
+        List<Instr> code = func.code();
+        int before = func.numInstructions();
+        int threaded = 0;
+        boolean changed = true;
+        while (changed) {
+            JumpThreading pass = new JumpThreading(code);
+            changed = pass.run();
+            threaded += pass.threaded;
+            code = pass.out;
+        }
+        func.code().clear();
+        func.code().addAll(code);
+        func.count("jumps threaded", threaded);
+        func.count("jumps removed", before - func.numInstructions());
+    }
+
+    private List<Instr> code;
+    private Map<String, Integer> labels;   // label -> index in code
+    private List<Instr> out;
+    private int threaded;
+
+    private JumpThreading(List<Instr> code) {
+        this.code = code;
+        labels = new HashMap<String, Integer>();
+        for (int k = 0; k < code.size(); k++) {
+            if (code.get(k).kind() == Instr.LABEL) {
+                labels.put(code.get(k).label(), k);
+            }
+        }
+        out = new ArrayList<Instr>(code.size());
+        threaded = 0;
+    }
+
+    // one pass over the code (into out); return true if anything changed
+    private boolean run() {
+        // thread the branches, and find the labels still branched to
+        Set<String> targets = new HashSet<String>();
+        for (int k = 0; k < code.size(); k++) {
+            Instr instr = code.get(k);
+            if (Liveness.isBranch(instr)) {
+                String target = finalTarget(Liveness.target(instr));
+                if (!target.equals(Liveness.target(instr))) {
+                    instr = instr.withArg(instr.numArgs() - 1, target);
+                    code.set(k, instr);
+                    threaded++;
+                }
+                targets.add(target);
+            }
+        }
+
+        boolean changed = threaded > 0;
+        boolean reachable = true;
+        int k = 0;
+        while (k < code.size()) {
+            Instr instr = code.get(k);
+            if (instr.kind() == Instr.LABEL) {
+                if (instr.label().startsWith(".L") &&
+                    !targets.contains(instr.label())) {
+                    changed = true;   // unused (and does not make the
+                    k++;              // code after it reachable)
+                    continue;
+                }
+                reachable = true;
+            }
+            if (!instr.isInstruction()) {
+                out.add(instr);
+                k++;
+                continue;
+            }
+            if (!reachable) {
+                changed = true;
+                k++;
+                continue;
+            }
+            if (Liveness.isBranch(instr)) {
+                int j = next(k);
+
+                // a branch to a label that follows
+                if (labelsBetween(k, j).contains(Liveness.target(instr))) {
+                    changed = true;
+                    k++;
+                    continue;
+                }
+
+                // bcond X, Y, L1; b L2; L1:
+                String opposite = Codegen.oppositeBranch(instr.opcode());
+                if (opposite != null && j >= 0 &&
+                    labelsBetween(k, j).isEmpty() &&
+                    isJump(code.get(j)) &&
+                    labelsBetween(j, next(j)).contains(
+                        Liveness.target(instr))) {
+                    Instr jump = code.get(j);
+                    String[] args = new String[instr.numArgs()];
+                    for (int a = 0; a < args.length - 1; a++) {
+                        args[a] = instr.arg(a);
+                    }
+                    args[args.length - 1] = Liveness.target(jump);
+                    out.add(Instr.op(opposite, instr.comment(), args));
+                    for (int m = k + 1; m < j; m++) {
+                        out.add(code.get(m));
+                    }
+                    changed = true;
+                    k = j + 1;
+                    continue;
+                }
+            }
+            out.add(instr);
+            if (isJump(instr) || instr.opcode().equals("jr")) {
+                reachable = false;
+            }
+            k++;
+        }
+        return changed;
+    }
+
+    // return the label at the end of the chain of jumps starting at label
+    // (label itself if the instr there is not an unconditional jump)
+    private String finalTarget(String label) {
+        Set<String> seen = new HashSet<String>();
+        seen.add(label);
+        while (labels.containsKey(label)) {
+            int j = next(labels.get(label));
+            if (j < 0 || !isJump(code.get(j)) ||
+                !seen.add(Liveness.target(code.get(j)))) {
+                break;   // not a jump, or a loop of jumps
+            }
+            label = Liveness.target(code.get(j));
+        }
+        return label;
+    }
+
+    // return the index of the next instruction after index k, skipping
+    // labels and text lines, or -1 if there is none
+    private int next(int k) {
+        for (int j = k + 1; j < code.size(); j++) {
+            if (code.get(j).isInstruction()) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    // return the labels between indexes k and j (to the end if j < 0)
+    private Set<String> labelsBetween(int k, int j) {
+        Set<String> result = new HashSet<String>();
+        for (int m = k + 1; m < (j < 0 ? code.size() : j); m++) {
+            if (code.get(m).kind() == Instr.LABEL) {
+                result.add(code.get(m).label());
+            }
+        }
+        return result;
+    }
+
+    // return true if instr is an unconditional jump to a label
+    private static boolean isJump(Instr instr) {
+        return Liveness.isBranch(instr) && !Liveness.isCondBranch(instr);
+    }
+}
@@ -0,0 +1,385 @@
+import java.util.*;
+
+// **********************************************************************
+// The Licm class moves loop-invariant code out of the while loops of a
+// function in SSA form (see Ssa).
+//
+// An expression in the condition or body of a loop is invariant if it
+// has no effects, cannot stop the program (see ExpNode.canTrap: a +, -
+// or unary minus that may overflow, or a division by something other
+// than a nonzero literal), and its operands do not change in the loop:
+// literals, SSA values defined outside the loop, and other variables
+// (globals, and locals not in SSA form) that are not assigned, read or
+// incremented in the loop.  A call in the loop is assumed to change the
+// globals unless the function called (and the ones it calls) cannot
+// assign a global (see globalWriters).
+//
+// The largest invariant expressions that are operators, or loads of a
+// global, are computed into temps (see FuncDeclNode.newTemp) just before
+// the loop (its preheader), and the loop uses the temps; occurrences of
+// the same expression share a temp.  Since the expressions have no
+// effects and cannot trap, computing them when the loop body is not
+// executed does no harm.  Outer loops are done first, so an expression
+// that is invariant in nested loops goes out as far as it can.
+//
+// The function is put back in SSA form if it changed.  The number of
+// expressions hoisted is counted as "licm hoisted" (see Stats).
+// **********************************************************************
+public class Licm {
+    /***
+     * Move the loop-invariant code of the given function (in SSA form) out
+     * of its loops; writers are the functions that may assign a global.
+     ***/
+    public static void run(FuncDeclNode func, Set<Sym> writers) {
+        Licm licm = new Licm(func, writers);
+        licm.hoist(func.body().stmtList());
+        if (licm.hoisted > 0) {
+            func.setCfg(Cfg.build(func));
+            func.setSsa(Ssa.build(func.cfg()));
+        }
+        func.count("licm hoisted", licm.hoisted);
+    }
+
+    /***
+     * Return the functions of the program that may assign a global (an
+     * integer or boolean one), directly or by calling one that does.
+     ***/
+    public static Set<Sym> globalWriters(ProgramNode root) {
+        final Set<Sym> writers = new HashSet<Sym>();
+        final HashMap<Sym, Set<Sym>> callers = new HashMap<Sym, Set<Sym>>();
+        for (FuncDeclNode func : root.funcDecls()) {
+            final Sym funcSym = func.idNode().sym();
+            final Set<Sym> assigned = new HashSet<Sym>();
+            func.body().accept(new ASTVisitor() {
+                public void pre(ASTnode node) {
+                    if (node instanceof CallExpNode) {
+                        Sym callee = ((CallExpNode)node).idNode().sym();
+                        Set<Sym> set = callers.get(callee);
+                        if (set == null) {
+                            set = new HashSet<Sym>();
+                            callers.put(callee, set);
+                        }
+                        set.add(funcSym);
+                    }
+                }
+
+                public void post(ASTnode node) {
+                }
+            });
+            findAssigned(func.body(), assigned, null);
+            for (Sym sym : assigned) {
+                if (sym.isGlobal()) {
+                    writers.add(funcSym);
+                    break;
+                }
+            }
+        }
+
+        // the callers of a writer are writers
+        ArrayDeque<Sym> work = new ArrayDeque<Sym>(writers);
+        while (!work.isEmpty()) {
+            Set<Sym> set = callers.get(work.pop());
+            if (set != null) {
+                for (Sym caller : set) {
+                    if (writers.add(caller)) {
+                        work.push(caller);
+                    }
+                }
+            }
+        }
+        return writers;
+    }
+
+    // add to assigned the variables assigned, read, incremented or
+    // decremented in node, and to called the functions it calls (if
+    // called is not null)
+    private static void findAssigned(ASTnode node, final Set<Sym> assigned,
+                                     final Set<Sym> called) {
+        node.accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                ExpNode target = null;
+                if (node instanceof AssignExpNode) {
+                    target = ((AssignExpNode)node).lhs();
+                }
+                else if (node instanceof PostIncStmtNode) {
+                    target = ((PostIncStmtNode)node).exp();
+                }
+                else if (node instanceof PostDecStmtNode) {
+                    target = ((PostDecStmtNode)node).exp();
+                }
+                else if (node instanceof ReadStmtNode) {
+                    target = ((ReadStmtNode)node).exp();
+                }
+                else if (node instanceof CallExpNode && called != null) {
+                    called.add(((CallExpNode)node).idNode().sym());
+                }
+                if (target instanceof IdNode) {
+                    assigned.add(((IdNode)target).sym());
+                }
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+    }
+
+    private FuncDeclNode func;
+    private Ssa ssa;
+    private Cfg cfg;
+    private Set<Sym> writers;
+    private IdentityHashMap<StmtNode, Block> headers;   // loop -> its header
+    private int hoisted;
+
+    // for the loop being done
+    private Block header;
+    private Block exit;             // where the loop goes when it ends
+    private Set<Sym> assigned;
+    private boolean clobbers;       // it calls a writer
+    private HashMap<Sym, Integer> symNums;
+
+    private Licm(FuncDeclNode func, Set<Sym> writers) {
+        this.func = func;
+        this.writers = writers;
+        ssa = func.ssa();
+        cfg = func.cfg();
+        headers = new IdentityHashMap<StmtNode, Block>();
+        for (Block b : cfg.order()) {
+            if (b.branch() instanceof WhileStmtNode) {
+                headers.put(b.branch(), b);
+            }
+        }
+        symNums = new HashMap<Sym, Integer>();
+    }
+
+    // hoist the invariant code of the loops in list (outer ones first),
+    // putting it just before each loop
+    private void hoist(StmtListNode list) {
+        List<StmtNode> stmts = list.stmts();
+        List<StmtNode> result = null;   // if code was hoisted
+        for (int k = 0; k < stmts.size(); k++) {
+            StmtNode stmt = stmts.get(k);
+            if (stmt instanceof WhileStmtNode) {
+                List<StmtNode> preheader = hoist((WhileStmtNode)stmt);
+                if (!preheader.isEmpty() && result == null) {
+                    result = new ArrayList<StmtNode>(stmts.subList(0, k));
+                }
+                if (result != null) {
+                    result.addAll(preheader);
+                }
+                hoist(((WhileStmtNode)stmt).stmtList());
+            }
+            else if (stmt instanceof IfStmtNode) {
+                hoist(((IfStmtNode)stmt).stmtList());
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                hoist(((IfElseStmtNode)stmt).thenStmtList());
+                hoist(((IfElseStmtNode)stmt).elseStmtList());
+            }
+            if (result != null) {
+                result.add(stmt);
+            }
+        }
+        if (result != null) {
+            stmts.clear();
+            stmts.addAll(result);
+        }
+    }
+
+    // hoist the invariant code of the given loop; return the statements
+    // that compute it
+    private List<StmtNode> hoist(WhileStmtNode loop) {
+        List<StmtNode> preheader = new ArrayList<StmtNode>();
+        header = headers.get(loop);
+        if (header == null) {
+            return preheader;   // not reachable
+        }
+        exit = header.succs().get(1);
+        assigned = new HashSet<Sym>();
+        Set<Sym> called = new HashSet<Sym>();
+        findAssigned(loop, assigned, called);
+        clobbers = false;
+        for (Sym callee : called) {
+            if (writers.contains(callee)) {
+                clobbers = true;
+            }
+        }
+
+        List<ExpNode> found = new ArrayList<ExpNode>();
+        find(loop.exp(), found);
+        find(loop.stmtList(), found);
+        if (found.isEmpty()) {
+            return preheader;
+        }
+
+        IdentityHashMap<ExpNode, ExpNode> map = new IdentityHashMap<ExpNode, ExpNode>();
+        HashMap<String, IdNode> temps = new HashMap<String, IdNode>();
+        for (ExpNode exp : found) {
+            String key = key(exp);
+            IdNode temp = temps.get(key);
+            if (temp == null) {
+                temp = func.newTemp(exp.type());
+                temps.put(key, temp);
+                AssignExpNode assign = new AssignExpNode(temp.copy(), exp);
+                assign.typeCheck();
+                preheader.add(new AssignStmtNode(assign));
+                hoisted++;
+            }
+            map.put(exp, temp.copy());
+        }
+        loop.substitute(map);
+        substitute(loop.stmtList(), map);
+        return preheader;
+    }
+
+    // substitute map in the statements of list (and the lists nested in
+    // it); also used by Ivsr
+    static void substitute(StmtListNode list,
+                           IdentityHashMap<ExpNode, ExpNode> map) {
+        for (StmtNode stmt : list.stmts()) {
+            stmt.substitute(map);
+            if (stmt instanceof IfStmtNode) {
+                substitute(((IfStmtNode)stmt).stmtList(), map);
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                substitute(((IfElseStmtNode)stmt).thenStmtList(), map);
+                substitute(((IfElseStmtNode)stmt).elseStmtList(), map);
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                substitute(((WhileStmtNode)stmt).stmtList(), map);
+            }
+        }
+    }
+
+    // **********************************************************************
+    // finding the invariant expressions
+    // **********************************************************************
+
+    // add the largest invariant expressions worth hoisting in the
+    // statements of list (and the lists nested in it) to found
+    private void find(StmtListNode list, List<ExpNode> found) {
+        for (StmtNode stmt : list.stmts()) {
+            if (stmt instanceof AssignStmtNode) {
+                find(((AssignStmtNode)stmt).assign(), found);
+            }
+            else if (stmt instanceof WriteStmtNode) {
+                find(((WriteStmtNode)stmt).exp(), found);
+            }
+            else if (stmt instanceof CallStmtNode) {
+                find(((CallStmtNode)stmt).call(), found);
+            }
+            else if (stmt instanceof ReturnStmtNode) {
+                if (((ReturnStmtNode)stmt).exp() != null) {
+                    find(((ReturnStmtNode)stmt).exp(), found);
+                }
+            }
+            else if (stmt instanceof IfStmtNode) {
+                find(((IfStmtNode)stmt).exp(), found);
+                find(((IfStmtNode)stmt).stmtList(), found);
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                find(((IfElseStmtNode)stmt).exp(), found);
+                find(((IfElseStmtNode)stmt).thenStmtList(), found);
+                find(((IfElseStmtNode)stmt).elseStmtList(), found);
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                find(((WhileStmtNode)stmt).exp(), found);
+                find(((WhileStmtNode)stmt).stmtList(), found);
+            }
+        }
+    }
+
+    // add exp to found if it is invariant and worth hoisting, otherwise
+    // look in its subexpressions
+    private void find(ExpNode exp, List<ExpNode> found) {
+        if (isInvariant(exp)) {
+            if (exp instanceof UnaryExpNode || exp instanceof BinaryExpNode ||
+                (exp instanceof IdNode && ((IdNode)exp).sym().isGlobal())) {
+                found.add(exp);
+            }
+        }
+        else if (exp instanceof AssignExpNode) {
+            find(((AssignExpNode)exp).exp(), found);
+        }
+        else if (exp instanceof CallExpNode) {
+            ExpListNode args = ((CallExpNode)exp).expList();
+            if (args != null) {
+                for (ExpNode arg : args.exps()) {
+                    find(arg, found);
+                }
+            }
+        }
+        else if (exp instanceof UnaryExpNode) {
+            find(((UnaryExpNode)exp).exp(), found);
+        }
+        else if (exp instanceof BinaryExpNode) {
+            find(((BinaryExpNode)exp).exp1(), found);
+            find(((BinaryExpNode)exp).exp2(), found);
+        }
+    }
+
+    // return true if exp has the same value, and can be computed without
+    // effects or traps, each time the loop evaluates it
+    private boolean isInvariant(ExpNode exp) {
+        if (exp.litValue() != null) {
+            return true;
+        }
+        if (exp instanceof IdNode) {
+            IdNode id = (IdNode)exp;
+            SsaValue value = ssa.value(id);
+            if (value != null) {
+                return !inLoop(value.block());
+            }
+            Sym sym = id.sym();
+            if (!sym.getType().isIntegerType() &&
+                !sym.getType().isBooleanType()) {
+                return false;
+            }
+            return !assigned.contains(sym) && !(sym.isGlobal() && clobbers);
+        }
+        if (exp.canTrap()) {
+            return false;
+        }
+        if (exp instanceof UnaryExpNode) {
+            return isInvariant(((UnaryExpNode)exp).exp());
+        }
+        if (exp instanceof BinaryExpNode) {
+            return isInvariant(((BinaryExpNode)exp).exp1()) &&
+                   isInvariant(((BinaryExpNode)exp).exp2());
+        }
+        return false;   // calls, assignments, strings and colon-accesses
+    }
+
+    // return true if block b (reachable) is in the loop being done: the
+    // header dominates it and the exit does not
+    private boolean inLoop(Block b) {
+        return cfg.dominates(header, b) && !cfg.dominates(exit, b);
+    }
+
+    // a key for an invariant expression (the same for the same value)
+    private String key(ExpNode exp) {
+        Integer lit = exp.litValue();
+        if (lit != null) {
+            return "" + lit;
+        }
+        if (exp instanceof IdNode) {
+            SsaValue value = ssa.value((IdNode)exp);
+            if (value != null) {
+                return "v" + value.num();
+            }
+            Sym sym = ((IdNode)exp).sym();
+            Integer num = symNums.get(sym);
+            if (num == null) {
+                num = symNums.size();
+                symNums.put(sym, num);
+            }
+            return "s" + num;
+        }
+        if (exp instanceof UnaryExpNode) {
+            return "(" + exp.getClass().getName() + " " +
+                   key(((UnaryExpNode)exp).exp()) + ")";
+        }
+        BinaryExpNode binary = (BinaryExpNode)exp;
+        return "(" + exp.getClass().getName() + " " + key(binary.exp1()) +
+               " " + key(binary.exp2()) + ")";
+    }
+}
@@ -0,0 +1,289 @@
+import java.util.*;
+
+// **********************************************************************
+// The Liveness class finds, for each instr in the code for a function,
+// the set of registers that are live after it (i.e., that may be read
+// before they are written again).
+//
+// Sets of registers are represented by ints: bit k is set if register k
+// is in the set.  The static methods uses and defs give the registers
+// read and written by an instr; the control flow between instrs is found
+// from the branches and labels in the code.
+//
+// At the end of a function (jr or falling off the end of the code) the
+// live registers are the return value, the callee-saved registers, and
+// the stack and frame pointers.
+// **********************************************************************
+public class Liveness {
+    // register names, indexed by register number
+    private static final String[] NAMES = {
+        "$zero", "$at", "$v0", "$v1", "$a0", "$a1", "$a2", "$a3",
+        "$t0", "$t1", "$t2", "$t3", "$t4", "$t5", "$t6", "$t7",
+        "$s0", "$s1", "$s2", "$s3", "$s4", "$s5", "$s6", "$s7",
+        "$t8", "$t9", "$k0", "$k1", "$gp", "$sp", "$fp", "$ra"
+    };
+
+    private static final HashMap<String, Integer> NUMBERS =
+        new HashMap<String, Integer>();
+    static {
+        for (int k = 0; k < NAMES.length; k++) {
+            NUMBERS.put(NAMES[k], k);
+        }
+    }
+
+    public static final int TEMPS = 0xff00 | (1 << 24) | (1 << 25);
+    public static final int SAVED = 0xff0000;
+    public static final int ARGS = 0xf0;
+
+    // live at the end of a function
+    public static final int EXIT = (1 << 2) | SAVED | (1 << 28) | (1 << 29) |
+                                   (1 << 30) | (1 << 31);
+
+    // written by a call (jal)
+    public static final int CALL_DEFS = TEMPS | ARGS | (1 << 1) | (1 << 2) |
+                                        (1 << 3) | (1 << 31);
+
+    private int[] liveOut;
+
+    /***
+     * Compute liveness for the given code.
+     ***/
+    public Liveness(List<Instr> code) {
+        int n = code.size();
+        liveOut = new int[n];
+        int[] liveIn = new int[n];
+        int[] uses = new int[n];
+        int[] defs = new int[n];
+        int[][] succs = successors(code);
+        for (int k = 0; k < n; k++) {
+            uses[k] = uses(code.get(k));
+            defs[k] = defs(code.get(k));
+        }
+
+        // iterate (backwards, since liveness flows backwards) until
+        // nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = n - 1; k >= 0; k--) {
+                int out = 0;
+                for (int s : succs[k]) {
+                    out |= (s == n ? EXIT : liveIn[s]);
+                }
+                int in = uses[k] | (out & ~defs[k]);
+                if (out != liveOut[k] || in != liveIn[k]) {
+                    liveOut[k] = out;
+                    liveIn[k] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /***
+     * Return the set of registers live after instr k.
+     ***/
+    public int liveOut(int k) {
+        return liveOut[k];
+    }
+
+    /***
+     * Return true if register reg is live after instr k.
+     ***/
+    public boolean isLiveOut(int k, String reg) {
+        return (liveOut[k] & bit(reg)) != 0;
+    }
+
+    // **********************************************************************
+    // registers
+    // **********************************************************************
+
+    /***
+     * Return the number of the register with the given name, or -1 if the
+     * name is not a register.
+     ***/
+    public static int number(String name) {
+        Integer k = NUMBERS.get(name);
+        return k == null ? -1 : k;
+    }
+
+    public static String name(int number) {
+        return NAMES[number];
+    }
+
+    /***
+     * Return the set containing just the given register (empty if reg is
+     * not a register, e.g., it is a constant or a label).
+     ***/
+    public static int bit(String reg) {
+        int k = number(reg);
+        return k < 0 ? 0 : 1 << k;
+    }
+
+    public static boolean isTemp(String reg) {
+        return (bit(reg) & TEMPS) != 0;
+    }
+
+    // **********************************************************************
+    // what instrs do
+    // **********************************************************************
+
+    /***
+     * Return true if the instr is a branch or jump to a label (not a call
+     * or a return).
+     ***/
+    public static boolean isBranch(Instr instr) {
+        if (instr.kind() != Instr.OP) {
+            return false;
+        }
+        String op = instr.opcode();
+        return op.equals("b") || op.equals("j") || isCondBranch(instr);
+    }
+
+    public static boolean isCondBranch(Instr instr) {
+        if (instr.kind() != Instr.OP) {
+            return false;
+        }
+        String op = instr.opcode();
+        return op.equals("beq") || op.equals("bne") || op.equals("blt") ||
+               op.equals("bgt") || op.equals("ble") || op.equals("bge") ||
+               op.equals("beqz") || op.equals("bnez") || op.equals("bltz") ||
+               op.equals("bgtz") || op.equals("blez") || op.equals("bgez");
+    }
+
+    /***
+     * Return the label a branch goes to.
+     ***/
+    public static String target(Instr instr) {
+        return instr.arg(instr.numArgs() - 1);
+    }
+
+    /***
+     * Return the set of registers read by an instr.
+     ***/
+    public static int uses(Instr instr) {
+        if (instr.kind() == Instr.MEM) {
+            if (instr.opcode().startsWith("s")) {   // store
+                return bit(instr.arg(0)) | bit(instr.arg(1));
+            }
+            return bit(instr.arg(1));
+        }
+        if (instr.kind() != Instr.OP) {
+            return 0;
+        }
+
+        String op = instr.opcode();
+        if (op.equals("jal")) {
+            return bit("$sp") | bit("$fp");
+        }
+        if (op.equals("jr")) {
+            return bit(instr.arg(0)) | EXIT;
+        }
+        if (op.equals("syscall")) {
+            return bit("$v0") | bit("$a0");
+        }
+        int set = 0;
+        for (int k = 0; k < instr.numArgs(); k++) {
+            if (isUse(instr, k)) {
+                set |= bit(instr.arg(k));
+            }
+        }
+        return set;
+    }
+
+    /***
+     * Return true if arg k of an OP or MEM instr is read by it (i.e., it
+     * is one of the uses of the instr, or a label or constant in such a
+     * position).
+     ***/
+    public static boolean isUse(Instr instr, int k) {
+        if (instr.kind() == Instr.MEM) {
+            return k == 1 || instr.opcode().startsWith("s");
+        }
+        String op = instr.opcode();
+        if (op.equals("jr")) {
+            return true;
+        }
+        if (isBranch(instr) || isStore(instr) ||
+            instr.numArgs() == 2 && (op.startsWith("mult") ||
+                                     op.startsWith("div"))) {
+            return true;
+        }
+        return k >= 1;
+    }
+
+    /***
+     * Return the set of registers written by an instr.
+     ***/
+    public static int defs(Instr instr) {
+        if (instr.kind() == Instr.MEM) {
+            if (instr.opcode().startsWith("s")) {   // store
+                return 0;
+            }
+            return bit(instr.arg(0));
+        }
+        if (instr.kind() != Instr.OP) {
+            return 0;
+        }
+
+        String op = instr.opcode();
+        if (op.equals("syscall")) {
+            return bit("$v0");
+        }
+        if (op.equals("jal")) {
+            return CALL_DEFS;
+        }
+        if (instr.numArgs() == 0 || op.equals("jr") || isBranch(instr) ||
+            isStore(instr) ||
+            instr.numArgs() == 2 && (op.startsWith("mult") ||
+                                     op.startsWith("div"))) {
+            return 0;
+        }
+        return bit(instr.arg(0));
+    }
+
+    // return true for a store to a label (e.g., sw $t0, _x)
+    private static boolean isStore(Instr instr) {
+        String op = instr.opcode();
+        return op.equals("sw") || op.equals("sb") || op.equals("sh");
+    }
+
+    // **********************************************************************
+    // control flow
+    // **********************************************************************
+
+    /***
+     * Return the successors of each instr (n, the number of instrs, stands
+     * for the end of the function).
+     ***/
+    public static int[][] successors(List<Instr> code) {
+        int n = code.size();
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int k = 0; k < n; k++) {
+            if (code.get(k).kind() == Instr.LABEL) {
+                labels.put(code.get(k).label(), k);
+            }
+        }
+
+        int[][] succs = new int[n][];
+        for (int k = 0; k < n; k++) {
+            Instr instr = code.get(k);
+            if (instr.kind() == Instr.OP && instr.opcode().equals("jr")) {
+                succs[k] = new int[] { n };
+            }
+            else if (isBranch(instr)) {
+                Integer target = labels.get(target(instr));
+                int t = (target == null ? n : target);
+                if (isCondBranch(instr)) {
+                    succs[k] = new int[] { k + 1, t };
+                } else {
+                    succs[k] = new int[] { t };
+                }
+            }
+            else {
+                succs[k] = new int[] { k + 1 };
+            }
+        }
+        return succs;
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.util.*;
 import java_cup.runtime.*;
 
 /****
@@ -8,6 +9,69 @@ import java_cup.runtime.*;
  *   1. the input file containing the bach source
  *   2. the output file into which the MIPS code generated by the compiler
  *      should be printed
+ * They may be preceded by options:
+ *   -flat   run name analysis, type checking and code generation on the
+ *           flattened (struct-of-arrays) AST instead of the tree
+ *   -onepass  do name analysis and type checking together in a single
+ *           walk of the tree (same error messages as the two walks)
+ *   -threads N  type check and generate code for the functions in
+ *           parallel, using N threads (error messages and code are the
+ *           same as with one thread; type checking is not done in parallel
+ *           with -onepass, and nothing is with -flat)
+ *   -regalloc  keep locals and params in registers ($s0 - $s7) instead
+ *           of in the stack frame
+ *   -fold   fold constant expressions and simplify identities such as
+ *           x + 0 and ^^b before generating code
+ *   -inline N  replace the calls of small functions (bodies of at most N
+ *           nodes, not recursive) by copies of their bodies
+ *   -ssa    build the control-flow graph of each function and put it in
+ *           SSA form (and take it out again) before generating code
+ *   -dumpssa  same as -ssa, also printing the control-flow graphs and
+ *           SSA form to stderr
+ *   -sccp   propagate constants through the SSA form (sparse conditional
+ *           constant propagation), removing the arms of ifs and whiles
+ *           that are never executed (implies -ssa)
+ *   -cse    reuse the values of expressions computed earlier in the same
+ *           basic block (local value numbering; implies -ssa)
+ *   -gvn    reuse the values of expressions computed earlier in the
+ *           function (global value numbering; implies -ssa)
+ *   -licm   move loop-invariant expressions out of while loops (implies
+ *           -ssa)
+ *   -ivsr   replace products of loop counters (i * c) by temps that are
+ *           updated by additions, and remove counters then used only by
+ *           the loop test (induction variable strength reduction;
+ *           implies -ssa)
+ *   -unroll N  unroll while loops that count up or down to a bound N
+ *           times (N >= 2), or completely if the number of iterations is
+ *           a small constant (implies -ssa)
+ *   -dce    remove dead code: statements that are never executed, stores
+ *           to locals whose values are never used, and unused locals
+ *           (implies -ssa)
+ *   (the SSA form is only built on the tree, not with -flat)
+ *   -peephole  improve the generated code with the peephole optimizer
+ *           (removes redundant pushes and pops, loads and stores, moves
+ *           and jumps)
+ *   -jumpthread  clean up the branches in the generated code: branch
+ *           straight to the end of a chain of jumps, remove jumps to the
+ *           next instruction and code after jumps that is never reached,
+ *           and turn a conditional branch around a jump into the
+ *           opposite branch
+ *   -rotate  generate while loops with the test at the bottom, guarded
+ *           by one test before the loop
+ *   -strength  multiply and divide by integer literals with shifts and
+ *           adds, or a multiply by a "magic" number, instead of mul and
+ *           div
+ *   -jumps  generate the conditions of ifs and whiles as branches on the
+ *           compared values, and &, | and ^ as jumps, instead of
+ *           computing 0 or 1 and testing it
+ *   -tailcalls  generate "return f(...)" as a jump that reuses the
+ *           frame: back to the start of the body for a call of the
+ *           function itself, or to f, which then returns to the caller
+ *           (if f has no more params than the function)
+ *   -stats  print statistics about the generated code (for each
+ *           function) to stderr
+ *   -time   print the time taken by each pass to stderr (with -flat,
+ *           the number of nodes and the bytes in the node arrays)
  *
  * The program opens the two files, creates a scanner and a parser, and
  * calls the parser.  If the parse is successful, then it will call name
@@ -19,12 +83,140 @@ public class P6 {
     public static void main(String[] args)
         throws IOException // may be thrown by the scanner
     {
-        // check for command-line args
-        if (args.length != 2) {
+        // check for command-line options and args
+        boolean flat = false;
+        boolean time = false;
+        boolean onePass = false;
+        boolean fold = false;
+        boolean ssa = false;
+        boolean dumpSsa = false;
+        boolean sccp = false;
+        boolean dce = false;
+        boolean cse = false;
+        boolean gvn = false;
+        boolean licm = false;
+        boolean ivsr = false;
+        int unroll = 0;
+        int inline = 0;
+        int numThreads = 1;
+        int k = 0;
+        while (k < args.length && args[k].startsWith("-")) {
+            if (args[k].equals("-flat")) {
+                flat = true;
+            }
+            else if (args[k].equals("-onepass")) {
+                onePass = true;
+            }
+            else if (args[k].equals("-threads") && k + 1 < args.length) {
+                k++;
+                try {
+                    numThreads = Integer.parseInt(args[k]);
+                } catch (NumberFormatException ex) {
+                    numThreads = 0;
+                }
+                if (numThreads < 1) {
+                    System.err.println("bad number of threads " + args[k]);
+                    System.exit(-1);
+                }
+            }
+            else if (args[k].equals("-fold")) {
+                fold = true;
+            }
+            else if (args[k].equals("-inline") && k + 1 < args.length) {
+                k++;
+                try {
+                    inline = Integer.parseInt(args[k]);
+                } catch (NumberFormatException ex) {
+                    inline = 0;
+                }
+                if (inline < 1) {
+                    System.err.println("bad inline budget " + args[k]);
+                    System.exit(-1);
+                }
+            }
+            else if (args[k].equals("-ssa")) {
+                ssa = true;
+            }
+            else if (args[k].equals("-dumpssa")) {
+                ssa = true;
+                dumpSsa = true;
+            }
+            else if (args[k].equals("-sccp")) {
+                ssa = true;
+                sccp = true;
+            }
+            else if (args[k].equals("-cse")) {
+                ssa = true;
+                cse = true;
+            }
+            else if (args[k].equals("-gvn")) {
+                ssa = true;
+                gvn = true;
+            }
+            else if (args[k].equals("-licm")) {
+                ssa = true;
+                licm = true;
+            }
+            else if (args[k].equals("-ivsr")) {
+                ssa = true;
+                ivsr = true;
+            }
+            else if (args[k].equals("-unroll") && k + 1 < args.length) {
+                k++;
+                try {
+                    unroll = Integer.parseInt(args[k]);
+                } catch (NumberFormatException ex) {
+                    unroll = 0;
+                }
+                if (unroll < 2) {
+                    System.err.println("bad unroll factor " + args[k]);
+                    System.exit(-1);
+                }
+                ssa = true;
+            }
+            else if (args[k].equals("-dce")) {
+                ssa = true;
+                dce = true;
+            }
+            else if (args[k].equals("-regalloc")) {
+                RegAlloc.enable();
+            }
+            else if (args[k].equals("-peephole")) {
+                Peephole.enable();
+            }
+            else if (args[k].equals("-jumpthread")) {
+                JumpThreading.enable();
+            }
+            else if (args[k].equals("-rotate")) {
+                Codegen.enableLoopRotation();
+            }
+            else if (args[k].equals("-strength")) {
+                Codegen.enableStrengthReduction();
+            }
+            else if (args[k].equals("-jumps")) {
+                Codegen.enableJumpingCode();
+            }
+            else if (args[k].equals("-tailcalls")) {
+                Codegen.enableTailCalls();
+            }
+            else if (args[k].equals("-stats")) {
+                Stats.enable();
+            }
+            else if (args[k].equals("-time")) {
+                time = true;
+            }
+            else {
+                System.err.println("unknown option " + args[k]);
+                System.exit(-1);
+            }
+            k++;
+        }
+        if (args.length - k != 2) {
             System.err.println("please supply name of source (bach) file " +
                                "and name of file for target (MIPS).");
             System.exit(-1);
         }
+        args = Arrays.copyOfRange(args, k, args.length);
 
         // open input file
         FileReader inFile = null;
@@ -58,16 +250,95 @@ public class P6 {
             System.exit(-1);
         }
 
-        ((ProgramNode)root.value).nameAnalysis();  // perform name analysis
+        if (flat) {
+            FlatAst f = FlatAst.fromTree((ProgramNode)root.value);
+            root = null;  // the tree is no longer needed
 
-        if (!ErrMsg.getErr()) {  // if no errors, do type checking
-            ((ProgramNode)root.value).typeCheck();
+            f.nameAnalysis();
+            if (!ErrMsg.getErr()) {
+                f.typeCheck();
+            }
+            if (!ErrMsg.getErr() && fold) {
+                f.fold();
+            }
+            if (!ErrMsg.getErr()) {
+                f.codeGen();
+            }
+            Codegen.p.close();
+            if (Stats.enabled() && !ErrMsg.getErr()) {
+                Stats.report(System.err);
+            }
+            if (time) {
+                System.err.println(f.size() + " AST nodes, " + f.arrayBytes() +
+                                   " bytes in node arrays");
+            }
+            return;
         }
 
-        if (!ErrMsg.getErr()) {  // if no errors, do code generation
-            ((ProgramNode)root.value).codeGen();
-        }        
+        // name analysis, then (if no errors) type checking, then (if no
+        // errors) code generation
+        PassManager passes = new PassManager();
+        NodeCountPass counter = new NodeCountPass();
+        if (time) {
+            passes.add(counter);
+        }
+        if (onePass) {
+            passes.add(new CheckPass());
+        } else {
+            passes.add(new NameAnalysisPass());
+            if (numThreads > 1) {
+                passes.add(new ParallelTypeCheckPass(numThreads));
+            } else {
+                passes.add(new TypeCheckPass());
+            }
+        }
+        if (fold) {
+            passes.add(new FoldPass());
+        }
+        if (inline > 0) {
+            passes.add(new InlinePass(inline));
+        }
+        if (ssa) {
+            passes.add(new CfgPass());
+            passes.add(new SsaPass(dumpSsa));
+            if (sccp) {
+                passes.add(new SccpPass());
+            }
+            if (cse) {
+                passes.add(new CsePass());
+            }
+            if (gvn) {
+                passes.add(new GvnPass());
+            }
+            if (licm) {
+                passes.add(new LicmPass());
+            }
+            if (ivsr) {
+                passes.add(new IvsrPass());
+            }
+            if (unroll > 0) {
+                passes.add(new UnrollPass(unroll));
+            }
+            if (dce) {
+                passes.add(new DcePass());
+            }
+            passes.add(new SsaDestructionPass());
+        }
+        if (numThreads > 1) {
+            passes.add(new ParallelCodeGenPass(numThreads));
+        } else {
+            passes.add(new CodeGenPass());
+        }
+        passes.run((ProgramNode)root.value);
         Codegen.p.close();
+        if (Stats.enabled() && !ErrMsg.getErr()) {
+            Stats.report(System.err);
+        }
+
+        if (time) {
+            System.err.println(counter.count() + " AST nodes");
+            passes.report(System.err);
+        }
 
         return;
     }
@@ -0,0 +1,473 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The PassManager class runs a sequence of passes over the AST of a
+// bach program and keeps track of how much time each pass (or group of
+// fused passes) takes.
+//
+// There are two kinds of passes:
+//     TreePass      a pass that does its own traversal of the tree (like
+//                   nameAnalysis, typeCheck and codeGen)
+//     VisitorPass   a pass that only needs to see every node once, in
+//                   order, and is written as an ASTVisitor
+//
+// Adjacent visitor passes are fused: they are run together in a single
+// traversal of the tree, each visitor getting its pre and post calls for
+// every node in the same order as if it ran by itself.
+//
+// A pass is skipped if an error has been reported by an earlier pass,
+// unless its runAfterErrors method returns true.
+// **********************************************************************
+
+public class PassManager {
+    private List<Pass> passes;
+    private List<String> timingNames;
+    private List<Long> timingNanos;
+    private int numWalks;
+
+    public PassManager() {
+        passes = new ArrayList<Pass>();
+        timingNames = new ArrayList<String>();
+        timingNanos = new ArrayList<Long>();
+        numWalks = 0;
+    }
+
+    /***
+     * Add a pass at the end of the pipeline.
+     ***/
+    public void add(Pass pass) {
+        passes.add(pass);
+    }
+
+    /***
+     * Run all passes (in order) over the tree with the given root.
+     ***/
+    public void run(ProgramNode root) {
+        int k = 0;
+        while (k < passes.size()) {
+            Pass pass = passes.get(k);
+            if (ErrMsg.getErr() && !pass.runAfterErrors()) {
+                k++;
+                continue;
+            }
+
+            if (pass instanceof TreePass) {
+                long start = System.nanoTime();
+                ((TreePass)pass).run(root);
+                record(pass.name(), System.nanoTime() - start);
+                numWalks++;
+                k++;
+                continue;
+            }
+
+            // collect the run of adjacent visitor passes and fuse them
+            List<VisitorPass> group = new ArrayList<VisitorPass>();
+            while (k < passes.size() && passes.get(k) instanceof VisitorPass) {
+                group.add((VisitorPass)passes.get(k));
+                k++;
+            }
+            FusedVisitor fused = new FusedVisitor(group);
+            long start = System.nanoTime();
+            root.accept(fused);
+            record(fused.name(), System.nanoTime() - start);
+            numWalks++;
+        }
+    }
+
+    /***
+     * Return the number of full-tree walks done by the last run.
+     ***/
+    public int numWalks() {
+        return numWalks;
+    }
+
+    /***
+     * Print the time taken by each pass.
+     ***/
+    public void report(PrintStream out) {
+        long total = 0;
+        for (int k = 0; k < timingNames.size(); k++) {
+            out.printf("%-28s %10.3f ms\n", timingNames.get(k),
+                       timingNanos.get(k) / 1e6);
+            total += timingNanos.get(k);
+        }
+        out.printf("%-28s %10.3f ms (%d tree walks)\n", "total",
+                   total / 1e6, numWalks);
+    }
+
+    private void record(String name, long nanos) {
+        timingNames.add(name);
+        timingNanos.add(nanos);
+    }
+}
+
+// **********************************************************************
+// Pass and its subclasses
+// **********************************************************************
+abstract class Pass {
+    /***
+     * every pass has a name (used when reporting timings)
+     ***/
+    abstract public String name();
+
+    /***
+     * by default, a pass does not run once an error has been reported
+     ***/
+    public boolean runAfterErrors() {
+        return false;
+    }
+}
+
+abstract class TreePass extends Pass {
+    abstract public void run(ProgramNode root);
+}
+
+abstract class VisitorPass extends Pass {
+    /***
+     * Return the visitor to use for the next traversal.
+     ***/
+    abstract public ASTVisitor visitor();
+}
+
+// **********************************************************************
+// The standard passes of the compiler
+// **********************************************************************
+class NameAnalysisPass extends TreePass {
+    public String name() {
+        return "name analysis";
+    }
+
+    // as in the original compiler, name analysis is done even if the
+    // scanner reported errors
+    public boolean runAfterErrors() {
+        return true;
+    }
+
+    public void run(ProgramNode root) {
+        root.nameAnalysis();
+    }
+}
+
+class TypeCheckPass extends TreePass {
+    public String name() {
+        return "type check";
+    }
+
+    public void run(ProgramNode root) {
+        root.typeCheck();
+    }
+}
+
+// type checking with the functions checked in parallel
+class ParallelTypeCheckPass extends TreePass {
+    private int numThreads;
+
+    public ParallelTypeCheckPass(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public String name() {
+        return "type check (" + numThreads + " threads)";
+    }
+
+    public void run(ProgramNode root) {
+        root.typeCheck(numThreads);
+    }
+}
+
+// name analysis and type checking done together in a single walk
+class CheckPass extends TreePass {
+    public String name() {
+        return "name analysis + type check";
+    }
+
+    // see NameAnalysisPass.runAfterErrors (the type errors are then
+    // dropped, see ErrMsg.release)
+    public boolean runAfterErrors() {
+        return true;
+    }
+
+    public void run(ProgramNode root) {
+        root.check();
+    }
+}
+
+// constant folding and algebraic simplification (see ExpNode.fold)
+class FoldPass extends TreePass {
+    public String name() {
+        return "constant folding";
+    }
+
+    public void run(ProgramNode root) {
+        root.fold();
+    }
+}
+
+// inline the calls of small functions (see Inline)
+class InlinePass extends TreePass {
+    private int budget;
+
+    public InlinePass(int budget) {
+        this.budget = budget;
+    }
+
+    public String name() {
+        return "inlining";
+    }
+
+    public void run(ProgramNode root) {
+        Inline.run(root, budget);
+    }
+}
+
+// build the control-flow graph of each function (see Cfg)
+class CfgPass extends TreePass {
+    public String name() {
+        return "control-flow graphs";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            func.setCfg(Cfg.build(func));
+        }
+    }
+}
+
+// put each function in SSA form (see Ssa), optionally printing the form
+// to stderr
+class SsaPass extends TreePass {
+    private boolean dump;
+
+    public SsaPass(boolean dump) {
+        this.dump = dump;
+    }
+
+    public String name() {
+        return "SSA construction";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            func.setSsa(Ssa.build(func.cfg()));
+            if (dump) {
+                func.ssa().dump(System.err);
+            }
+        }
+    }
+}
+
+// sparse conditional constant propagation in each function (see Sccp)
+class SccpPass extends TreePass {
+    public String name() {
+        return "constant propagation";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            Sccp.run(func);
+        }
+    }
+}
+
+// common subexpression elimination in each function (see Cse)
+class CsePass extends TreePass {
+    public String name() {
+        return "common subexpressions";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            Cse.run(func);
+        }
+    }
+}
+
+// global value numbering in each function (see Cse)
+class GvnPass extends TreePass {
+    public String name() {
+        return "global value numbering";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            Cse.runGlobal(func);
+        }
+    }
+}
+
+// loop-invariant code motion in each function (see Licm)
+class LicmPass extends TreePass {
+    public String name() {
+        return "loop-invariant code motion";
+    }
+
+    public void run(ProgramNode root) {
+        Set<Sym> writers = Licm.globalWriters(root);
+        for (FuncDeclNode func : root.funcDecls()) {
+            Licm.run(func, writers);
+        }
+    }
+}
+
+// induction variable strength reduction in each function (see Ivsr)
+class IvsrPass extends TreePass {
+    public String name() {
+        return "induction variable strength reduction";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            Ivsr.run(func);
+        }
+    }
+}
+
+// loop unrolling in each function (see Unroll)
+class UnrollPass extends TreePass {
+    private int factor;
+
+    public UnrollPass(int factor) {
+        this.factor = factor;
+    }
+
+    public String name() {
+        return "loop unrolling";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            Unroll.run(func, factor);
+        }
+    }
+}
+
+// dead code elimination in each function (see Dce)
+class DcePass extends TreePass {
+    public String name() {
+        return "dead code elimination";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            Dce.run(func);
+        }
+    }
+}
+
+// take each function out of SSA form (see Ssa.destroy); the control-flow
+// graphs are dropped too
+class SsaDestructionPass extends TreePass {
+    public String name() {
+        return "SSA destruction";
+    }
+
+    public void run(ProgramNode root) {
+        for (FuncDeclNode func : root.funcDecls()) {
+            func.ssa().destroy();
+            func.setSsa(null);
+            func.setCfg(null);
+        }
+    }
+}
+
+class CodeGenPass extends TreePass {
+    public String name() {
+        return "code generation";
+    }
+
+    public void run(ProgramNode root) {
+        root.codeGen();
+    }
+}
+
+// code generation with the functions generated in parallel
+class ParallelCodeGenPass extends TreePass {
+    private int numThreads;
+
+    public ParallelCodeGenPass(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public String name() {
+        return "code generation (" + numThreads + " threads)";
+    }
+
+    public void run(ProgramNode root) {
+        root.codeGen(numThreads);
+    }
+}
+
+// **********************************************************************
+// NodeCountPass
+//    counts the nodes of the tree (reported along with the timings)
+// **********************************************************************
+class NodeCountPass extends VisitorPass {
+    private int count = 0;
+
+    public String name() {
+        return "node count";
+    }
+
+    public boolean runAfterErrors() {
+        return true;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public ASTVisitor visitor() {
+        return new ASTVisitor() {
+            public void pre(ASTnode node) {
+                count++;
+            }
+
+            public void post(ASTnode node) {
+            }
+        };
+    }
+}
+
+// **********************************************************************
+// FusedVisitor
+//    forwards every pre and post call to each of a list of visitors (the
+//    whole walk is timed as one; timing each call would cost more than
+//    the walks that fusing saves)
+// **********************************************************************
+class FusedVisitor implements ASTVisitor {
+    private ASTVisitor[] visitors;
+    private String name;
+
+    public FusedVisitor(List<VisitorPass> passes) {
+        visitors = new ASTVisitor[passes.size()];
+        StringBuilder names = new StringBuilder();
+        for (int k = 0; k < visitors.length; k++) {
+            visitors[k] = passes.get(k).visitor();
+            if (k > 0) {
+                names.append(" + ");
+            }
+            names.append(passes.get(k).name());
+        }
+        name = names.toString();
+    }
+
+    /***
+     * Return the names of the passes, joined with " + ".
+     ***/
+    public String name() {
+        return name;
+    }
+
+    public void pre(ASTnode node) {
+        for (int k = 0; k < visitors.length; k++) {
+            visitors[k].pre(node);
+        }
+    }
+
+    public void post(ASTnode node) {
+        for (int k = 0; k < visitors.length; k++) {
+            visitors[k].post(node);
+        }
+    }
+}
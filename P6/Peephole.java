@@ -0,0 +1,311 @@
+import java.util.*;
+
+// **********************************************************************
+// The Peephole class improves the code for a function by looking at short
+// sequences (windows) of adjacent instructions and replacing them by
+// shorter ones.  Text lines (comments) in a window are kept; a label ends
+// a window, since control can reach the label from elsewhere.
+//
+// The replacements are:
+//     push X; pop Y                    =>  move Y, X   (nothing if X == Y)
+//     sw X, off(B); lw Y, off(B)       =>  sw X, off(B); move Y, X
+//     la R, addr; lw/sw X, 0(R)        =>  lw/sw X, addr  (if R is dead)
+//     op X, ...; move Y, X             =>  op Y, ...      (if X is dead)
+//     move X, Y; op ..., X, ...        =>  op ..., Y, ... (if X is dead;
+//                                          a few instrs may come between)
+//     move X, X                        =>  nothing
+//     subu $sp, $sp, A; subu $sp, $sp, B  =>  subu $sp, $sp, A+B
+//     branch to a label that follows  =>  nothing
+// (a push is "sw X, 0($sp); subu $sp, $sp, 4" and a pop is
+// "lw Y, 4($sp); addu $sp, $sp, 4").  Only temporaries ($t0 - $t9) are
+// ever found to be dead (see Liveness).
+//
+// The replacements are repeated until there are no more; the number of
+// instructions removed is counted as "peephole removed" (see Stats).
+// **********************************************************************
+public class Peephole {
+    // the most instrs between a move and the use of its result
+    private static final int WINDOW = 4;
+
+    private static boolean enabled = false;
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /***
+     * Improve the code for the given function.
+     ***/
+    public static void optimize(FuncCode func) {
+        List<Instr> code = func.code();
+        int before = func.numInstructions();
+        boolean changed = true;
+        while (changed) {
+            Peephole pass = new Peephole(code);
+            changed = pass.run();
+            code = pass.out;
+        }
+        func.code().clear();
+        func.code().addAll(code);
+        func.count("peephole removed", before - func.numInstructions());
+    }
+
+    private List<Instr> code;
+    private Liveness live;
+    private List<Instr> out;
+
+    private Peephole(List<Instr> code) {
+        this.code = code;
+        live = new Liveness(code);
+        out = new ArrayList<Instr>(code.size());
+    }
+
+    // one pass over the code (into out); return true if anything changed
+    private boolean run() {
+        boolean changed = false;
+        int k = 0;
+        while (k < code.size()) {
+            int next = replace(k);
+            if (next < 0) {
+                out.add(code.get(k));
+                k++;
+            } else {
+                changed = true;
+                k = next;
+            }
+        }
+        return changed;
+    }
+
+    // try the replacements for the window starting at instr k; if one is
+    // done, add the result to out and return the index of the first instr
+    // after the window, otherwise return -1
+    private int replace(int k) {
+        Instr instr = code.get(k);
+        if (!instr.isInstruction()) {
+            return -1;
+        }
+
+        // move X, X
+        if (isOp(instr, "move") && instr.arg(0).equals(instr.arg(1))) {
+            return k + 1;
+        }
+
+        // branch to a label that follows
+        if (Liveness.isBranch(instr)) {
+            int j = k + 1;
+            while (j < code.size() && !code.get(j).isInstruction()) {
+                if (code.get(j).kind() == Instr.LABEL &&
+                    code.get(j).label().equals(Liveness.target(instr))) {
+                    return k + 1;
+                }
+                j++;
+            }
+            return -1;
+        }
+
+        int j = next(k);
+        if (j < 0) {
+            return -1;
+        }
+        Instr second = code.get(j);
+
+        // push X; pop Y
+        if (isMem(instr, "sw", Codegen.SP, 0) &&
+            isOp(second, "subu", Codegen.SP, Codegen.SP, "4")) {
+            int m = next(j);
+            int n = (m < 0 ? -1 : next(m));
+            if (n >= 0 && isMem(code.get(m), "lw", Codegen.SP, 4) &&
+                isOp(code.get(n), "addu", Codegen.SP, Codegen.SP, "4")) {
+                copyText(k, n);
+                String x = instr.arg(0);
+                String y = code.get(m).arg(0);
+                if (!x.equals(y)) {
+                    out.add(Instr.op("move", "", y, x));
+                }
+                return n + 1;
+            }
+        }
+
+        // subu $sp, $sp, A; subu $sp, $sp, B
+        if (isOp(instr, "subu") && isOp(second, "subu") &&
+            instr.numArgs() == 3 && second.numArgs() == 3 &&
+            instr.arg(0).equals(Codegen.SP) && instr.arg(1).equals(Codegen.SP) &&
+            second.arg(0).equals(Codegen.SP) && second.arg(1).equals(Codegen.SP) &&
+            isNumber(instr.arg(2)) && isNumber(second.arg(2))) {
+            copyText(k, j);
+            out.add(instr.withArg(2, "" + (Integer.parseInt(instr.arg(2)) +
+                                           Integer.parseInt(second.arg(2)))));
+            return j + 1;
+        }
+
+        // sw X, off(B); lw Y, off(B)
+        if (instr.kind() == Instr.MEM && instr.opcode().equals("sw") &&
+            isMem(second, "lw", instr.arg(1), instr.offset()) &&
+            !instr.arg(1).equals(instr.arg(0))) {
+            out.add(instr);
+            copyText(k, j);
+            if (!second.arg(0).equals(instr.arg(0))) {
+                out.add(Instr.op("move", "", second.arg(0), instr.arg(0)));
+            }
+            return j + 1;
+        }
+
+        // la R, addr; lw/sw X, 0(R)
+        if (instr.opcode().equals("la") && Liveness.isTemp(instr.arg(0)) &&
+            (isMem(second, "lw", instr.arg(0), 0) ||
+             isMem(second, "sw", instr.arg(0), 0)) &&
+            (!live.isLiveOut(j, instr.arg(0)) ||
+             second.opcode().equals("lw") &&
+             second.arg(0).equals(instr.arg(0))) &&
+            !(second.opcode().equals("sw") &&
+              second.arg(0).equals(instr.arg(0)))) {
+            copyText(k, j);
+            if (instr.kind() == Instr.MEM) {
+                out.add(Instr.mem(second.opcode(), second.arg(0),
+                                  instr.arg(1), instr.offset(),
+                                  second.comment()));
+            } else {
+                out.add(Instr.op(second.opcode(), second.comment(),
+                                 second.arg(0), instr.arg(1)));
+            }
+            return j + 1;
+        }
+
+        // op X, ...; move Y, X
+        if (isOp(second, "move") && writesOnly(instr, second.arg(1)) &&
+            Liveness.isTemp(second.arg(1)) &&
+            !live.isLiveOut(j, second.arg(1))) {
+            copyText(k, j);
+            out.add(instr.withArg(0, second.arg(0)));
+            return j + 1;
+        }
+
+        // move X, Y; ...; op ..., X, ...  (the instrs in between, at most
+        // WINDOW of them, do not branch, use X or change X or Y)
+        if (isOp(instr, "move") && Liveness.isTemp(instr.arg(0))) {
+            String x = instr.arg(0);
+            int changes = Liveness.bit(x) | Liveness.bit(instr.arg(1));
+            int m = j;
+            for (int steps = 0; m >= 0; steps++) {
+                Instr between = code.get(m);
+                if ((Liveness.uses(between) & Liveness.bit(x)) != 0) {
+                    break;
+                }
+                if (steps == WINDOW || Liveness.isBranch(between) ||
+                    between.opcode().equals("jr") ||
+                    (Liveness.defs(between) & changes) != 0) {
+                    m = -1;
+                } else {
+                    m = next(m);
+                }
+            }
+            Instr replaced = (m < 0 ? null : withUse(code.get(m), x, instr.arg(1)));
+            if (replaced != null &&
+                (!live.isLiveOut(m, x) ||
+                 (Liveness.defs(code.get(m)) & Liveness.bit(x)) != 0)) {
+                for (int i = k + 1; i < m; i++) {
+                    out.add(code.get(i));
+                }
+                out.add(replaced);
+                return m + 1;
+            }
+        }
+
+        return -1;
+    }
+
+    // return instr with the args that read register from replaced by
+    // register to, or null if there are none
+    private static Instr withUse(Instr instr, String from, String to) {
+        Instr replaced = null;
+        for (int k = 0; k < instr.numArgs(); k++) {
+            if (instr.arg(k).equals(from) && Liveness.isUse(instr, k)) {
+                replaced = (replaced == null ? instr : replaced).withArg(k, to);
+            }
+        }
+        return replaced;
+    }
+
+    // return the index of the next instruction after instr k, skipping
+    // text lines, or -1 if there is none or there is a label before it
+    private int next(int k) {
+        for (int j = k + 1; j < code.size(); j++) {
+            Instr instr = code.get(j);
+            if (instr.kind() == Instr.LABEL) {
+                return -1;
+            }
+            if (instr.isInstruction()) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    // add the text lines between instrs k and j to out
+    private void copyText(int k, int j) {
+        for (int m = k + 1; m < j; m++) {
+            if (code.get(m).kind() == Instr.TEXT) {
+                out.add(code.get(m));
+            }
+        }
+    }
+
+    // return true if instr is an OP instr with the given opcode and args
+    private static boolean isOp(Instr instr, String opcode, String... args) {
+        if (instr.kind() != Instr.OP || !instr.opcode().equals(opcode)) {
+            return false;
+        }
+        if (args.length == 0) {
+            return true;
+        }
+        if (instr.numArgs() != args.length) {
+            return false;
+        }
+        for (int k = 0; k < args.length; k++) {
+            if (!instr.arg(k).equals(args[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // return true if arg is a (non-negative) number
+    private static boolean isNumber(String arg) {
+        if (arg.length() == 0 || arg.length() > 9) {
+            return false;
+        }
+        for (int k = 0; k < arg.length(); k++) {
+            if (!Character.isDigit(arg.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // return true if instr is:  opcode X, offset(base)
+    private static boolean isMem(Instr instr, String opcode, String base,
+                                 int offset) {
+        return instr.kind() == Instr.MEM && instr.opcode().equals(opcode) &&
+               instr.arg(1).equals(base) && instr.offset() == offset;
+    }
+
+    // return true if instr just computes a value into register reg (its
+    // first arg), so that it could compute it into another register
+    private static boolean writesOnly(Instr instr, String reg) {
+        if (!instr.isInstruction() || instr.numArgs() == 0 ||
+            Liveness.defs(instr) != Liveness.bit(reg) ||
+            !instr.arg(0).equals(reg)) {
+            return false;
+        }
+        if (instr.kind() == Instr.MEM) {
+            return instr.opcode().equals("lw") || instr.opcode().equals("la");
+        }
+        return !instr.opcode().equals("syscall") &&
+               !instr.opcode().equals("jal");
+    }
+}
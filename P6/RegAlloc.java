@@ -0,0 +1,334 @@
+import java.util.*;
+
+// **********************************************************************
+// The RegAlloc class keeps the scalar locals and params of a function in
+// the callee-saved registers $s0 - $s7 instead of in its frame.
+//
+// Locals and params are only accessed by loads and stores at a fixed
+// offset from $fp (offsets 0 and -4 hold the saved $ra and $fp), so here
+// each such offset is a variable.  Liveness of the variables is found as
+// for registers (see Liveness), and gives each variable a live interval:
+// the range of instrs (in code order) from the first to the last one at
+// which it is live or used.  Linear scan then goes through the intervals
+// in order of their start, giving each one a free register; when there
+// is none, the interval that ends last (the new one or one of those
+// holding a register) is spilled, i.e., its variable stays in the frame.
+// A variable that is used too little to pay for saving and restoring a
+// register (see MIN_WEIGHT) is not given one either; uses in loops count
+// LOOP_WEIGHT times more for each enclosing loop.
+//
+// Loads and stores of the variables that got a register become moves.
+// At the start of the body, the registers used are saved below the
+// locals and the variables live there (the params) are loaded into
+// their registers; the registers are restored before $ra is loaded (at
+// the exit label, and in the exit code of a tail call, see
+// Codegen.genTailCall).  $s registers survive calls, so nothing has to
+// be done around calls.
+// **********************************************************************
+public class RegAlloc {
+    private static final int NUM_REGS = 8;   // $s0 - $s7
+    // a register costs a save and a restore (and the load of a param),
+    // so a variable with fewer (weighted) uses is left in the frame
+    private static final int MIN_WEIGHT = 5;
+    private static final int LOOP_WEIGHT = 10;
+    private static final int MAX_DEPTH = 3;  // loop depth that is counted
+
+    private static boolean enabled = false;
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /***
+     * Allocate registers for the variables of the given function.
+     ***/
+    public static void allocate(FuncCode func) {
+        new RegAlloc(func).run();
+    }
+
+    private FuncCode func;
+    private List<Instr> code;
+    private HashMap<Integer, Integer> vars;  // offset -> variable number
+    private List<Integer> offsets;           // variable number -> offset
+    private BitSet[] liveIn;
+    private BitSet[] liveOut;
+
+    private RegAlloc(FuncCode func) {
+        this.func = func;
+        code = func.code();
+        vars = new HashMap<Integer, Integer>();
+        offsets = new ArrayList<Integer>();
+    }
+
+    private void run() {
+        findVars();
+        if (offsets.isEmpty()) {
+            return;
+        }
+        findLiveness();
+
+        // live interval of each variable
+        int numVars = offsets.size();
+        int[] start = new int[numVars];
+        int[] end = new int[numVars];
+        Arrays.fill(start, -1);
+        for (int k = 0; k < code.size(); k++) {
+            BitSet live = (BitSet)liveIn[k].clone();
+            live.or(liveOut[k]);
+            int v = var(code.get(k));
+            if (v >= 0) {
+                live.set(v);
+            }
+            for (v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+                if (start[v] < 0) {
+                    start[v] = k;
+                }
+                end[v] = k;
+            }
+        }
+
+        // weight of each variable: its uses, counting the ones in loops
+        // more (the back edges of the loops are the backward branches)
+        int[] depth = new int[code.size() + 1];
+        HashMap<String, Integer> labels = new HashMap<String, Integer>();
+        for (int k = 0; k < code.size(); k++) {
+            Instr instr = code.get(k);
+            if (instr.kind() == Instr.LABEL) {
+                labels.put(instr.label(), k);
+            }
+            else if (Liveness.isBranch(instr)) {
+                Integer target = labels.get(Liveness.target(instr));
+                if (target != null) {
+                    depth[target]++;
+                    depth[k + 1]--;
+                }
+            }
+        }
+        int[] weight = new int[numVars];
+        int d = 0;
+        for (int k = 0; k < code.size(); k++) {
+            d += depth[k];
+            int v = var(code.get(k));
+            if (v >= 0) {
+                int w = 1;
+                for (int n = 0; n < Math.min(d, MAX_DEPTH); n++) {
+                    w *= LOOP_WEIGHT;
+                }
+                weight[v] += w;
+            }
+        }
+        for (int v = 0; v < numVars; v++) {
+            if (weight[v] < MIN_WEIGHT) {
+                start[v] = -1;   // not worth a register
+            }
+        }
+
+        String[] regs = linearScan(start, end);
+
+        // registers used, in order
+        boolean[] used = new boolean[NUM_REGS];
+        int numAllocated = 0;
+        for (int v = 0; v < numVars; v++) {
+            if (regs[v] != null) {
+                used[reg(regs[v])] = true;
+                numAllocated++;
+            }
+        }
+        List<String> saved = new ArrayList<String>();
+        for (int r = 0; r < NUM_REGS; r++) {
+            if (used[r]) {
+                saved.add("$s" + r);
+            }
+        }
+
+        rewrite(regs, saved);
+        func.count("regalloc vars", numAllocated);
+        func.count("regalloc spilled", numVars - numAllocated);
+    }
+
+    // number the variables, in the order of their first use
+    private void findVars() {
+        for (Instr instr : code) {
+            if (isVarAccess(instr) && !vars.containsKey(instr.offset())) {
+                vars.put(instr.offset(), offsets.size());
+                offsets.add(instr.offset());
+            }
+        }
+    }
+
+    // return true if instr is a load or store of a variable
+    private static boolean isVarAccess(Instr instr) {
+        return instr.kind() == Instr.MEM && instr.arg(1).equals(Codegen.FP) &&
+               (instr.offset() >= 4 || instr.offset() <= -8) &&
+               (instr.opcode().equals("lw") || instr.opcode().equals("sw"));
+    }
+
+    // return the variable loaded or stored by instr, or -1 if none
+    private int var(Instr instr) {
+        return isVarAccess(instr) ? vars.get(instr.offset()) : -1;
+    }
+
+    // find the variables live before and after each instr (iterating
+    // backwards until nothing changes; see Liveness)
+    private void findLiveness() {
+        int n = code.size();
+        int[][] succs = Liveness.successors(code);
+        liveIn = new BitSet[n];
+        liveOut = new BitSet[n];
+        for (int k = 0; k < n; k++) {
+            liveIn[k] = new BitSet();
+            liveOut[k] = new BitSet();
+        }
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = n - 1; k >= 0; k--) {
+                BitSet out = new BitSet();
+                for (int s : succs[k]) {
+                    if (s < n) {   // no variable is live at the end
+                        out.or(liveIn[s]);
+                    }
+                }
+                BitSet in = (BitSet)out.clone();
+                Instr instr = code.get(k);
+                int v = var(instr);
+                if (v >= 0) {
+                    if (instr.opcode().equals("lw")) {
+                        in.set(v);
+                    } else {
+                        in.clear(v);
+                    }
+                }
+                if (!out.equals(liveOut[k]) || !in.equals(liveIn[k])) {
+                    liveOut[k] = out;
+                    liveIn[k] = in;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // assign registers to the intervals; return the register of each
+    // variable (null for a spilled one)
+    private String[] linearScan(final int[] start, final int[] end) {
+        int numVars = start.length;
+        String[] regs = new String[numVars];
+        Integer[] order = new Integer[numVars];
+        for (int v = 0; v < numVars; v++) {
+            order[v] = v;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer v1, Integer v2) {
+                return start[v1] != start[v2] ? start[v1] - start[v2] : v1 - v2;
+            }
+        });
+
+        boolean[] free = new boolean[NUM_REGS];
+        Arrays.fill(free, true);
+        List<Integer> active = new ArrayList<Integer>();  // by end
+        for (int v : order) {
+            if (start[v] < 0) {
+                continue;   // not to be allocated
+            }
+
+            // free the registers of the intervals that have ended
+            Iterator<Integer> it = active.iterator();
+            while (it.hasNext()) {
+                int a = it.next();
+                if (end[a] >= start[v]) {
+                    break;
+                }
+                free[reg(regs[a])] = true;
+                it.remove();
+            }
+
+            int r = 0;
+            while (r < NUM_REGS && !free[r]) {
+                r++;
+            }
+            if (r < NUM_REGS) {
+                free[r] = false;
+                regs[v] = "$s" + r;
+            } else {
+                // spill the interval that ends last
+                int last = active.get(active.size() - 1);
+                if (end[last] <= end[v]) {
+                    continue;   // v is spilled
+                }
+                regs[v] = regs[last];
+                regs[last] = null;
+                active.remove(active.size() - 1);
+            }
+            int pos = 0;
+            while (pos < active.size() && end[active.get(pos)] <= end[v]) {
+                pos++;
+            }
+            active.add(pos, v);
+        }
+        return regs;
+    }
+
+    // return the number (0 - 7) of the given $s register
+    private static int reg(String name) {
+        return Liveness.number(name) - Liveness.number("$s0");
+    }
+
+    // replace the loads and stores of allocated variables by moves, and
+    // add the entry and exit code
+    private void rewrite(String[] regs, List<String> saved) {
+        boolean isMain = func.label().equals("main");   // never returns
+        int bodyStart = func.bodyStart();
+        int saveOffset = -8 - func.localsSize();  // first free word
+        List<Instr> out = new ArrayList<Instr>(code.size() + 4 * saved.size());
+
+        for (int k = 0; k < code.size(); k++) {
+            Instr instr = code.get(k);
+            if (k == bodyStart) {
+                if (!isMain && !saved.isEmpty()) {
+                    out.add(Instr.op("subu", "SAVE REGISTERS", Codegen.SP,
+                                     Codegen.SP, "" + 4 * saved.size()));
+                    for (int r = 0; r < saved.size(); r++) {
+                        out.add(Instr.mem("sw", saved.get(r), Codegen.FP,
+                                          saveOffset - 4 * r, ""));
+                    }
+                }
+                BitSet live = liveIn[k];
+                for (int v = live.nextSetBit(0); v >= 0;
+                     v = live.nextSetBit(v + 1)) {
+                    if (regs[v] != null) {
+                        out.add(Instr.mem("lw", regs[v], Codegen.FP,
+                                          offsets.get(v), ""));
+                    }
+                }
+            }
+
+            if (instr.kind() == Instr.MEM && instr.opcode().equals("lw") &&
+                instr.arg(0).equals(Codegen.RA) && !isMain) {
+                for (int r = 0; r < saved.size(); r++) {
+                    out.add(Instr.mem("lw", saved.get(r), Codegen.FP,
+                                      saveOffset - 4 * r, "RESTORE"));
+                }
+            }
+
+            int v = var(instr);
+            if (v >= 0 && regs[v] != null) {
+                if (instr.opcode().equals("lw")) {
+                    out.add(Instr.op("move", instr.comment(), instr.arg(0),
+                                     regs[v]));
+                } else {
+                    out.add(Instr.op("move", instr.comment(), regs[v],
+                                     instr.arg(0)));
+                }
+            } else {
+                out.add(instr);
+            }
+        }
+        code.clear();
+        code.addAll(out);
+    }
+}
@@ -0,0 +1,400 @@
+import java.util.*;
+
+// **********************************************************************
+// The Sccp class does sparse conditional constant propagation (Wegman and
+// Zadeck, "Constant Propagation with Conditional Branches") on a function
+// in SSA form (see Ssa).
+//
+// Each value starts out unknown (TOP: no definition reaching it has been
+// found to be executed yet) and can only move down the lattice, to a
+// constant and then to BOTTOM (not a constant).  Only the blocks that can
+// be reached along executable edges are evaluated, and a phi only meets
+// the operands coming along executable edges: a branch whose condition
+// is a constant only makes one of its edges executable.  The entry
+// values, reads, calls, globals and structs are all BOTTOM.
+//
+// Blocks are evaluated from a worklist: a block is (re)evaluated when an
+// edge into it becomes executable, or when a value it uses moves down.
+//
+// Then the uses of the values found to be constants are replaced by
+// literals (see IdNode.setConstant and ExpNode.fold), and the arms of the
+// if, if-else and while statements that can never be executed are
+// removed (keeping the condition if it has effects or may trap).  An
+// operator that traps (see ExpNode.canTrap) has no constant value.  The function is
+// then put back in SSA form, since its control-flow graph has changed.
+// The numbers of uses replaced and of arms removed are counted as "sccp
+// constants" and "sccp branches" (see Stats).
+// **********************************************************************
+public class Sccp {
+    // the lattice: a constant is an int, TOP and BOTTOM are outside the
+    // range of ints
+    private static final long TOP = Long.MAX_VALUE;
+    private static final long BOTTOM = Long.MIN_VALUE;
+
+    /***
+     * Propagate constants in the given function (in SSA form).
+     ***/
+    public static void run(FuncDeclNode func) {
+        Sccp sccp = new Sccp(func.ssa());
+        sccp.propagate();
+        int constants = sccp.replaceUses();
+        func.fold();
+        int branches = sccp.removeBranches(func.body().stmtList());
+        if (constants > 0 || branches > 0) {
+            func.setCfg(Cfg.build(func));
+            func.setSsa(Ssa.build(func.cfg()));
+        }
+        func.count("sccp constants", constants);
+        func.count("sccp branches", branches);
+    }
+
+    private Ssa ssa;
+    private Cfg cfg;
+    private long[] lattice;            // value number -> lattice element
+    private boolean[] executable;      // block id -> executable?
+    private boolean[][] edges;         // block id, succ -> executable?
+    private ArrayDeque<Block> work;
+    private boolean[] queued;          // block id -> in work?
+    private Block current;             // the block being evaluated
+
+    private Sccp(Ssa ssa) {
+        this.ssa = ssa;
+        cfg = ssa.cfg();
+        int numBlocks = cfg.blocks().size();
+        lattice = new long[ssa.values().size()];
+        for (SsaValue value : ssa.values()) {
+            lattice[value.num()] = (value.kind() == SsaValue.ENTRY ? BOTTOM : TOP);
+        }
+        executable = new boolean[numBlocks];
+        edges = new boolean[numBlocks][];
+        for (Block b : cfg.blocks()) {
+            edges[b.id()] = new boolean[b.succs().size()];
+        }
+        work = new ArrayDeque<Block>();
+        queued = new boolean[numBlocks];
+    }
+
+    // **********************************************************************
+    // propagation
+    // **********************************************************************
+
+    private void propagate() {
+        executable[cfg.entry().id()] = true;
+        enqueue(cfg.entry());
+        while (!work.isEmpty()) {
+            current = work.remove();
+            queued[current.id()] = false;
+            evaluate(current);
+        }
+        current = null;
+    }
+
+    private void enqueue(Block b) {
+        if (executable[b.id()] && !queued[b.id()] && b != current) {
+            queued[b.id()] = true;
+            work.add(b);
+        }
+    }
+
+    // evaluate the phis, statements and condition of block b
+    private void evaluate(Block b) {
+        for (SsaValue phi : b.phis()) {
+            long value = TOP;
+            for (int k = 0; k < b.preds().size(); k++) {
+                Block p = b.preds().get(k);
+                if (edges[p.id()][p.succs().indexOf(b)]) {
+                    value = meet(value, lattice[phi.operands()[k].num()]);
+                }
+            }
+            set(phi, value);
+        }
+
+        for (StmtNode stmt : b.stmts()) {
+            evaluate(stmt);
+        }
+
+        if (b.cond() == null) {
+            for (int k = 0; k < b.succs().size(); k++) {
+                markEdge(b, k);
+            }
+            return;
+        }
+        long cond = evaluate(b.cond());
+        if (cond == BOTTOM || cond == 1) {
+            markEdge(b, 0);
+        }
+        if (cond == BOTTOM || cond == 0) {
+            markEdge(b, 1);
+        }
+    }
+
+    // make the edge from b to its successor k executable
+    private void markEdge(Block b, int k) {
+        if (edges[b.id()][k]) {
+            return;
+        }
+        edges[b.id()][k] = true;
+        Block s = b.succs().get(k);
+        if (!executable[s.id()]) {
+            executable[s.id()] = true;
+            enqueue(s);
+        }
+        else if (!s.phis().isEmpty()) {
+            enqueue(s);   // a phi has a new operand
+        }
+    }
+
+    // move value down to the given element (if that is lower), and if it
+    // changes, evaluate its uses again
+    private void set(SsaValue value, long element) {
+        long old = lattice[value.num()];
+        element = meet(old, element);
+        if (element == old) {
+            return;
+        }
+        lattice[value.num()] = element;
+        for (Block b : value.useBlocks()) {
+            enqueue(b);
+        }
+        for (SsaValue phi : value.phiUses()) {
+            enqueue(phi.block());
+        }
+    }
+
+    private static long meet(long a, long b) {
+        if (a == TOP) {
+            return b;
+        }
+        if (b == TOP || a == b) {
+            return a;
+        }
+        return BOTTOM;
+    }
+
+    private void evaluate(StmtNode stmt) {
+        if (stmt instanceof AssignStmtNode) {
+            evaluate(((AssignStmtNode)stmt).assign());
+        }
+        else if (stmt instanceof PostIncStmtNode ||
+                 stmt instanceof PostDecStmtNode) {
+            SsaValue def = ssa.defined(stmt);
+            if (def != null) {
+                boolean inc = stmt instanceof PostIncStmtNode;
+                long old = evaluate(inc ? ((PostIncStmtNode)stmt).exp() :
+                                          ((PostDecStmtNode)stmt).exp());
+                long value = old + (inc ? 1 : -1);
+                if (old == TOP || old == BOTTOM || value != (int)value) {
+                    set(def, old == TOP ? TOP : BOTTOM);   // add traps
+                } else {
+                    set(def, value);
+                }
+            }
+        }
+        else if (stmt instanceof ReadStmtNode) {
+            SsaValue def = ssa.defined(stmt);
+            if (def != null) {
+                set(def, BOTTOM);
+            }
+        }
+        else if (stmt instanceof WriteStmtNode) {
+            evaluate(((WriteStmtNode)stmt).exp());
+        }
+        else if (stmt instanceof CallStmtNode) {
+            evaluate(((CallStmtNode)stmt).call());
+        }
+        else if (stmt instanceof ReturnStmtNode) {
+            ExpNode exp = ((ReturnStmtNode)stmt).exp();
+            if (exp != null) {
+                evaluate(exp);
+            }
+        }
+    }
+
+    // return the lattice element for the value of exp, setting the values
+    // defined in it
+    private long evaluate(ExpNode exp) {
+        Integer lit = exp.litValue();
+        if (lit != null) {
+            return lit;
+        }
+        if (exp instanceof IdNode) {
+            SsaValue value = ssa.value((IdNode)exp);
+            return value == null ? BOTTOM : lattice[value.num()];
+        }
+        if (exp instanceof AssignExpNode) {
+            AssignExpNode assign = (AssignExpNode)exp;
+            long value = evaluate(assign.exp());
+            SsaValue def = ssa.defined(assign);
+            if (def != null) {
+                set(def, value);
+            }
+            return value;
+        }
+        if (exp instanceof CallExpNode) {
+            ExpListNode args = ((CallExpNode)exp).expList();
+            if (args != null) {
+                for (ExpNode arg : args.exps()) {
+                    evaluate(arg);
+                }
+            }
+            return BOTTOM;
+        }
+        if (exp instanceof NotNode || exp instanceof UnaryMinusNode) {
+            long value = evaluate(((UnaryExpNode)exp).exp());
+            if (value == TOP || value == BOTTOM) {
+                return value;
+            }
+            if (exp instanceof UnaryMinusNode && value == Integer.MIN_VALUE) {
+                return BOTTOM;   // neg traps
+            }
+            return exp instanceof NotNode ? 1 - value : -value;
+        }
+        if (exp instanceof BinaryExpNode) {
+            BinaryExpNode binary = (BinaryExpNode)exp;
+            long v1 = evaluate(binary.exp1());
+            // the right operand of & and | is not evaluated if the left
+            // one decides the result (and defines no values in any case)
+            if (exp instanceof AndNode && v1 == 0 ||
+                exp instanceof OrNode && v1 == 1) {
+                return v1;
+            }
+            long v2 = evaluate(binary.exp2());
+            if (exp instanceof AndNode && v2 == 0 ||
+                exp instanceof OrNode && v2 == 1) {
+                return v2;
+            }
+            if (v1 == BOTTOM || v2 == BOTTOM) {
+                return BOTTOM;
+            }
+            if (v1 == TOP || v2 == TOP) {
+                return TOP;
+            }
+            Integer value = binary.eval((int)v1, (int)v2);
+            return value == null ? BOTTOM : value;   // it traps (see eval)
+        }
+        return BOTTOM;   // strings and colon-accesses
+    }
+
+    // **********************************************************************
+    // rewriting
+    // **********************************************************************
+
+    // mark the uses of the constant values to be replaced by literals (not
+    // the IDs of ++ and --, which are also definitions); return the number
+    // of uses marked
+    private int replaceUses() {
+        Set<IdNode> defined = Collections.newSetFromMap(
+                                  new IdentityHashMap<IdNode, Boolean>());
+        for (SsaValue value : ssa.values()) {
+            if (value.kind() == SsaValue.INC) {
+                defined.add((IdNode)((PostIncStmtNode)value.node()).exp());
+            }
+            else if (value.kind() == SsaValue.DEC) {
+                defined.add((IdNode)((PostDecStmtNode)value.node()).exp());
+            }
+        }
+
+        int count = 0;
+        for (SsaValue value : ssa.values()) {
+            long element = lattice[value.num()];
+            if (element == TOP || element == BOTTOM) {
+                continue;
+            }
+            for (int k = 0; k < value.uses().size(); k++) {
+                IdNode use = value.uses().get(k);
+                if (executable[value.useBlocks().get(k).id()] &&
+                    !defined.contains(use)) {
+                    use.setConstant((int)element);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // remove the arms of the ifs, if-elses and whiles in list (and the
+    // lists nested in it) that are never executed; return the number of
+    // arms removed
+    private int removeBranches(StmtListNode list) {
+        IdentityHashMap<StmtNode, Block> blocks =
+            new IdentityHashMap<StmtNode, Block>();
+        for (Block b : cfg.blocks()) {
+            if (b.branch() != null && executable[b.id()]) {
+                blocks.put(b.branch(), b);
+            }
+        }
+        return removeBranches(list, blocks);
+    }
+
+    private int removeBranches(StmtListNode list,
+                               IdentityHashMap<StmtNode, Block> blocks) {
+        int count = 0;
+        List<StmtNode> stmts = list.stmts();
+        List<StmtNode> kept = new ArrayList<StmtNode>(stmts.size());
+        for (StmtNode stmt : stmts) {
+            Block b = blocks.get(stmt);
+            boolean taken = (b != null && edges[b.id()][0]);
+            boolean notTaken = (b != null && edges[b.id()][1]);
+            StmtListNode arm = null;   // to be put in place of stmt
+            if (stmt instanceof IfStmtNode) {
+                IfStmtNode ifStmt = (IfStmtNode)stmt;
+                boolean effects = mustKeep(ifStmt.exp());
+                if (b != null && !taken && notTaken) {
+                    count++;
+                    if (!effects) {
+                        continue;
+                    }
+                    ifStmt.stmtList().stmts().clear();
+                }
+                else if (taken && !notTaken && !effects) {
+                    count++;
+                    arm = ifStmt.stmtList();
+                }
+                else {
+                    count += removeBranches(ifStmt.stmtList(), blocks);
+                }
+            }
+            else if (stmt instanceof IfElseStmtNode) {
+                IfElseStmtNode ifStmt = (IfElseStmtNode)stmt;
+                if (taken != notTaken && !mustKeep(ifStmt.exp())) {
+                    count++;
+                    arm = (taken ? ifStmt.thenStmtList() :
+                                   ifStmt.elseStmtList());
+                } else {
+                    count += removeBranches(ifStmt.thenStmtList(), blocks);
+                    count += removeBranches(ifStmt.elseStmtList(), blocks);
+                }
+            }
+            else if (stmt instanceof WhileStmtNode) {
+                WhileStmtNode whileStmt = (WhileStmtNode)stmt;
+                if (b != null && !taken && notTaken) {
+                    count++;
+                    if (!mustKeep(whileStmt.exp())) {
+                        continue;
+                    }
+                    whileStmt.stmtList().stmts().clear();
+                } else {
+                    count += removeBranches(whileStmt.stmtList(), blocks);
+                }
+            }
+
+            if (arm == null) {
+                kept.add(stmt);
+            } else {
+                count += removeBranches(arm, blocks);
+                kept.addAll(arm.stmts());
+            }
+        }
+        if (kept.size() != stmts.size() || count > 0) {
+            stmts.clear();
+            stmts.addAll(kept);
+        }
+        return count;
+    }
+
+    // return true if the condition of a branch must be kept even if it
+    // is known which way the branch goes: it has effects or may trap
+    private static boolean mustKeep(ExpNode cond) {
+        return cond.hasEffects() || cond.canTrap();
+    }
+}
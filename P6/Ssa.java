@@ -0,0 +1,659 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Ssa class is the static single assignment form of a function.
+// Each definition of one of its variables (the scalar locals and params
+// of the function) defines a new value (see SsaValue), and each use of
+// a variable refers to the one value that reaches it.  At a join of the
+// control-flow graph (see Cfg) where different values of a variable
+// meet, a phi at the start of the block defines a new value from the
+// values coming from each predecessor.
+//
+// The form is kept beside the tree, which is not renamed: it maps each
+// use of a variable (an IdNode) to its value, and each definition (an
+// assignment, ++, -- or read) to the value it defines.  The values of
+// the variables on entry to the function (the params, and the undefined
+// values of the locals) are defined in the entry block.
+//
+// Phis are placed using dominance frontiers (Cytron et al.): a variable
+// defined in block B needs a phi in each block of the iterated dominance
+// frontier of B.  Only the variables that are used in some block before
+// being defined in it get phis (semi-pruned SSA form).  The values are
+// then found by a walk of the dominator tree that keeps the current
+// value of each variable on a stack.
+//
+// A variable that is assigned in the right operand of & or | (which may
+// not be evaluated) is not in SSA form; neither are globals (which calls
+// may change) and structs.  The statements in unreachable blocks have
+// no values.
+//
+// The passes that use the form keep it "conventional": the values of a
+// variable are never live at the same time, since uses are only replaced
+// by constants or by new variables.  So all the values of a variable can
+// stay in its own location, the phis are no-ops, and going back out of
+// SSA form (see destroy) just drops the form.
+// **********************************************************************
+public class Ssa {
+    private Cfg cfg;
+    private List<Sym> vars;
+    private List<String> names;
+    private HashMap<Sym, Integer> varNums;
+    private List<SsaValue> values;
+    private IdentityHashMap<IdNode, SsaValue> uses;   // use -> its value
+    private IdentityHashMap<ASTnode, SsaValue> defs;  // def -> value defined
+    private int[] versions;  // number of values of each variable so far
+    private int numPhis;
+
+    /***
+     * Put the function whose control-flow graph is given in SSA form.
+     ***/
+    public static Ssa build(Cfg cfg) {
+        Ssa ssa = new Ssa(cfg);
+        ssa.findVars();
+        ssa.placePhis();
+        ssa.findValues();
+        return ssa;
+    }
+
+    private Ssa(Cfg cfg) {
+        this.cfg = cfg;
+        vars = new ArrayList<Sym>();
+        names = new ArrayList<String>();
+        varNums = new HashMap<Sym, Integer>();
+        values = new ArrayList<SsaValue>();
+        uses = new IdentityHashMap<IdNode, SsaValue>();
+        defs = new IdentityHashMap<ASTnode, SsaValue>();
+    }
+
+    public Cfg cfg() {
+        return cfg;
+    }
+
+    /***
+     * Return the variables in SSA form.
+     ***/
+    public List<Sym> vars() {
+        return vars;
+    }
+
+    /***
+     * Return true if the given symbol is one of the variables in SSA form.
+     ***/
+    public boolean isVar(Sym sym) {
+        return varNums.containsKey(sym);
+    }
+
+    /***
+     * Return all the values, in the order they were found (the entry
+     * values first, then in a preorder walk of the dominator tree).
+     ***/
+    public List<SsaValue> values() {
+        return values;
+    }
+
+    /***
+     * Return the value of a use of a variable, or null if id is not a use
+     * of a variable in SSA form in a reachable block.
+     ***/
+    public SsaValue value(IdNode id) {
+        return uses.get(id);
+    }
+
+    /***
+     * Return the value defined by an AssignExpNode, PostIncStmtNode,
+     * PostDecStmtNode or ReadStmtNode, or null if it does not define a
+     * variable in SSA form in a reachable block.
+     ***/
+    public SsaValue defined(ASTnode node) {
+        return defs.get(node);
+    }
+
+    public int numPhis() {
+        return numPhis;
+    }
+
+    /***
+     * Take the function out of SSA form (see above): remove the phis and
+     * the maps from uses and definitions to values.
+     ***/
+    public void destroy() {
+        for (Block b : cfg.blocks()) {
+            b.phis().clear();
+        }
+        uses.clear();
+        defs.clear();
+        values.clear();
+    }
+
+    // **********************************************************************
+    // walking the uses and definitions of variables
+    // **********************************************************************
+
+    // what to do at each use and definition of a local or param, in the
+    // order in which they are evaluated (see walk; also used by the passes
+    // on the SSA form)
+    interface Visitor {
+        // id is used
+        void use(IdNode id);
+
+        // id is defined by node (an AssignExpNode, PostIncStmtNode,
+        // PostDecStmtNode or ReadStmtNode: kind is SsaValue.ASSIGN, INC,
+        // DEC or READ); cond is true if the definition may not be done
+        // even though the statement is executed
+        void def(IdNode id, ASTnode node, int kind, boolean cond);
+    }
+
+    // call v for the uses and definitions of variables in block b (its
+    // statements, then its condition)
+    static void walk(Block b, Visitor v) {
+        for (StmtNode stmt : b.stmts()) {
+            walk(stmt, v);
+        }
+        if (b.cond() != null) {
+            walk(b.cond(), false, v);
+        }
+    }
+
+    static void walk(StmtNode stmt, Visitor v) {
+        if (stmt instanceof AssignStmtNode) {
+            walk(((AssignStmtNode)stmt).assign(), false, v);
+        }
+        else if (stmt instanceof PostIncStmtNode ||
+                 stmt instanceof PostDecStmtNode) {
+            ExpNode exp = (stmt instanceof PostIncStmtNode ?
+                           ((PostIncStmtNode)stmt).exp() :
+                           ((PostDecStmtNode)stmt).exp());
+            if (exp instanceof IdNode) {
+                v.use((IdNode)exp);
+                v.def((IdNode)exp, stmt, stmt instanceof PostIncStmtNode ?
+                      SsaValue.INC : SsaValue.DEC, false);
+            }
+        }
+        else if (stmt instanceof ReadStmtNode) {
+            ExpNode exp = ((ReadStmtNode)stmt).exp();
+            if (exp instanceof IdNode) {
+                v.def((IdNode)exp, stmt, SsaValue.READ, false);
+            }
+        }
+        else if (stmt instanceof WriteStmtNode) {
+            walk(((WriteStmtNode)stmt).exp(), false, v);
+        }
+        else if (stmt instanceof CallStmtNode) {
+            walk(((CallStmtNode)stmt).call(), false, v);
+        }
+        else if (stmt instanceof ReturnStmtNode) {
+            ExpNode exp = ((ReturnStmtNode)stmt).exp();
+            if (exp != null) {
+                walk(exp, false, v);
+            }
+        }
+    }
+
+    // (in the order of the code generated for the expression: operands
+    // left to right, the args of a call right to left; cond is true in
+    // the right operand of & and |)
+    static void walk(ExpNode exp, boolean cond, Visitor v) {
+        if (exp instanceof IdNode) {
+            v.use((IdNode)exp);
+        }
+        else if (exp instanceof AssignExpNode) {
+            AssignExpNode assign = (AssignExpNode)exp;
+            walk(assign.exp(), cond, v);
+            if (assign.lhs() instanceof IdNode) {
+                v.def((IdNode)assign.lhs(), assign, SsaValue.ASSIGN, cond);
+            }
+        }
+        else if (exp instanceof CallExpNode) {
+            ExpListNode args = ((CallExpNode)exp).expList();
+            if (args != null) {
+                List<ExpNode> exps = args.exps();
+                for (int k = exps.size() - 1; k >= 0; k--) {
+                    walk(exps.get(k), cond, v);
+                }
+            }
+        }
+        else if (exp instanceof UnaryExpNode) {
+            walk(((UnaryExpNode)exp).exp(), cond, v);
+        }
+        else if (exp instanceof BinaryExpNode) {
+            BinaryExpNode binary = (BinaryExpNode)exp;
+            walk(binary.exp1(), cond, v);
+            walk(binary.exp2(), cond || exp instanceof AndNode ||
+                                exp instanceof OrNode, v);
+        }
+    }
+
+    // return true for a scalar local or param
+    private static boolean isLocal(Sym sym) {
+        return sym != null && !sym.isGlobal() &&
+               (sym.getType().isIntegerType() || sym.getType().isBooleanType());
+    }
+
+    // return the number of the variable of id, or -1 if it is not one
+    private int varNum(IdNode id) {
+        Integer v = varNums.get(id.sym());
+        return v == null ? -1 : v;
+    }
+
+    // **********************************************************************
+    // construction
+    // **********************************************************************
+
+    // find the variables: the scalar params (first, in order) and locals,
+    // except the ones that are not always assigned when their assignment
+    // is evaluated
+    private void findVars() {
+        final LinkedHashMap<Sym, String> found = new LinkedHashMap<Sym, String>();
+        final HashSet<Sym> excluded = new HashSet<Sym>();
+        for (FormalDeclNode formal : cfg.func().formalsList().formals()) {
+            IdNode id = formal.idNode();
+            if (isLocal(id.sym())) {
+                found.put(id.sym(), id.name());
+            }
+        }
+        Visitor v = new Visitor() {
+            public void use(IdNode id) {
+                if (isLocal(id.sym()) && !found.containsKey(id.sym())) {
+                    found.put(id.sym(), id.name());
+                }
+            }
+
+            public void def(IdNode id, ASTnode node, int kind, boolean cond) {
+                use(id);
+                if (cond) {
+                    excluded.add(id.sym());
+                }
+            }
+        };
+        for (Block b : cfg.blocks()) {
+            walk(b, v);
+        }
+
+        for (Map.Entry<Sym, String> entry : found.entrySet()) {
+            if (!excluded.contains(entry.getKey())) {
+                varNums.put(entry.getKey(), vars.size());
+                vars.add(entry.getKey());
+                names.add(entry.getValue());
+            }
+        }
+        versions = new int[vars.size()];
+    }
+
+    // put phis in the iterated dominance frontiers of the blocks that
+    // define each variable that is used before being defined in some block
+    private void placePhis() {
+        int numVars = vars.size();
+        final List<List<Block>> defBlocks = new ArrayList<List<Block>>(numVars);
+        for (int k = 0; k < numVars; k++) {
+            defBlocks.add(new ArrayList<Block>());
+            defBlocks.get(k).add(cfg.entry());   // the entry value
+        }
+        final BitSet live = new BitSet();      // used before defined
+        final BitSet defined = new BitSet();   // in the current block
+        for (final Block b : cfg.order()) {
+            defined.clear();
+            walk(b, new Visitor() {
+                public void use(IdNode id) {
+                    int v = varNum(id);
+                    if (v >= 0 && !defined.get(v)) {
+                        live.set(v);
+                    }
+                }
+
+                public void def(IdNode id, ASTnode node, int kind, boolean cond) {
+                    int v = varNum(id);
+                    if (v >= 0 && !defined.get(v)) {
+                        defined.set(v);
+                        defBlocks.get(v).add(b);
+                    }
+                }
+            });
+        }
+
+        int numBlocks = cfg.blocks().size();
+        int[] hasPhi = new int[numBlocks];   // v + 1 if there is a phi for v
+        int[] queued = new int[numBlocks];   // v + 1 if queued for v
+        ArrayDeque<Block> work = new ArrayDeque<Block>();
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            for (Block b : defBlocks.get(v)) {
+                queued[b.id()] = v + 1;
+                work.add(b);
+            }
+            while (!work.isEmpty()) {
+                Block b = work.remove();
+                for (Block d : b.frontier()) {
+                    if (hasPhi[d.id()] != v + 1) {
+                        hasPhi[d.id()] = v + 1;
+                        d.phis().add(new SsaValue(SsaValue.PHI, vars.get(v),
+                                                  null, d));
+                        numPhis++;
+                        if (queued[d.id()] != v + 1) {
+                            queued[d.id()] = v + 1;
+                            work.add(d);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // find the value of each use and definition, walking the dominator
+    // tree (without recursion: the tree can be as deep as the function is
+    // long) with a stack of the values of each variable
+    private void findValues() {
+        final List<List<SsaValue>> stacks = new ArrayList<List<SsaValue>>();
+        for (int v = 0; v < vars.size(); v++) {
+            SsaValue entry = new SsaValue(SsaValue.ENTRY, vars.get(v), null,
+                                          cfg.entry());
+            name(entry, v);
+            stacks.add(new ArrayList<SsaValue>());
+            stacks.get(v).add(entry);
+        }
+
+        // the variables pushed by each block, to be popped after its
+        // children in the dominator tree
+        final List<List<Integer>> pushed = new ArrayList<List<Integer>>();
+        for (int k = 0; k < cfg.blocks().size(); k++) {
+            pushed.add(null);
+        }
+
+        ArrayDeque<Block> stack = new ArrayDeque<Block>();
+        stack.push(cfg.entry());
+        while (!stack.isEmpty()) {
+            final Block b = stack.pop();
+            if (pushed.get(b.id()) != null) {   // done with its children
+                for (int v : pushed.get(b.id())) {
+                    List<SsaValue> s = stacks.get(v);
+                    s.remove(s.size() - 1);
+                }
+                continue;
+            }
+
+            final List<Integer> pushedHere = new ArrayList<Integer>();
+            pushed.set(b.id(), pushedHere);
+            for (SsaValue phi : b.phis()) {
+                int v = varNums.get(phi.var());
+                name(phi, v);
+                stacks.get(v).add(phi);
+                pushedHere.add(v);
+            }
+            walk(b, new Visitor() {
+                public void use(IdNode id) {
+                    int v = varNum(id);
+                    if (v >= 0) {
+                        List<SsaValue> s = stacks.get(v);
+                        SsaValue value = s.get(s.size() - 1);
+                        uses.put(id, value);
+                        value.addUse(id, b);
+                    }
+                }
+
+                public void def(IdNode id, ASTnode node, int kind, boolean cond) {
+                    int v = varNum(id);
+                    if (v >= 0) {
+                        SsaValue value = new SsaValue(kind, vars.get(v), node, b);
+                        name(value, v);
+                        defs.put(node, value);
+                        stacks.get(v).add(value);
+                        pushedHere.add(v);
+                    }
+                }
+            });
+            for (Block s : b.succs()) {
+                int k = s.preds().indexOf(b);
+                for (SsaValue phi : s.phis()) {
+                    List<SsaValue> vs = stacks.get(varNums.get(phi.var()));
+                    SsaValue value = vs.get(vs.size() - 1);
+                    phi.operands()[k] = value;
+                    value.addPhiUse(phi);
+                }
+            }
+
+            stack.push(b);   // again, after its children
+            for (int k = b.children().size() - 1; k >= 0; k--) {
+                stack.push(b.children().get(k));
+            }
+        }
+    }
+
+    // give a new value of variable v its name and number, and add it to
+    // the values
+    private void name(SsaValue value, int v) {
+        value.setName(names.get(v) + "_" + versions[v]++);
+        value.setNum(values.size());
+        values.add(value);
+    }
+
+    // **********************************************************************
+    // dump
+    // **********************************************************************
+
+    /***
+     * Print the control-flow graph and SSA form of the function: for each
+     * block, its edges, immediate dominator and dominance frontier, then
+     * its phis and statements, each statement followed by the values it
+     * defines and uses.
+     ***/
+    public void dump(PrintStream p) {
+        int reachable = cfg.order().size();
+        p.println("SSA form of " + cfg.func().idNode().name() + ": " +
+                  cfg.blocks().size() + " blocks (" +
+                  (cfg.blocks().size() - reachable) + " unreachable), " +
+                  vars.size() + " variables, " + values.size() + " values, " +
+                  numPhis + " phis");
+        for (Block b : cfg.blocks()) {
+            p.print(b + " (" + b.kind() + ")");
+            if (!b.isReachable()) {
+                p.println(" unreachable");
+            } else {
+                p.print("  preds" + blockList(b.preds()));
+                p.print("  succs" + blockList(b.succs()));
+                p.print("  idom " + (b.idom() == null ? "-" : b.idom().toString()));
+                p.println("  frontier" + blockList(b.frontier()));
+            }
+            if (b == cfg.entry()) {
+                for (SsaValue value : values) {
+                    if (value.kind() == SsaValue.ENTRY) {
+                        p.println("    " + value + " = entry");
+                    }
+                }
+            }
+            for (SsaValue phi : b.phis()) {
+                p.print("    " + phi + " = phi(");
+                for (int k = 0; k < phi.operands().length; k++) {
+                    p.print((k > 0 ? ", " : "") + phi.operands()[k]);
+                }
+                p.println(")");
+            }
+            for (StmtNode stmt : b.stmts()) {
+                dumpLine(p, unparse(stmt), stmt, b.isReachable());
+            }
+            if (b.cond() != null) {
+                String kind = (b.branch() instanceof WhileStmtNode ? "while" : "if");
+                dumpLine(p, kind + " (" + unparse(b.cond()) + ")", b.cond(),
+                         b.isReachable());
+            }
+        }
+        p.println();
+    }
+
+    private static String blockList(List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return " -";
+        }
+        String s = "";
+        for (Block b : blocks) {
+            s += " " + b;
+        }
+        return s;
+    }
+
+    // print a statement or condition with its definitions and uses
+    private void dumpLine(PrintStream p, String text, Object node,
+                          boolean reachable) {
+        final StringBuilder line = new StringBuilder("    " + text);
+        if (reachable) {
+            final List<String> defined = new ArrayList<String>();
+            final List<String> used = new ArrayList<String>();
+            Visitor v = new Visitor() {
+                public void use(IdNode id) {
+                    if (uses.containsKey(id)) {
+                        used.add(uses.get(id).toString());
+                    }
+                }
+
+                public void def(IdNode id, ASTnode node, int kind, boolean cond) {
+                    if (defs.containsKey(node)) {
+                        defined.add(defs.get(node).toString());
+                    }
+                }
+            };
+            if (node instanceof StmtNode) {
+                walk((StmtNode)node, v);
+            } else {
+                walk((ExpNode)node, false, v);
+            }
+            if (!defined.isEmpty() || !used.isEmpty()) {
+                while (line.length() < 40) {
+                    line.append(' ');
+                }
+                line.append("  [" + (defined.isEmpty() ? "" : join(defined) + " ") +
+                            "<-" + (used.isEmpty() ? "" : " " + join(used)) + "]");
+            }
+        }
+        p.println(line);
+    }
+
+    private static String join(List<String> strs) {
+        String s = "";
+        for (String str : strs) {
+            s += (s.isEmpty() ? "" : " ") + str;
+        }
+        return s;
+    }
+
+    // the unparsed text of a node, on one line (without the types that
+    // unparse adds to IDs)
+    private static String unparse(ASTnode node) {
+        StringWriter text = new StringWriter();
+        node.unparse(new PrintWriter(text), 0);
+        return text.toString().trim().replaceAll("\\{[^}]*\\}", "");
+    }
+}
+
+// **********************************************************************
+// An SsaValue is one value of a variable in the SSA form of a function
+// (see Ssa): where it is defined, and where it is used.
+// **********************************************************************
+class SsaValue {
+    // kinds of definition
+    public static final int ENTRY = 0;   // the value on entry
+    public static final int ASSIGN = 1;  // an AssignExpNode
+    public static final int INC = 2;     // a PostIncStmtNode
+    public static final int DEC = 3;     // a PostDecStmtNode
+    public static final int READ = 4;    // a ReadStmtNode
+    public static final int PHI = 5;
+
+    private int myKind;
+    private Sym myVar;
+    private String myName;          // e.g. x_2
+    private int myNum;              // index in Ssa.values
+    private ASTnode myNode;         // the definition (null for ENTRY, PHI)
+    private Block myBlock;
+    private SsaValue[] myOperands;  // of a phi, one per pred of its block
+    private List<IdNode> myUses;       // (null until there is one)
+    private List<Block> myUseBlocks;   // the block of each use
+    private List<SsaValue> myPhiUses;  // phis that have it as an operand
+
+    public SsaValue(int kind, Sym var, ASTnode node, Block block) {
+        myKind = kind;
+        myVar = var;
+        myNode = node;
+        myBlock = block;
+        myOperands = (kind == PHI ? new SsaValue[block.preds().size()] : null);
+    }
+
+    public int kind() {
+        return myKind;
+    }
+
+    public Sym var() {
+        return myVar;
+    }
+
+    public void setName(String name) {
+        myName = name;
+    }
+
+    /***
+     * Return the number of the value: its index in the values of the
+     * function (see Ssa.values).
+     ***/
+    public int num() {
+        return myNum;
+    }
+
+    public void setNum(int num) {
+        myNum = num;
+    }
+
+    /***
+     * Return the definition: an AssignExpNode, PostIncStmtNode,
+     * PostDecStmtNode or ReadStmtNode (null for an entry value or a phi).
+     ***/
+    public ASTnode node() {
+        return myNode;
+    }
+
+    public Block block() {
+        return myBlock;
+    }
+
+    /***
+     * Return the operands of a phi: operand k comes from predecessor k of
+     * its block.
+     ***/
+    public SsaValue[] operands() {
+        return myOperands;
+    }
+
+    /***
+     * Return the uses of the value (IDs), not counting the phis that have
+     * it as an operand (see phiUses).
+     ***/
+    public List<IdNode> uses() {
+        return myUses == null ? Collections.<IdNode>emptyList() : myUses;
+    }
+
+    /***
+     * Return the block of each use (in the order of uses).
+     ***/
+    public List<Block> useBlocks() {
+        return myUseBlocks == null ? Collections.<Block>emptyList() : myUseBlocks;
+    }
+
+    public List<SsaValue> phiUses() {
+        return myPhiUses == null ? Collections.<SsaValue>emptyList() : myPhiUses;
+    }
+
+    public void addUse(IdNode id, Block block) {
+        if (myUses == null) {
+            myUses = new ArrayList<IdNode>(2);
+            myUseBlocks = new ArrayList<Block>(2);
+        }
+        myUses.add(id);
+        myUseBlocks.add(block);
+    }
+
+    public void addPhiUse(SsaValue phi) {
+        if (myPhiUses == null) {
+            myPhiUses = new ArrayList<SsaValue>(2);
+        }
+        myPhiUses.add(phi);
+    }
+
+    public String toString() {
+        return myName;
+    }
+}
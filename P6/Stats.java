@@ -0,0 +1,56 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The Stats class collects statistics about the generated code, for each
+// function, to be printed (with the -stats option) after code generation.
+//
+// Counts are kept in the FuncCode of each function (see FuncCode.count),
+// so the thread generating a function can update them without locking;
+// functions are added here in the order of the program, so the report is
+// the same whatever the number of threads.
+// **********************************************************************
+public class Stats {
+    private static boolean enabled = false;
+    private static List<FuncCode> funcs = new ArrayList<FuncCode>();
+
+    public static void enable() {
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /***
+     * Add the code for a function (once it is finished).
+     ***/
+    public static void add(FuncCode func) {
+        if (enabled) {
+            func.count("instructions", func.numInstructions());
+            funcs.add(func);
+        }
+    }
+
+    /***
+     * Print the counts for each function, then the totals.
+     ***/
+    public static void report(PrintStream out) {
+        Map<String, Integer> totals = new LinkedHashMap<String, Integer>();
+        for (FuncCode func : funcs) {
+            out.print(func.name() + ":");
+            for (Map.Entry<String, Integer> entry : func.counts().entrySet()) {
+                out.print(" " + entry.getKey() + " " + entry.getValue());
+                Integer total = totals.get(entry.getKey());
+                totals.put(entry.getKey(), entry.getValue() +
+                           (total == null ? 0 : total));
+            }
+            out.println();
+        }
+        out.print("total:");
+        for (Map.Entry<String, Integer> entry : totals.entrySet()) {
+            out.print(" " + entry.getKey() + " " + entry.getValue());
+        }
+        out.println();
+    }
+}
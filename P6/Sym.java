@@ -47,7 +47,7 @@ class FuncSym extends Sym {
     private int myLocalsSize;
     
     public FuncSym(Type type, int numparams) {
-        super(new FuncType());
+        super(Type.FUNC);
         returnType = type;
         numParams = numparams;
         myParamsSize = 0;
@@ -114,7 +114,7 @@ class StructSym extends Sym {
     private IdNode structType;  // name of the struct type
     
     public StructSym(IdNode id) {
-        super(new StructType(id));
+        super(StructType.get(id));
         structType = id;
     }
 
@@ -134,7 +134,7 @@ class StructDefSym extends Sym {
     private SymTab symTab;
     
     public StructDefSym(SymTab table) {
-        super(new StructDefType());
+        super(Type.STRUCT_DEF);
         symTab = table;
     }
 
@@ -1,21 +1,38 @@
+import java.util.*;
+
 /***
  * Type class and its subclasses: 
  * ErrorType, IntegerType, BooleanType, VoidType, StringType, FuncType,
  * StructType, StructDefType
+ *
+ * Types are interned: there is only one instance of each of the types
+ * that have no fields (use the constants below), and one StructType per
+ * struct name (use StructType.get).  So equals is just an identity check,
+ * except for StructType (see below).
  ***/
 abstract public class Type {
+    public static final Type ERROR = new ErrorType();
+    public static final Type INTEGER = new IntegerType();
+    public static final Type BOOLEAN = new BooleanType();
+    public static final Type VOID = new VoidType();
+    public static final Type STRING = new StringType();
+    public static final Type FUNC = new FuncType();
+    public static final Type STRUCT_DEF = new StructDefType();
 
     /***
      * default constructor
      ***/
-    public Type() {
+    protected Type() {
     }
 
     /***
      * every subclass must provide a toString method and an equals method
      ***/
     abstract public String toString();
-    abstract public boolean equals(Type t);
+
+    public boolean equals(Type t) {
+        return t == this;
+    }
 
     /***
      * default methods for "isXXXType"
@@ -57,15 +74,14 @@ abstract public class Type {
 //   ErrorType
 // **********************************************************************
 class ErrorType extends Type {
+    // use Type.ERROR
+    protected ErrorType() {
+    }
 
     public boolean isErrorType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isErrorType();
-    }
-
     public String toString() {
         return "error";
     }
@@ -75,15 +91,14 @@ class ErrorType extends Type {
 //   IntegerType
 // **********************************************************************
 class IntegerType extends Type {
+    // use Type.INTEGER
+    protected IntegerType() {
+    }
 
     public boolean isIntegerType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isIntegerType();
-    }
-
     public String toString() {
         return "integer";
     }
@@ -93,15 +108,14 @@ class IntegerType extends Type {
 //   BooleanType
 // **********************************************************************
 class BooleanType extends Type {
+    // use Type.BOOLEAN
+    protected BooleanType() {
+    }
 
     public boolean isBooleanType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isBooleanType();
-    }
-
     public String toString() {
         return "boolean";
     }
@@ -111,15 +125,14 @@ class BooleanType extends Type {
 //   VoidType
 // **********************************************************************
 class VoidType extends Type {
+    // use Type.VOID
+    protected VoidType() {
+    }
 
     public boolean isVoidType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isVoidType();
-    }
-
     public String toString() {
         return "void";
     }
@@ -129,15 +142,14 @@ class VoidType extends Type {
 //   StringType
 // **********************************************************************
 class StringType extends Type {
+    // use Type.STRING
+    protected StringType() {
+    }
 
     public boolean isStringType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isStringType();
-    }
-
     public String toString() {
         return "String";
     }
@@ -147,15 +159,14 @@ class StringType extends Type {
 //   FuncType
 // **********************************************************************
 class FuncType extends Type {
+    // use Type.FUNC
+    protected FuncType() {
+    }
 
     public boolean isFuncType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isFuncType();
-    }
-
     public String toString() {
         return "function";
     }
@@ -165,22 +176,42 @@ class FuncType extends Type {
 //   StructType
 // **********************************************************************
 class StructType extends Type {
-    private IdNode myId;
+    private static HashMap<String, StructType> instances =
+        new HashMap<String, StructType>();
+
+    private String myName;
     
-    public StructType(IdNode id) {
-        myId = id;
+    private StructType(String name) {
+        myName = name;
+    }
+
+    /***
+     * Return the (unique) StructType for the struct named by id.
+     ***/
+    public static synchronized StructType get(IdNode id) {
+        StructType type = instances.get(id.name());
+        if (type == null) {
+            type = new StructType(id.name());
+            instances.put(id.name(), type);
+        }
+        return type;
     }
     
     public boolean isStructType() {
         return true;
     }
 
+    /***
+     * The type rules of bach treat all struct variables alike (assigning
+     * or comparing them is an error whatever their struct), so any two
+     * struct types are equal here.
+     ***/
     public boolean equals(Type t) {
         return t.isStructType();
     }
 
     public String toString() {
-        return myId.name();
+        return myName;
     }
 }
 
@@ -188,15 +219,14 @@ class StructType extends Type {
 //   StructDefType
 // **********************************************************************
 class StructDefType extends Type {
+    // use Type.STRUCT_DEF
+    protected StructDefType() {
+    }
 
     public boolean isStructDefType() {
         return true;
     }
 
-    public boolean equals(Type t) {
-        return t.isStructDefType();
-    }
-
     public String toString() {
         return "struct";
     }
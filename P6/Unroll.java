@@ -0,0 +1,447 @@
+import java.util.*;
+
+// **********************************************************************
+// The Unroll class unrolls the innermost while loops of a function in
+// SSA form (see Ssa) that count: loops whose condition compares a
+// variable i with a bound that does not change in the loop (a literal,
+// or an SSA value defined outside the loop),
+//
+//     i < n, i <= n, i > n, i >= n or i ^= n (or n < i, ...),
+//
+// where i is a local or param in SSA form that is changed only by one
+// statement of the body (not nested in an if), i++, i--, i = i + k,
+// i = k + i or i = i - k, with k a nonzero literal (the step).  The
+// step must go towards the bound (up for < and <=, down for > and >=).
+//
+// If the value of i before the loop is a literal and the bound is one,
+// the number of iterations is known, and the loop is replaced by that
+// many copies of its body.  Otherwise, with a factor of f, the loop
+//
+//     while (i < n) { body }
+//
+// becomes
+//
+//     while (i < n - (f-1)*step) { body body ... body }   (f copies)
+//     while (i < n) { body }
+//
+// (the first loop does f iterations at a time while all of them would
+// be done, and the original loop does the rest; for ^= the first loop
+// uses < or >, depending on the step, which is also right, since its
+// iterations are ones the original loop does).  The bound of the first
+// loop must not overflow: a literal one is computed here (and the loop
+// is not unrolled if it does not fit in an int), and otherwise the
+// first loop is put in an if that skips it (leaving all the iterations
+// to the original loop) when n is within (f-1)*step of the end of the
+// int range.
+//
+// Unrolling is limited to loops without decls, and by a budget on the
+// size of the new bodies (see BUDGET): the factor is lowered until it
+// fits.  The function is put back in SSA form if it changed.  The
+// numbers of loops unrolled partly and completely are counted as
+// "unroll partial" and "unroll full" (see Stats).
+// **********************************************************************
+public class Unroll {
+    // the most nodes in the body of an unrolled loop (or in the copies of
+    // the body that replace a loop)
+    public static final int BUDGET = 240;
+
+    /***
+     * Unroll the counting loops of the given function (in SSA form) by
+     * the given factor (at least 2).
+     ***/
+    public static void run(FuncDeclNode func, int factor) {
+        Unroll unroll = new Unroll(func, factor);
+        unroll.unroll(func.body().stmtList());
+        if (unroll.partial + unroll.full > 0) {
+            func.setCfg(Cfg.build(func));
+            func.setSsa(Ssa.build(func.cfg()));
+        }
+        func.count("unroll partial", unroll.partial);
+        func.count("unroll full", unroll.full);
+    }
+
+    private FuncDeclNode func;
+    private Ssa ssa;
+    private Cfg cfg;
+    private int factor;
+    private Type retType;
+    private IdentityHashMap<StmtNode, Block> headers;   // loop -> its header
+    private int partial;
+    private int full;
+
+    private Unroll(FuncDeclNode func, int factor) {
+        this.func = func;
+        this.factor = factor;
+        ssa = func.ssa();
+        cfg = func.cfg();
+        retType = ((FuncSym)func.idNode().sym()).getReturnType();
+        headers = new IdentityHashMap<StmtNode, Block>();
+        for (Block b : cfg.order()) {
+            if (b.branch() instanceof WhileStmtNode) {
+                headers.put(b.branch(), b);
+            }
+        }
+    }
+
+    // unroll the loops in list (and the lists nested in it)
+    private void unroll(StmtListNode list) {
+        List<StmtNode> stmts = list.stmts();
+        List<StmtNode> result = new ArrayList<StmtNode>(stmts.size());
+        boolean changed = false;
+        for (StmtNode stmt : stmts) {
+            if (stmt instanceof WhileStmtNode) {
+                unroll(((WhileStmtNode)stmt).stmtList());
+                changed |= unroll((WhileStmtNode)stmt, result);
+            }
+            else {
+                if (stmt instanceof IfStmtNode) {
+                    unroll(((IfStmtNode)stmt).stmtList());
+                }
+                else if (stmt instanceof IfElseStmtNode) {
+                    unroll(((IfElseStmtNode)stmt).thenStmtList());
+                    unroll(((IfElseStmtNode)stmt).elseStmtList());
+                }
+                result.add(stmt);
+            }
+        }
+        if (changed) {
+            stmts.clear();
+            stmts.addAll(result);
+        }
+    }
+
+    // add the statements to use instead of the given loop to result;
+    // return true if they are not just the loop
+    private boolean unroll(WhileStmtNode loop, List<StmtNode> result) {
+        Block header = headers.get(loop);
+        int size = (header == null ? -1 : bodySize(loop));
+        if (size <= 0 || !(loop.exp() instanceof BinaryExpNode)) {
+            result.add(loop);
+            return false;
+        }
+
+        // the condition: i op bound
+        BinaryExpNode cond = (BinaryExpNode)loop.exp();
+        int op = opCode(cond);
+        ExpNode var = cond.exp1();
+        ExpNode bound = cond.exp2();
+        if (!isCounter(var, header)) {
+            var = cond.exp2();
+            bound = cond.exp1();
+            op = flip(op);
+        }
+        if (op < 0 || !isCounter(var, header) || !isInvariant(bound, header)) {
+            result.add(loop);
+            return false;
+        }
+        SsaValue phi = ssa.value((IdNode)var);
+        StmtNode update = update(loop, phi.var());
+        int step = (update == null ? 0 : step(update));
+        if (update == null ||
+            ((op == LT || op == LE) && step < 0) ||
+            ((op == GT || op == GE) && step > 0)) {
+            result.add(loop);
+            return false;
+        }
+
+        // the number of iterations, if it is known and small enough
+        Integer init = initialValue(phi, header);
+        Integer n = bound.litValue();
+        if (init != null && n != null) {
+            long i = init;
+            int trips = 0;
+            while (test(op, i, n) && (trips + 1) * size <= BUDGET) {
+                i += step;
+                trips++;
+            }
+            if (!test(op, i, n)) {
+                for (int k = 0; k < trips; k++) {
+                    result.addAll(k == 0 ? loop.stmtList().stmts() :
+                                           copy(loop.stmtList().stmts()));
+                }
+                full++;
+                return true;
+            }
+        }
+
+        int f = factor;
+        while (f >= 2 && f * size > BUDGET) {
+            f--;
+        }
+        if (f < 2) {
+            result.add(loop);
+            return false;
+        }
+        if (op == NE) {
+            op = (step > 0 ? LT : GT);
+        }
+        // the first loop tests i op n - (f-1)*step, which must not
+        // overflow: if n is not a literal, it is only entered if n is
+        // far enough from the end of the int range
+        int ahead = (f - 1) * step;
+        long end = (ahead > 0 ? Integer.MIN_VALUE + (long)ahead :
+                                Integer.MAX_VALUE + (long)ahead);
+        if (n != null && (ahead > 0 ? n < end : n > end)) {
+            result.add(loop);
+            return false;
+        }
+        ExpNode limit = (n != null ? lit(var, n - ahead) :
+            ahead > 0 ? new MinusNode(bound.copy(), lit(var, ahead)) :
+                        new PlusNode(bound.copy(), lit(var, -ahead)));
+        ExpNode test = compare(op, var.copy(), limit);
+        test.typeCheck();
+        List<StmtNode> body = new ArrayList<StmtNode>();
+        for (int k = 0; k < f; k++) {
+            body.addAll(copy(loop.stmtList().stmts()));
+        }
+        StmtNode unrolled = new WhileStmtNode(test,
+            new DeclListNode(new LinkedList<DeclNode>()), new StmtListNode(body));
+        if (n == null) {
+            ExpNode guard = (ahead > 0 ?
+                new GreaterEqNode(bound.copy(), lit(var, (int)end)) :
+                new LessEqNode(bound.copy(), lit(var, (int)end)));
+            guard.typeCheck();
+            List<StmtNode> then = new ArrayList<StmtNode>();
+            then.add(unrolled);
+            unrolled = new IfStmtNode(guard,
+                new DeclListNode(new LinkedList<DeclNode>()), new StmtListNode(then));
+        }
+        result.add(unrolled);
+        result.add(loop);
+        partial++;
+        return true;
+    }
+
+    // return copies of the given statements (type checked)
+    private List<StmtNode> copy(List<StmtNode> stmts) {
+        List<StmtNode> copies = new ArrayList<StmtNode>(stmts.size());
+        for (StmtNode stmt : stmts) {
+            StmtNode copy = stmt.copy();
+            copy.typeCheck(retType);
+            copies.add(copy);
+        }
+        return copies;
+    }
+
+    private static ExpNode lit(ExpNode pos, int value) {
+        ExpNode lit = new IntLitNode(pos.lineNum(), pos.charNum(), value);
+        lit.typeCheck();
+        return lit;
+    }
+
+    // **********************************************************************
+    // recognizing counting loops
+    // **********************************************************************
+
+    // comparisons (also used by Ivsr)
+    static final int LT = 0;
+    static final int LE = 1;
+    static final int GT = 2;
+    static final int GE = 3;
+    static final int NE = 4;
+
+    static int opCode(ExpNode exp) {
+        if (exp instanceof LessNode) {
+            return LT;
+        }
+        if (exp instanceof LessEqNode) {
+            return LE;
+        }
+        if (exp instanceof GreaterNode) {
+            return GT;
+        }
+        if (exp instanceof GreaterEqNode) {
+            return GE;
+        }
+        if (exp instanceof NotEqNode) {
+            return NE;
+        }
+        return -1;
+    }
+
+    // the comparison with the operands swapped (n < i is i > n)
+    static int flip(int op) {
+        switch (op) {
+            case LT: return GT;
+            case LE: return GE;
+            case GT: return LT;
+            case GE: return LE;
+            default: return op;
+        }
+    }
+
+    static ExpNode compare(int op, ExpNode exp1, ExpNode exp2) {
+        switch (op) {
+            case LT: return new LessNode(exp1, exp2);
+            case LE: return new LessEqNode(exp1, exp2);
+            case GT: return new GreaterNode(exp1, exp2);
+            case GE: return new GreaterEqNode(exp1, exp2);
+            default: return new NotEqNode(exp1, exp2);
+        }
+    }
+
+    private static boolean test(int op, long i, long n) {
+        switch (op) {
+            case LT: return i < n;
+            case LE: return i <= n;
+            case GT: return i > n;
+            case GE: return i >= n;
+            default: return i != n;
+        }
+    }
+
+    // return true if exp is a use of a variable whose value at the
+    // header is a phi (so the loop changes it)
+    private boolean isCounter(ExpNode exp, Block header) {
+        if (!(exp instanceof IdNode)) {
+            return false;
+        }
+        SsaValue value = ssa.value((IdNode)exp);
+        return value != null && value.kind() == SsaValue.PHI &&
+               value.block() == header;
+    }
+
+    // return true if exp is a literal or an SSA value defined outside the
+    // loop with the given header
+    private boolean isInvariant(ExpNode exp, Block header) {
+        if (exp.litValue() != null) {
+            return true;
+        }
+        if (!(exp instanceof IdNode)) {
+            return false;
+        }
+        SsaValue value = ssa.value((IdNode)exp);
+        return value != null && !inLoop(value.block(), header);
+    }
+
+    private boolean inLoop(Block b, Block header) {
+        return cfg.dominates(header, b) &&
+               !cfg.dominates(header.succs().get(1), b);
+    }
+
+    // the value of phi (at the header) on entry to the loop, if it is
+    // assigned a literal
+    private Integer initialValue(SsaValue phi, Block header) {
+        Integer init = null;
+        for (int k = 0; k < phi.operands().length; k++) {
+            if (inLoop(header.preds().get(k), header)) {
+                continue;
+            }
+            SsaValue value = phi.operands()[k];
+            if (init != null || value.kind() != SsaValue.ASSIGN) {
+                return null;
+            }
+            init = ((AssignExpNode)value.node()).exp().litValue();
+        }
+        return init;
+    }
+
+    /***
+     * Return the statement of the body of loop (not nested in another
+     * one) that changes var, if it is the only one in the loop that does,
+     * and it is i++, i--, i = i + k, i = k + i or i = i - k (i is var and
+     * k a nonzero literal); otherwise return null.  Also used by Ivsr.
+     ***/
+    static StmtNode update(WhileStmtNode loop, final Sym var) {
+        final int[] defs = new int[1];
+        loop.stmtList().accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                ExpNode target = null;
+                if (node instanceof AssignExpNode) {
+                    target = ((AssignExpNode)node).lhs();
+                }
+                else if (node instanceof PostIncStmtNode) {
+                    target = ((PostIncStmtNode)node).exp();
+                }
+                else if (node instanceof PostDecStmtNode) {
+                    target = ((PostDecStmtNode)node).exp();
+                }
+                else if (node instanceof ReadStmtNode) {
+                    target = ((ReadStmtNode)node).exp();
+                }
+                if (target instanceof IdNode && ((IdNode)target).sym() == var) {
+                    defs[0]++;
+                }
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+        if (defs[0] != 1) {
+            return null;
+        }
+
+        for (StmtNode stmt : loop.stmtList().stmts()) {
+            if ((stmt instanceof PostIncStmtNode &&
+                 isVar(((PostIncStmtNode)stmt).exp(), var)) ||
+                (stmt instanceof PostDecStmtNode &&
+                 isVar(((PostDecStmtNode)stmt).exp(), var))) {
+                return stmt;
+            }
+            if (stmt instanceof AssignStmtNode) {
+                AssignExpNode assign = ((AssignStmtNode)stmt).assign();
+                if (!isVar(assign.lhs(), var)) {
+                    continue;
+                }
+                ExpNode exp = assign.exp();
+                if (!(exp instanceof PlusNode || exp instanceof MinusNode)) {
+                    return null;
+                }
+                BinaryExpNode binary = (BinaryExpNode)exp;
+                Integer k = null;
+                if (isVar(binary.exp1(), var)) {
+                    k = binary.exp2().litValue();
+                }
+                else if (exp instanceof PlusNode && isVar(binary.exp2(), var)) {
+                    k = binary.exp1().litValue();
+                }
+                return (k == null || k == 0 ? null : stmt);
+            }
+        }
+        return null;   // the statement is nested
+    }
+
+    /***
+     * Return the amount that the given statement (see update) adds to its
+     * variable.
+     ***/
+    static int step(StmtNode update) {
+        if (update instanceof PostIncStmtNode) {
+            return 1;
+        }
+        if (update instanceof PostDecStmtNode) {
+            return -1;
+        }
+        BinaryExpNode exp = (BinaryExpNode)((AssignStmtNode)update).assign().exp();
+        Integer k = exp.exp2().litValue();
+        if (k == null) {
+            k = exp.exp1().litValue();
+        }
+        return (exp instanceof PlusNode ? k : -k);
+    }
+
+    private static boolean isVar(ExpNode exp, Sym var) {
+        return exp instanceof IdNode && ((IdNode)exp).sym() == var;
+    }
+
+    // return the number of nodes in the body of the loop, or -1 if it
+    // has decls or a nested loop
+    private static int bodySize(WhileStmtNode loop) {
+        final int[] size = new int[1];
+        loop.stmtList().accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                if (node instanceof WhileStmtNode || node instanceof DeclNode) {
+                    size[0] = Integer.MIN_VALUE / 2;
+                }
+                size[0]++;
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+        if (!loop.declList().decls().isEmpty()) {
+            return -1;
+        }
+        return size[0] < 0 ? -1 : size[0];
+    }
+}
@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 // **********************************************************************
 // The ASTnode class defines the nodes of the abstract-syntax tree that
@@ -66,6 +67,7 @@ import java.util.*;
 //         NotNode
 //       BinaryExpNode       ExpNode ExpNode
 //         PlusNode     
+//           WrappingPlusNode
 //         MinusNode
 //         TimesNode
 //         DivideNode
@@ -110,12 +112,19 @@ abstract class ASTnode {
     // every subclass must provide an unparse operation
     abstract public void unparse(PrintWriter p, int indent);
 
+    // every subclass must provide a flatten operation that adds the node
+    // (and its subtree) to the given FlatAst and returns its node ID
+    abstract public int flatten(FlatAst f);
+
+    // every subclass must provide an accept operation that calls the
+    // visitor's pre method, visits the children in order and then calls
+    // the visitor's post method
+    abstract public void accept(ASTVisitor v);
+
     // this method can be used by the unparse methods to do indenting
     protected void doIndent(PrintWriter p, int indent) {
         for (int k=0; k<indent; k++) p.print(" ");
     }
-
-    static protected String exitFuncLabel = null;
 }
 
 // **********************************************************************
@@ -137,7 +146,7 @@ class ProgramNode extends ASTnode {
         SymTab symTab = new SymTab();
         myDeclList.nameAnalysis(symTab);
         if (noMain) {
-            ErrMsg.fatal(0, 0, "No main function");
+            ErrMsg.nameError(0, 0, "No main function");
         }
     }
 
@@ -148,11 +157,103 @@ class ProgramNode extends ASTnode {
         myDeclList.typeCheck();
     }
 
+    /***
+     * typeCheck
+     * Same as typeCheck(), but with the function bodies checked in
+     * parallel by numThreads threads (see DeclListNode.typeCheck).
+     ***/
+    public void typeCheck(int numThreads) {
+        myDeclList.typeCheck(numThreads);
+    }
+
+    /****
+     * check
+     * Does name analysis and type checking in a single pass over the tree.
+     * The error messages (and their order) are the same as for nameAnalysis
+     * followed by typeCheck: type errors are held back until the whole
+     * program has been processed and are dropped if there was a name error.
+     ****/
+    public void check() {
+        SymTab symTab = new SymTab();
+        ErrMsg.holdBack();
+        myDeclList.check(symTab);
+        if (noMain) {
+            ErrMsg.nameError(0, 0, "No main function");
+        }
+        ErrMsg.release();
+    }
+
+    /***
+     * Return the function decls of the program (in order).
+     ***/
+    public List<FuncDeclNode> funcDecls() {
+        return myDeclList.funcDecls();
+    }
+
+    /***
+     * fold
+     * Fold constants and simplify expressions everywhere in the program
+     * (see ExpNode.fold); done after type checking, before codeGen.
+     ***/
+    public void fold() {
+        myDeclList.fold();
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
+        addStrings();
         myDeclList.codeGen();
+        Codegen.genStrings();
+    }
+
+    /***
+     * codeGen
+     * Same as codeGen(), but with the functions generated in parallel by
+     * numThreads threads (see DeclListNode.codeGen).
+     ***/
+    public void codeGen(int numThreads) {
+        addStrings();
+        myDeclList.codeGen(numThreads);
+        Codegen.genStrings();
+    }
+
+    /***
+     * addStrings
+     * Add all the string literals of the program to the string pool, in
+     * the order they appear in the program, so that their labels do not
+     * depend on the order in which the functions are generated.
+     ***/
+    private void addStrings() {
+        accept(new ASTVisitor() {
+            public void pre(ASTnode node) {
+                if (node instanceof StringLitNode) {
+                    Codegen.addString(((StringLitNode)node).strVal());
+                }
+            }
+
+            public void post(ASTnode node) {
+            }
+        });
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.PROGRAM);
+        f.addChild(n, myDeclList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myDeclList.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -203,6 +304,48 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    /***
+     * typeCheck
+     * After name analysis, type checking a function only reads the symbol
+     * table entries linked to its IdNodes (and sets the types of its own
+     * exp nodes), so the functions can be checked independently.  They are
+     * checked on a fork/join pool of numThreads threads; the error messages
+     * for each function are collected separately and then printed in the
+     * order of the functions, so the output is the same as for typeCheck().
+     * (The other decls have nothing to check.)
+     ***/
+    public void typeCheck(int numThreads) {
+        List<List<String>> msgs = FuncTask.run(new TypeCheckTask(funcDecls()),
+                                               numThreads);
+        for (List<String> funcMsgs : msgs) {
+            ErrMsg.report(funcMsgs);
+        }
+    }
+
+    /****
+     * check
+     * Same as nameAnalysis, except that the bodies of functions are also
+     * type checked.
+     ****/
+    public void check(SymTab symTab) {
+        for (DeclNode node : myDecls) {
+            if (node instanceof FuncDeclNode) {
+                ((FuncDeclNode)node).check(symTab);
+            } else {
+                node.nameAnalysis(symTab);
+            }
+        }
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        for (DeclNode node : myDecls) {
+            node.fold();
+        }
+    }
+
     /***
      * codeGen
      ***/
@@ -212,6 +355,79 @@ class DeclListNode extends ASTnode {
         }
     }
 
+    /***
+     * codeGen
+     * The code for each function only depends on the function (see
+     * Codegen.beginFunction), so the functions are generated into separate
+     * buffers on a fork/join pool of numThreads threads.  The buffers (and
+     * the code for the other decls) are then written out in the order of
+     * the decls, so the output is the same as for codeGen().
+     ***/
+    public void codeGen(int numThreads) {
+        List<FuncDeclNode> funcs = funcDecls();
+        List<FuncCode> code = FuncTask.run(new CodeGenTask(funcs), numThreads);
+
+        int k = 0;
+        for (DeclNode node : myDecls) {
+            if (node instanceof FuncDeclNode) {
+                Stats.add(code.get(k));
+                Emitter.emit(code.get(k), Codegen.p);
+                k++;
+            } else {
+                node.codeGen();
+            }
+        }
+    }
+
+    /***
+     * Return the decls in the list (which may be changed).
+     ***/
+    public List<DeclNode> decls() {
+        return myDecls;
+    }
+
+    /***
+     * Return a new list of the same decls (see StmtNode.copy).
+     ***/
+    public DeclListNode copy() {
+        return new DeclListNode(new LinkedList<DeclNode>(myDecls));
+    }
+
+    /***
+     * Return the function decls in the list (in order).
+     ***/
+    public List<FuncDeclNode> funcDecls() {
+        List<FuncDeclNode> funcs = new ArrayList<FuncDeclNode>();
+        for (DeclNode node : myDecls) {
+            if (node instanceof FuncDeclNode) {
+                funcs.add((FuncDeclNode)node);
+            }
+        }
+        return funcs;
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.DECL_LIST);
+        for (DeclNode node : myDecls) {
+            f.addChild(n, node.flatten(f));
+        }
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        for (DeclNode node : myDecls) {
+            node.accept(v);
+        }
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator it = myDecls.iterator();
         try {
@@ -228,11 +444,134 @@ class DeclListNode extends ASTnode {
     private List<DeclNode> myDecls;
 }
 
+// **********************************************************************
+// FuncTask
+//    does something (process) for each of a list of functions, splitting
+//    the list in halves to run the parts on a fork/join pool; the result
+//    for function k is stored in results[k]
+// **********************************************************************
+abstract class FuncTask<R> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    // ranges of at most this many functions are not split any further
+    public static final int GRAIN = 8;
+
+    public FuncTask(List<FuncDeclNode> funcs) {
+        myFuncs = funcs;
+        myResults = new ArrayList<R>(funcs.size());
+        for (int k = 0; k < funcs.size(); k++) {
+            myResults.add(null);
+        }
+        myLo = 0;
+        myHi = funcs.size();
+    }
+
+    /***
+     * Run task (on all of its functions) using numThreads threads and
+     * return the results.
+     ***/
+    public static <R> List<R> run(FuncTask<R> task, int numThreads) {
+        ForkJoinPool pool = new ForkJoinPool(numThreads);
+        try {
+            pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+        return task.myResults;
+    }
+
+    // the result for one function
+    abstract protected R process(FuncDeclNode func);
+
+    // a new task of the same kind for functions lo..hi-1 of this one's list
+    abstract protected FuncTask<R> subtask(int lo, int hi);
+
+    protected FuncTask(FuncTask<R> parent, int lo, int hi) {
+        myFuncs = parent.myFuncs;
+        myResults = parent.myResults;
+        myLo = lo;
+        myHi = hi;
+    }
+
+    protected void compute() {
+        if (myHi - myLo <= GRAIN) {
+            for (int k = myLo; k < myHi; k++) {
+                myResults.set(k, process(myFuncs.get(k)));
+            }
+        }
+        else {
+            int mid = (myLo + myHi) / 2;
+            invokeAll(subtask(myLo, mid), subtask(mid, myHi));
+        }
+    }
+
+    private List<FuncDeclNode> myFuncs;
+    private List<R> myResults;
+    private int myLo;
+    private int myHi;
+}
+
+// type checks each function (see DeclListNode.typeCheck); the result is
+// the list of error messages for the function
+class TypeCheckTask extends FuncTask<List<String>> {
+    private static final long serialVersionUID = 1L;
+
+    public TypeCheckTask(List<FuncDeclNode> funcs) {
+        super(funcs);
+    }
+
+    private TypeCheckTask(TypeCheckTask parent, int lo, int hi) {
+        super(parent, lo, hi);
+    }
+
+    protected List<String> process(FuncDeclNode func) {
+        ErrMsg.collect();
+        func.typeCheck();
+        return ErrMsg.endCollect();
+    }
+
+    protected FuncTask<List<String>> subtask(int lo, int hi) {
+        return new TypeCheckTask(this, lo, hi);
+    }
+}
+
+// generates (and formats) the code for each function (see
+// DeclListNode.codeGen)
+class CodeGenTask extends FuncTask<FuncCode> {
+    private static final long serialVersionUID = 1L;
+
+    public CodeGenTask(List<FuncDeclNode> funcs) {
+        super(funcs);
+    }
+
+    private CodeGenTask(CodeGenTask parent, int lo, int hi) {
+        super(parent, lo, hi);
+    }
+
+    protected FuncCode process(FuncDeclNode func) {
+        FuncCode code = func.genCode();
+        Emitter.render(code);
+        return code;
+    }
+
+    protected FuncTask<FuncCode> subtask(int lo, int hi) {
+        return new CodeGenTask(this, lo, hi);
+    }
+}
+
 class StmtListNode extends ASTnode {
     public StmtListNode(List<StmtNode> S) {
         myStmts = S;
     }
 
+    /***
+     * Return the statements (the list itself, so that passes that change
+     * the tree can change it).
+     ***/
+    public List<StmtNode> stmts() {
+        return myStmts;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, process each statement in the list.
@@ -252,16 +591,68 @@ class StmtListNode extends ASTnode {
         }
     }
 
+    /****
+     * check
+     * Given a symbol table symTab, check each statement in the list.
+     ****/
+    public void check(SymTab symTab, Type retType) {
+        for (StmtNode node : myStmts) {
+            node.check(symTab, retType);
+        }
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        for (StmtNode node : myStmts) {
+            node.fold();
+        }
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
         for (StmtNode node : myStmts) {
-            Codegen.p.print("# STATEMENT\n");
+            Codegen.genText("# STATEMENT");
             node.codeGen();
         }
     }
 
+    /***
+     * copy
+     ***/
+    public StmtListNode copy() {
+        List<StmtNode> stmts = new ArrayList<StmtNode>(myStmts.size());
+        for (StmtNode stmt : myStmts) {
+            stmts.add(stmt.copy());
+        }
+        return new StmtListNode(stmts);
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.STMT_LIST);
+        for (StmtNode node : myStmts) {
+            f.addChild(n, node.flatten(f));
+        }
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        for (StmtNode node : myStmts) {
+            node.accept(v);
+        }
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<StmtNode> it = myStmts.iterator();
         while (it.hasNext()) {
@@ -278,6 +669,10 @@ class ExpListNode extends ASTnode {
         myExps = S;
     }
 
+    public List<ExpNode> exps() {
+        return myExps;
+    }
+
     public int size() {
         return myExps.size();
     }
@@ -316,13 +711,87 @@ class ExpListNode extends ASTnode {
         }
     }
 
+    /****
+     * check
+     * Combined nameAnalysis and typeCheck of each exp in the list.
+     ****/
+    public void check(SymTab symTab, List<Type> typeList) {
+        int k = 0;
+        for (ExpNode node : myExps) {
+            Type actualType = node.check(symTab);      // actual type of arg
+
+            if (!actualType.isErrorType()) {        // if this is not an error
+                Type formalType = typeList.get(k);  // get the formal type
+                if (!formalType.equals(actualType)) {
+                    ErrMsg.fatal(node.lineNum(), node.charNum(),
+                                 "Actual type and formal type do not match");
+                }
+            }
+            k++;
+        }
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().fold());
+        }
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        ListIterator<ExpNode> it = myExps.listIterator();
+        while (it.hasNext()) {
+            it.set(it.next().substitute(map));
+        }
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
         for (int c = myExps.size() - 1; c >= 0; c--) {
-            myExps.get(c).codeGen();
+            myExps.get(c).codeGen(0);
+            Codegen.genPush(Codegen.T0);
+        }
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpListNode copy() {
+        List<ExpNode> exps = new LinkedList<ExpNode>();
+        for (ExpNode exp : myExps) {
+            exps.add(exp.copy());
+        }
+        return new ExpListNode(exps);
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.EXP_LIST);
+        for (ExpNode node : myExps) {
+            f.addChild(n, node.flatten(f));
+        }
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        for (ExpNode node : myExps) {
+            node.accept(v);
         }
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -339,11 +808,16 @@ class ExpListNode extends ASTnode {
     // list of children (ExpNodes)
     private List<ExpNode> myExps;
 }
+
 class FormalsListNode extends ASTnode {
     public FormalsListNode(List<FormalDeclNode> S) {
         myFormals = S;
     }
 
+    public List<FormalDeclNode> formals() {
+        return myFormals;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -369,6 +843,28 @@ class FormalsListNode extends ASTnode {
         return myFormals.size();
     }
 
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.FORMALS_LIST);
+        for (FormalDeclNode node : myFormals) {
+            f.addChild(n, node.flatten(f));
+        }
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        for (FormalDeclNode node : myFormals) {
+            node.accept(v);
+        }
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
         if (it.hasNext()) { // if there is at least one element
@@ -390,6 +886,14 @@ class FuncBodyNode extends ASTnode {
         myStmtList = stmtList;
     }
 
+    public DeclListNode declList() {
+        return myDeclList;
+    }
+
+    public StmtListNode stmtList() {
+        return myStmtList;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -408,6 +912,24 @@ class FuncBodyNode extends ASTnode {
         myStmtList.typeCheck(retType);
     }
 
+    /****
+     * check
+     * Given a symbol table symTab, do:
+     * - process the declaration list
+     * - check the statement list
+     ****/
+    public void check(SymTab symTab, Type retType) {
+        myDeclList.nameAnalysis(symTab);
+        myStmtList.check(symTab, retType);
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myStmtList.fold();
+    }
+
     /***
      * codeGen
      ***/
@@ -415,9 +937,29 @@ class FuncBodyNode extends ASTnode {
         myStmtList.codeGen();
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        myDeclList.unparse(p, indent);
-        myStmtList.unparse(p, indent);
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.FUNC_BODY);
+        f.addChild(n, myDeclList.flatten(f));
+        f.addChild(n, myStmtList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myDeclList.accept(v);
+        myStmtList.accept(v);
+        v.post(this);
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        myDeclList.unparse(p, indent);
+        myStmtList.unparse(p, indent);
     }
 
     // 2 children
@@ -441,6 +983,9 @@ abstract class DeclNode extends ASTnode {
 
     // default version of codeGen for non-function/non-var decls
     public void codeGen() { }
+
+    // default version of fold for decls other than functions
+    public void fold() { }
 }
 
 class VarDeclNode extends DeclNode {
@@ -450,6 +995,10 @@ class VarDeclNode extends DeclNode {
         mySize = size;
     }
 
+    public IdNode idNode() {
+        return myId;
+    }
+
     /****
      * nameAnalysis (overloaded)
      * Given a symbol table symTab, do:
@@ -476,8 +1025,8 @@ class VarDeclNode extends DeclNode {
         IdNode structId = null;
 
         if (myType instanceof VoidNode) {  // check for void type
-            ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
-                         "Non-function declared void");
+            ErrMsg.nameError(myId.lineNum(), myId.charNum(), 
+                             "Non-function declared void");
             badDecl = true;        
         }
         
@@ -489,7 +1038,7 @@ class VarDeclNode extends DeclNode {
 				// if the name for the struct type is not found, 
 				// or is not a struct type
 				if (sym == null || !(sym instanceof StructDefSym)) {
-					ErrMsg.fatal(structId.lineNum(), structId.charNum(), 
+					ErrMsg.nameError(structId.lineNum(), structId.charNum(), 
 								"Name of struct type invalid");
 					badDecl = true;
 				}
@@ -505,7 +1054,7 @@ class VarDeclNode extends DeclNode {
         
 		try {
 			if (symTab.lookupLocal(name) != null) {
-				ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
+				ErrMsg.nameError(myId.lineNum(), myId.charNum(), 
 							"Identifier multiply-declared");
 				badDecl = true;            
 			}
@@ -560,11 +1109,31 @@ class VarDeclNode extends DeclNode {
         // .align 2
         // _v: .space 4
 
-        Codegen.p.print("\t.data\n");
-        Codegen.p.print("\t.align 2\n");
-        Codegen.p.print("_" + myId.name() + ":" + "\t.space 4\n");
+        Codegen.genText("\t.data");
+        Codegen.genText("\t.align 2");
+        Codegen.genText("_" + myId.name() + ":" + "\t.space 4");
     }
     
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.VAR_DECL, 0, 0, mySize);
+        f.addChild(n, myType.flatten(f));
+        f.addChild(n, myId.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myType.accept(v);
+        myId.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         myType.unparse(p, 0);
@@ -592,6 +1161,73 @@ class FuncDeclNode extends DeclNode {
         myBody = body;
     }
 
+    public IdNode idNode() {
+        return myId;
+    }
+
+    public FormalsListNode formalsList() {
+        return myFormalsList;
+    }
+
+    public FuncBodyNode body() {
+        return myBody;
+    }
+
+    /***
+     * Return the control-flow graph of the function (see Cfg), or null if
+     * it has not been built.
+     ***/
+    public Cfg cfg() {
+        return myCfg;
+    }
+
+    public void setCfg(Cfg cfg) {
+        myCfg = cfg;
+    }
+
+    /***
+     * Return the SSA form of the function (see Ssa), or null if it is not
+     * in SSA form.
+     ***/
+    public Ssa ssa() {
+        return mySsa;
+    }
+
+    public void setSsa(Ssa ssa) {
+        mySsa = ssa;
+    }
+
+    /***
+     * Add a new local of the given type (integer or boolean) to the
+     * function, for a temp introduced by an optimization, and return an ID
+     * for it (see IdNode.copy for more).  Its name (t$1, t$2, ...) cannot
+     * be the name of a variable of the program.
+     ***/
+    public IdNode newTemp(Type type) {
+        FuncSym funcSym = (FuncSym)myId.sym();
+        Sym sym = new Sym(type);
+        sym.setOffset(-8 - funcSym.getLocalsSize());
+        funcSym.setLocalsSize(funcSym.getLocalsSize() + 4);
+        IdNode id = new IdNode(myId.lineNum(), myId.charNum(),
+                               "t$" + ++myNumTemps);
+        id.link(sym);
+        id.typeCheck();
+        return id;
+    }
+
+    /***
+     * Add n to the count of what, for a pass that changes the function
+     * before code generation; the counts are added to those of its code
+     * (see FuncCode.count and Stats).
+     ***/
+    public void count(String what, int n) {
+        if (myCounts == null) {
+            myCounts = new LinkedHashMap<String, Integer>();
+        }
+        Integer count = myCounts.get(what);
+        myCounts.put(what, n + (count == null ? 0 : count));
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -606,11 +1242,23 @@ class FuncDeclNode extends DeclNode {
      *     exit scope
      ****/
     public Sym nameAnalysis(SymTab symTab) {
+        return nameAnalysis(symTab, false);
+    }
+
+    /****
+     * check
+     * Same as nameAnalysis, except that the body is also type checked.
+     ****/
+    public void check(SymTab symTab) {
+        nameAnalysis(symTab, true);
+    }
+
+    private Sym nameAnalysis(SymTab symTab, boolean check) {
         String name = myId.name();
         FuncSym sym = null;
         try {
 			if (symTab.lookupLocal(name) != null) {
-				ErrMsg.fatal(myId.lineNum(), myId.charNum(),
+				ErrMsg.nameError(myId.lineNum(), myId.charNum(),
 							"Identifier multiply-declared");
 			}
         
@@ -654,7 +1302,11 @@ class FuncDeclNode extends DeclNode {
         symTab.setOffset(-8);  // offset of first local
         int temp = symTab.getOffset();
 
-        myBody.nameAnalysis(symTab); // process the function body
+        if (check) {
+            myBody.check(symTab, myType.type());  // check the function body
+        } else {
+            myBody.nameAnalysis(symTab); // process the function body
+        }
 
          if (sym != null) {
             sym.setLocalsSize(-1*(symTab.getOffset() - temp));
@@ -679,18 +1331,37 @@ class FuncDeclNode extends DeclNode {
         myBody.typeCheck(myType.type());
     }
 
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myBody.fold();
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
+        FuncCode code = genCode();
+        Stats.add(code);
+        Emitter.emit(code, Codegen.p);
+    }
+
+    /***
+     * genCode
+     * Generate the code for the function (see Codegen.beginFunction) and
+     * return it.
+     ***/
+    public FuncCode genCode() {
         String labelFunc = myId.name();
-        Codegen.p.print(".text\n");
-        if (myId.isMain()) {
-            Codegen.p.print(".globl main\n");
-        }
-        else {
+        if (!myId.isMain()) {
             labelFunc = "_" + labelFunc;
         }
+        Codegen.beginFunction(labelFunc, myId.name());
+        Codegen.genText(".text");
+        if (myId.isMain()) {
+            Codegen.genText(".globl main");
+        }
         // function entry instructions
         Codegen.genLabel(labelFunc, "FUNCTION ENTRY: " + labelFunc);
         Codegen.genPush(Codegen.RA);
@@ -699,16 +1370,16 @@ class FuncDeclNode extends DeclNode {
 
         FuncSym funcSym = (FuncSym)myId.sym();
         if (funcSym.getLocalsSize() > 0) {
-            Codegen.p.print("# LOCALS\n");
+            Codegen.genText("# LOCALS");
             Codegen.generate("subu", Codegen.SP, Codegen.SP, funcSym.getLocalsSize());
         }
-        exitFuncLabel = labelFunc + "_Exit";
+        Codegen.beginBody(funcSym.getLocalsSize(), funcSym.getParamsSize());
 
         // instructions for function body
         myBody.codeGen();
 
         // function exit instructions
-        Codegen.genLabel(exitFuncLabel, "FUNCTION EXIT: " + labelFunc);
+        Codegen.genLabel(Codegen.exitLabel(), "FUNCTION EXIT: " + labelFunc);
         Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, 0);
         Codegen.generate("move", Codegen.T0, Codegen.FP);
         Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -4);
@@ -721,6 +1392,37 @@ class FuncDeclNode extends DeclNode {
         else {
             Codegen.generate("jr", Codegen.RA);
         }
+        FuncCode code = Codegen.endFunction();
+        if (myCounts != null) {
+            for (Map.Entry<String, Integer> entry : myCounts.entrySet()) {
+                code.count(entry.getKey(), entry.getValue());
+            }
+        }
+        return code;
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.FUNC_DECL);
+        f.addChild(n, myType.flatten(f));
+        f.addChild(n, myId.flatten(f));
+        f.addChild(n, myFormalsList.flatten(f));
+        f.addChild(n, myBody.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myType.accept(v);
+        myId.accept(v);
+        myFormalsList.accept(v);
+        myBody.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -740,6 +1442,11 @@ class FuncDeclNode extends DeclNode {
     private IdNode myId;
     private FormalsListNode myFormalsList;
     private FuncBodyNode myBody;
+
+    private Cfg myCfg;  // see cfg
+    private Ssa mySsa;  // see ssa
+    private Map<String, Integer> myCounts;  // see count
+    private int myNumTemps;                 // see newTemp
 }
 
 class FormalDeclNode extends DeclNode {
@@ -748,6 +1455,10 @@ class FormalDeclNode extends DeclNode {
         myId = id;
     }
 
+    public IdNode idNode() {
+        return myId;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -762,14 +1473,14 @@ class FormalDeclNode extends DeclNode {
         Sym sym = null;
         
         if (myType instanceof VoidNode) {
-            ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
-                         "Non-function declared void");
+            ErrMsg.nameError(myId.lineNum(), myId.charNum(), 
+                             "Non-function declared void");
             badDecl = true;        
         }
         
         try { 
 			if (symTab.lookupLocal(name) != null) {
-				ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
+				ErrMsg.nameError(myId.lineNum(), myId.charNum(), 
 							"Identifier multiply-declared");
 				badDecl = true;
 			}
@@ -801,6 +1512,26 @@ class FormalDeclNode extends DeclNode {
         return sym;
     }
 
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.FORMAL_DECL);
+        f.addChild(n, myType.flatten(f));
+        f.addChild(n, myId.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myType.accept(v);
+        myId.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         myType.unparse(p, 0);
         p.print(" ");
@@ -833,7 +1564,7 @@ class StructDeclNode extends DeclNode {
         boolean badDecl = false;
         try {
 			if (symTab.lookupLocal(name) != null) {
-				ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
+				ErrMsg.nameError(myId.lineNum(), myId.charNum(), 
 							"Identifier multiply-declared");
 				badDecl = true;            
 			}
@@ -867,6 +1598,26 @@ class StructDeclNode extends DeclNode {
         return null;
     }
 
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.STRUCT_DECL);
+        f.addChild(n, myId.flatten(f));
+        f.addChild(n, myDeclList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myId.accept(v);
+        myDeclList.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("struct ");
@@ -889,6 +1640,14 @@ class StructDeclNode extends DeclNode {
 abstract class TypeNode extends ASTnode {
     /* all subclasses must provide a type method */
     abstract public Type type();
+
+    /***
+     * accept (default version for type nodes with no children)
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        v.post(this);
+    }
 }
 
 class BooleanNode extends TypeNode {
@@ -899,7 +1658,14 @@ class BooleanNode extends TypeNode {
      * type
      ****/
     public Type type() {
-        return new BooleanType();
+        return Type.BOOLEAN;
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.BOOLEAN_TYPE);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -915,7 +1681,14 @@ class IntegerNode extends TypeNode {
      * type
      ****/
     public Type type() {
-        return new IntegerType();
+        return Type.INTEGER;
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.INTEGER_TYPE);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -931,7 +1704,14 @@ class VoidNode extends TypeNode {
      * type
      ****/
     public Type type() {
-        return new VoidType();
+        return Type.VOID;
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.VOID_TYPE);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -952,7 +1732,25 @@ class StructNode extends TypeNode {
      * type
      ****/
     public Type type() {
-        return new StructType(myId);
+        return StructType.get(myId);
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.STRUCT_TYPE);
+        f.addChild(n, myId.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myId.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -971,6 +1769,26 @@ class StructNode extends TypeNode {
 abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTab symTab); 
     abstract public void typeCheck(Type retType);
+    abstract public void check(SymTab symTab, Type retType);
+    abstract public void fold();
+
+    /***
+     * substitute
+     * Replace the expressions of the statement (not of the statements
+     * nested in it) as given by map (see ExpNode.substitute).
+     * Default version for statements whose expressions are all IDs that
+     * are defined (++, --, read)
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) { }
+
+    /***
+     * copy
+     * Return a copy of the statement, with new nodes for its expressions
+     * and nested statements (see ExpNode.copy); the decls of nested lists
+     * are shared.
+     ***/
+    abstract public StmtNode copy();
+
     abstract public void codeGen();
 }
 
@@ -979,6 +1797,10 @@ class AssignStmtNode extends StmtNode {
         myAssign = assign;
     }
 
+    public AssignExpNode assign() {
+        return myAssign;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -994,12 +1816,57 @@ class AssignStmtNode extends StmtNode {
         myAssign.typeCheck();
     }
 
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        myAssign.check(symTab);
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myAssign.fold();
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myAssign.substitute(map);
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
-        myAssign.codeGen();
-        Codegen.genPop(Codegen.T0);
+        myAssign.codeGen(0);
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new AssignStmtNode((AssignExpNode)myAssign.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.ASSIGN_STMT);
+        f.addChild(n, myAssign.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myAssign.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1017,6 +1884,10 @@ class PostIncStmtNode extends StmtNode {
         myExp = exp;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1029,14 +1900,28 @@ class PostIncStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkOperand(myExp.typeCheck());
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkOperand(myExp.check(symTab));
+    }
+
+    private void checkOperand(Type type) {
         if (!type.isErrorType() && !type.isIntegerType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Arithmetic operator with non-integer operand");
         }
     }
 
+    /***
+     * fold (nothing to fold)
+     ***/
+    public void fold() { }
+
     /***
      * codeGen
      ***/
@@ -1047,8 +1932,32 @@ class PostIncStmtNode extends StmtNode {
         IdNode id = (IdNode)myExp;
         id.loadValue(Codegen.T0);
         Codegen.generate("add", Codegen.T0, Codegen.T0, 1);
-        id.genAddr(Codegen.T1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        id.storeValue(Codegen.T0);
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new PostIncStmtNode(myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.POST_INC);
+        f.addChild(n, myExp.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1066,6 +1975,10 @@ class PostDecStmtNode extends StmtNode {
         myExp = exp;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1078,14 +1991,28 @@ class PostDecStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkOperand(myExp.typeCheck());
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkOperand(myExp.check(symTab));
+    }
+
+    private void checkOperand(Type type) {
         if (!type.isErrorType() && !type.isIntegerType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Arithmetic operator with non-integer operand");
         }
     }
 
+    /***
+     * fold (nothing to fold)
+     ***/
+    public void fold() { }
+
     /***
      * codeGen
      ***/
@@ -1096,8 +2023,32 @@ class PostDecStmtNode extends StmtNode {
         IdNode id = (IdNode)myExp;
         id.loadValue(Codegen.T0);
         Codegen.generate("add", Codegen.T0, Codegen.T0, -1);
-        id.genAddr(Codegen.T1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
+        id.storeValue(Codegen.T0);
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new PostDecStmtNode(myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.POST_DEC);
+        f.addChild(n, myExp.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1117,6 +2068,18 @@ class IfStmtNode extends StmtNode {
         myStmtList = slist;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    public DeclListNode declList() {
+        return myDeclList;
+    }
+
+    public StmtListNode stmtList() {
+        return myStmtList;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -1143,14 +2106,47 @@ class IfStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkCondition(myExp.typeCheck());
+        myStmtList.typeCheck(retType);
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkCondition(myExp.check(symTab));
+        symTab.addScope();
+        myDeclList.nameAnalysis(symTab);
+        myStmtList.check(symTab, retType);
+        try {
+            symTab.removeScope();
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in IfStmtNode.check");
+            System.exit(-1);        
+        }
+    }
+
+    private void checkCondition(Type type) {
         if (!type.isErrorType() && !type.isBooleanType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Non-boolean expression in if condition");        
         }
-        
-        myStmtList.typeCheck(retType);
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp = myExp.substitute(map);
     }
 
     /***
@@ -1158,13 +2154,41 @@ class IfStmtNode extends StmtNode {
      ***/
     public void codeGen() {
         String exitIfLabel = Codegen.nextLabel();
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, exitIfLabel);
+        myExp.genJump(0, null, exitIfLabel);
         myStmtList.codeGen();
         Codegen.genLabel(exitIfLabel);
     }
 
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new IfStmtNode(myExp.copy(), myDeclList.copy(),
+                              myStmtList.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.IF);
+        f.addChild(n, myExp.flatten(f));
+        f.addChild(n, myDeclList.flatten(f));
+        f.addChild(n, myStmtList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        myDeclList.accept(v);
+        myStmtList.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("if (");
@@ -1193,6 +2217,26 @@ class IfElseStmtNode extends StmtNode {
         myElseStmtList = slist2;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    public DeclListNode thenDeclList() {
+        return myThenDeclList;
+    }
+
+    public StmtListNode thenStmtList() {
+        return myThenStmtList;
+    }
+
+    public DeclListNode elseDeclList() {
+        return myElseDeclList;
+    }
+
+    public StmtListNode elseStmtList() {
+        return myElseStmtList;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -1232,15 +2276,59 @@ class IfElseStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkCondition(myExp.typeCheck());
+        myThenStmtList.typeCheck(retType);
+        myElseStmtList.typeCheck(retType);
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkCondition(myExp.check(symTab));
+        symTab.addScope();
+        myThenDeclList.nameAnalysis(symTab);
+        myThenStmtList.check(symTab, retType);
+        try {
+            symTab.removeScope();
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in IfElseStmtNode.check");
+            System.exit(-1);        
+        }
+        symTab.addScope();
+        myElseDeclList.nameAnalysis(symTab);
+        myElseStmtList.check(symTab, retType);
+        try {
+            symTab.removeScope();
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in IfElseStmtNode.check");
+            System.exit(-1);        
+        }
+    }
+
+    private void checkCondition(Type type) {
         if (!type.isErrorType() && !type.isBooleanType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Non-boolean expression in if condition");        
         }
-        
-        myThenStmtList.typeCheck(retType);
-        myElseStmtList.typeCheck(retType);
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myExp = myExp.fold();
+        myThenStmtList.fold();
+        myElseStmtList.fold();
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp = myExp.substitute(map);
     }
 
     /***
@@ -1249,9 +2337,7 @@ class IfElseStmtNode extends StmtNode {
     public void codeGen() {
         String elseLabel = Codegen.nextLabel();
         String exitIfElseLabel = Codegen.nextLabel();
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, elseLabel);
+        myExp.genJump(0, null, elseLabel);
         myThenStmtList.codeGen();
         Codegen.generate("b", exitIfElseLabel);
         Codegen.genLabel(elseLabel);
@@ -1259,6 +2345,41 @@ class IfElseStmtNode extends StmtNode {
         Codegen.genLabel(exitIfElseLabel);
     }
 
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new IfElseStmtNode(myExp.copy(), myThenDeclList.copy(),
+                                  myThenStmtList.copy(), myElseDeclList.copy(),
+                                  myElseStmtList.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.IF_ELSE);
+        f.addChild(n, myExp.flatten(f));
+        f.addChild(n, myThenDeclList.flatten(f));
+        f.addChild(n, myThenStmtList.flatten(f));
+        f.addChild(n, myElseDeclList.flatten(f));
+        f.addChild(n, myElseStmtList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        myThenDeclList.accept(v);
+        myThenStmtList.accept(v);
+        myElseDeclList.accept(v);
+        myElseStmtList.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("if (");
@@ -1291,6 +2412,18 @@ class WhileStmtNode extends StmtNode {
         myStmtList = slist;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
+    public DeclListNode declList() {
+        return myDeclList;
+    }
+
+    public StmtListNode stmtList() {
+        return myStmtList;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, do:
@@ -1317,14 +2450,47 @@ class WhileStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkCondition(myExp.typeCheck());
+        myStmtList.typeCheck(retType);
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkCondition(myExp.check(symTab));
+        symTab.addScope();
+        myDeclList.nameAnalysis(symTab);
+        myStmtList.check(symTab, retType);
+        try {
+            symTab.removeScope();
+        } catch (SymTabEmptyException ex) {
+            System.err.println("Unexpected SymTabEmptyException " +
+                               " in WhileStmtNode.check");
+            System.exit(-1);        
+        }
+    }
+
+    private void checkCondition(Type type) {
         if (!type.isErrorType() && !type.isBooleanType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Non-boolean expression in while condition");        
         }
-        
-        myStmtList.typeCheck(retType);
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myExp = myExp.fold();
+        myStmtList.fold();
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp = myExp.substitute(map);
     }
 
     /***
@@ -1333,15 +2499,51 @@ class WhileStmtNode extends StmtNode {
     public void codeGen() {
         String beginWhileLabel = Codegen.nextLabel();
         String exitWhileLabel = Codegen.nextLabel();
+        if (Codegen.rotateLoops()) {
+            myExp.genJump(0, null, exitWhileLabel);
+            Codegen.genLabel(beginWhileLabel);
+            myStmtList.codeGen();
+            myExp.genJump(0, beginWhileLabel, null);
+            Codegen.genLabel(exitWhileLabel);
+            return;
+        }
         Codegen.genLabel(beginWhileLabel);
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, exitWhileLabel);
+        myExp.genJump(0, null, exitWhileLabel);
         myStmtList.codeGen();
         Codegen.generate("b", beginWhileLabel);
         Codegen.genLabel(exitWhileLabel);
     }
 
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new WhileStmtNode(myExp.copy(), myDeclList.copy(),
+                                 myStmtList.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.WHILE);
+        f.addChild(n, myExp.flatten(f));
+        f.addChild(n, myDeclList.flatten(f));
+        f.addChild(n, myStmtList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        myDeclList.accept(v);
+        myStmtList.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("while (");
@@ -1364,6 +2566,10 @@ class ReadStmtNode extends StmtNode {
         myExp = e;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1376,8 +2582,17 @@ class ReadStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkOperand(myExp.typeCheck());
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkOperand(myExp.check(symTab));
+    }
+
+    private void checkOperand(Type type) {
         if (type.isFuncType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Attempt to read function name");
@@ -1394,6 +2609,11 @@ class ReadStmtNode extends StmtNode {
         }
     }
 
+    /***
+     * fold (nothing to fold)
+     ***/
+    public void fold() { }
+
     /***
      * codeGen
      ***/
@@ -1409,8 +2629,32 @@ class ReadStmtNode extends StmtNode {
             // need to generate 0 or 1 for the value
             Codegen.generate("sgt", Codegen.V0, Codegen.V0, 0);
         }
-        id.genAddr(Codegen.T0);
-        Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0);
+        id.storeValue(Codegen.V0);
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new ReadStmtNode(myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.READ);
+        f.addChild(n, myExp.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1429,6 +2673,10 @@ class WriteStmtNode extends StmtNode {
         myExp = exp;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1441,8 +2689,17 @@ class WriteStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
-        Type type = myExp.typeCheck();
-        
+        checkOperand(myExp.typeCheck());
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkOperand(myExp.check(symTab));
+    }
+
+    private void checkOperand(Type type) {
         if (type.isFuncType()) {
             ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                          "Attempt to write function name");
@@ -1464,15 +2721,22 @@ class WriteStmtNode extends StmtNode {
         }
     }
 
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myExp = myExp.fold();
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
-        Type t = myExp.typeCheck();
+        Type t = myExp.type();
+
+        myExp.codeGen(0);
+        Codegen.generate("move", Codegen.A0, Codegen.T0);
 
-        myExp.codeGen();
-        Codegen.genPop(Codegen.A0);
-        
         if (t.isIntegerType() || t.isBooleanType()) {
             Codegen.generate("li", Codegen.V0, 1);
         }
@@ -1483,6 +2747,38 @@ class WriteStmtNode extends StmtNode {
         Codegen.generate("syscall");
     }
 
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp = myExp.substitute(map);
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new WriteStmtNode(myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.WRITE);
+        f.addChild(n, myExp.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         doIndent(p, indent);
         p.print("disp <- (");
@@ -1500,6 +2796,10 @@ class CallStmtNode extends StmtNode {
         myCall = call;
     }
 
+    public CallExpNode call() {
+        return myCall;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child
@@ -1515,14 +2815,57 @@ class CallStmtNode extends StmtNode {
         myCall.typeCheck();
     }
 
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        myCall.check(symTab);
+    }
+
+    /***
+     * fold
+     ***/
+    public void fold() {
+        myCall.fold();
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myCall.substitute(map);
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
-        boolean hasRet = myCall.codeGenRet();
-        if (hasRet) {
-            Codegen.genPop(Codegen.T0);
-        }
+        myCall.genCall(0);
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new CallStmtNode((CallExpNode)myCall.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.CALL_STMT);
+        f.addChild(n, myCall.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myCall.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1540,6 +2883,13 @@ class ReturnStmtNode extends StmtNode {
         myExp = exp;
     }
 
+    /***
+     * Return the returned value (null if none).
+     ***/
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /****
      * nameAnalysis
      * Given a symbol table symTab, perform name analysis on this node's child,
@@ -1555,9 +2905,18 @@ class ReturnStmtNode extends StmtNode {
      * typeCheck
      ***/
     public void typeCheck(Type retType) {
+        checkReturn(myExp == null ? null : myExp.typeCheck(), retType);
+    }
+
+    /***
+     * check
+     ***/
+    public void check(SymTab symTab, Type retType) {
+        checkReturn(myExp == null ? null : myExp.check(symTab), retType);
+    }
+
+    private void checkReturn(Type type, Type retType) {
         if (myExp != null) {  // return value given
-            Type type = myExp.typeCheck();
-            
             if (retType.isVoidType()) {
                 ErrMsg.fatal(myExp.lineNum(), myExp.charNum(),
                              "Return value in void function");                
@@ -1577,15 +2936,66 @@ class ReturnStmtNode extends StmtNode {
 
     }
 
+    /***
+     * fold
+     ***/
+    public void fold() {
+        if (myExp != null) {
+            myExp = myExp.fold();
+        }
+    }
+
+    /***
+     * substitute
+     ***/
+    public void substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        if (myExp != null) {
+            myExp = myExp.substitute(map);
+        }
+    }
+
     /***
      * codeGen
      ***/
     public void codeGen() {
+        if (myExp instanceof CallExpNode &&
+            ((CallExpNode)myExp).genTailCall()) {
+            return;
+        }
+        if (myExp != null) {
+            myExp.codeGen(0);
+            Codegen.generate("move", Codegen.V0, Codegen.T0);
+        }
+        Codegen.generateWithComment("b", "RETURN", Codegen.exitLabel());
+    }
+
+    /***
+     * copy
+     ***/
+    public StmtNode copy() {
+        return new ReturnStmtNode(myExp == null ? null : myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.RETURN);
+        if (myExp != null) {
+            f.addChild(n, myExp.flatten(f));
+        }
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
         if (myExp != null) {
-            myExp.codeGen();
-            Codegen.genPop(Codegen.V0);
+            myExp.accept(v);
         }
-        Codegen.generateWithComment("b", "RETURN", exitFuncLabel);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1612,46 +3022,294 @@ abstract class ExpNode extends ASTnode {
      ****/
     public void nameAnalysis(SymTab symTab) { }
 
-    abstract public Type typeCheck();
     abstract public int lineNum();
     abstract public int charNum();
 
-    abstract public void codeGen();
-}
+    /***
+     * typeCheck
+     * The type of an expression is only computed once; it is stored in the
+     * node, and later calls (and code generation, via type()) just read it.
+     ***/
+    public Type typeCheck() {
+        if (myType == null) {
+            myType = computeType();
+        }
+        return myType;
+    }
 
-class TrueNode extends ExpNode {
-    public TrueNode(int lineNum, int charNum) {
-        myLineNum = lineNum;
-        myCharNum = charNum;
+    /****
+     * check
+     * Combined nameAnalysis and typeCheck (see ProgramNode.check).
+     ****/
+    public Type check(SymTab symTab) {
+        if (myType == null) {
+            myType = computeType(symTab);
+        }
+        return myType;
     }
 
     /***
-     * Return the line number for this literal.
+     * Return the type computed by typeCheck or check (null if neither has
+     * been called).
      ***/
-    public int lineNum() {
-        return myLineNum;
+    public Type type() {
+        return myType;
     }
-    
+
+    // the type rule for this node (children are type checked first)
+    abstract protected Type computeType();
+
     /***
-     * Return the char number for this literal.
+     * Same as computeType, but doing name analysis of this node and its
+     * children first.
+     * Default version for nodes with no names
      ***/
-    public int charNum() {
-        return myCharNum;
+    protected Type computeType(SymTab symTab) {
+        return computeType();
     }
-    
+
     /***
-     * typeCheck
+     * codeGen
+     * Generate code to evaluate the expression into temporary k (see
+     * Codegen.temp), using only temporaries k and up; the ones below k
+     * hold values that are still needed.
      ***/
-    public Type typeCheck() {
-        return new BooleanType();
+    abstract public void codeGen(int k);
+
+    /***
+     * genJump
+     * Generate code to jump to trueLabel if the (boolean) expression is
+     * true and to falseLabel if it is false; one of the labels may be
+     * null, to fall through to the code that follows instead.  Uses
+     * temporaries k and up, like codeGen.  With jumping code (see
+     * Codegen.enableJumpingCode), the expression decides where to jump
+     * (see jump); otherwise its value is computed and tested.
+     ***/
+    public void genJump(int k, String trueLabel, String falseLabel) {
+        if (!Codegen.jumpingCode()) {
+            codeGen(k);
+            Codegen.genBranch("bne", Codegen.temp(k), Codegen.FALSE,
+                              trueLabel, falseLabel);
+            return;
+        }
+        jump(k, trueLabel, falseLabel);
+    }
+
+    /***
+     * jump
+     * Generate the jumping code for genJump.
+     * Default version: compute the value and test it
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        codeGen(k);
+        Codegen.genBranch("bne", Codegen.temp(k), Codegen.FALSE,
+                          trueLabel, falseLabel);
+    }
+
+    /***
+     * regs
+     * Return the number of temporaries needed to evaluate the expression
+     * without spilling to the stack (its Sethi-Ullman number).  It is only
+     * computed once, together with hasEffects.
+     ***/
+    public int regs() {
+        if (myRegs == 0) {
+            myRegs = computeRegs();
+            myEffects = computeEffects();
+        }
+        return myRegs;
+    }
+
+    /***
+     * Return true if evaluating the expression may change a variable or do
+     * I/O (i.e., it contains an assignment or a call), so that it must not
+     * be moved past other code.
+     ***/
+    public boolean hasEffects() {
+        regs();
+        return myEffects;
+    }
+
+    /***
+     * Return true for a literal.
+     ***/
+    public boolean isConstant() {
+        return false;
+    }
+
+    /***
+     * canTrap
+     * Return true if evaluating the expression may stop the program.  The
+     * generated code computes +, - and unary minus with add, sub and neg,
+     * which trap on overflow (* uses mul, which wraps around, as does the
+     * addu of a WrappingPlusNode made by Ivsr), and / with div, which
+     * traps on a zero divisor.  So an operator may trap unless
+     * its operands are literals it does not overflow for, or it is a
+     * division by a nonzero literal.  The optimizations keep these semantics: they do
+     * not fold, move or remove an expression that may trap (see fold, Sccp,
+     * Licm and Dce).
+     * Default version for literals, IDs and colon-accesses
+     ***/
+    public boolean canTrap() {
+        return false;
+    }
+
+    /***
+     * fold
+     * Fold the constant parts of this expression (operators applied to
+     * literals are replaced by literals for their values, computed as MIPS
+     * would: * wraps around, but a +, - or unary minus that overflows, or
+     * a division by 0, is left for run time, where it traps; see canTrap)
+     * and simplify identities such as x + 0, x * 1 and ^^b (an operand
+     * that may trap is never dropped).  Return the expression to use instead of this
+     * one (which may be this one).  The new nodes are type checked.
+     * Default version for literals, IDs and colon-accesses
+     ***/
+    public ExpNode fold() {
+        return this;
+    }
+
+    /***
+     * substitute
+     * Replace the subexpressions of this expression that are keys of map
+     * by their values (the children first), and return the expression to
+     * use instead of this one: its value in map, or this one.  Used by the
+     * passes that replace expressions by temps (see Cse).
+     * Default version for literals, IDs and colon-accesses
+     ***/
+    public ExpNode substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        ExpNode exp = map.get(this);
+        return exp == null ? this : exp;
+    }
+
+    /***
+     * copy
+     * Return a copy of the expression: new nodes, linked to the same
+     * symbols (see IdNode.copy), that are not yet type checked.
+     ***/
+    abstract public ExpNode copy();
+
+    /***
+     * Return the value of an integer or boolean literal (TRUE is 1 and
+     * FALSE is 0), or null for any other expression.
+     ***/
+    public Integer litValue() {
+        return null;
+    }
+
+    /***
+     * Return a new literal of the given type (integer or boolean) and
+     * value, at the position of this expression.
+     ***/
+    protected ExpNode makeLit(Type type, int value) {
+        ExpNode lit;
+        if (!type.isBooleanType()) {
+            lit = new IntLitNode(lineNum(), charNum(), value);
+        }
+        else if (value != 0) {
+            lit = new TrueNode(lineNum(), charNum());
+        }
+        else {
+            lit = new FalseNode(lineNum(), charNum());
+        }
+        lit.typeCheck();
+        return lit;
+    }
+
+    // forget the register count and effects computed by regs (called when
+    // the children may have been replaced, e.g., by fold)
+    protected void forgetRegs() {
+        myRegs = 0;
+    }
+
+    // default versions for literals and IDs
+    protected int computeRegs() {
+        return 1;
+    }
+
+    protected boolean computeEffects() {
+        return false;
+    }
+
+    /***
+     * accept (default version for literals and IDs)
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        v.post(this);
+    }
+
+    private Type myType;  // set by typeCheck or check
+    private int myRegs;   // set by regs (0 until then)
+    private boolean myEffects;
+}
+
+class TrueNode extends ExpNode {
+    public TrueNode(int lineNum, int charNum) {
+        myLineNum = lineNum;
+        myCharNum = charNum;
+    }
+
+    /***
+     * Return the line number for this literal.
+     ***/
+    public int lineNum() {
+        return myLineNum;
+    }
+    
+    /***
+     * Return the char number for this literal.
+     ***/
+    public int charNum() {
+        return myCharNum;
+    }
+    
+    /***
+     * computeType
+     ***/
+    protected Type computeType() {
+        return Type.BOOLEAN;
+    }
+
+    /***
+     * litValue
+     ***/
+    public Integer litValue() {
+        return 1;
     }
 
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, 1);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        Codegen.generate("li", Codegen.temp(k), 1);
+    }
+
+    /***
+     * jump
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        if (trueLabel != null) {
+            Codegen.generate("b", trueLabel);
+        }
+    }
+
+    public boolean isConstant() {
+        return true;
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new TrueNode(myLineNum, myCharNum);
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.TRUE, myLineNum, myCharNum, 0);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1683,18 +3341,51 @@ class FalseNode extends ExpNode {
     }
 
     /***
-     * typeCheck
+     * computeType
      ***/
-    public Type typeCheck() {
-        return new BooleanType();
+    protected Type computeType() {
+        return Type.BOOLEAN;
+    }
+
+    /***
+     * litValue
+     ***/
+    public Integer litValue() {
+        return 0;
     }
 
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, 0);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        Codegen.generate("li", Codegen.temp(k), 0);
+    }
+
+    /***
+     * jump
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        if (falseLabel != null) {
+            Codegen.generate("b", falseLabel);
+        }
+    }
+
+    public boolean isConstant() {
+        return true;
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new FalseNode(myLineNum, myCharNum);
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.FALSE, myLineNum, myCharNum, 0);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1719,6 +3410,15 @@ class IdNode extends ExpNode {
         mySym = sym;
     }
     
+    /***
+     * Make this ID the same variable as the given one (its symbol and
+     * name), e.g., for a copy of a local in a body that is inlined.
+     ***/
+    public void relink(IdNode id) {
+        mySym = id.sym();
+        myStrVal = id.name();
+    }
+
     /****
      * Return the name of this ID.
      ****/
@@ -1787,7 +3487,7 @@ class IdNode extends ExpNode {
 		try {
             Sym sym = symTab.lookupGlobal(myStrVal);
             if (sym == null) {
-                ErrMsg.fatal(myLineNum, myCharNum, "Identifier undeclared");
+                ErrMsg.nameError(myLineNum, myCharNum, "Identifier undeclared");
             } else {
                 link(sym);
             }
@@ -1799,9 +3499,20 @@ class IdNode extends ExpNode {
     }
 
     /***
-     * typeCheck
+     * computeType (with name analysis)
      ***/
-    public Type typeCheck() {
+    protected Type computeType(SymTab symTab) {
+        nameAnalysis(symTab);
+        if (mySym == null) {
+            return Type.ERROR;
+        }
+        return typeCheck();
+    }
+
+    /***
+     * computeType
+     ***/
+    protected Type computeType() {
         if (mySym != null) {
             return mySym.getType();
         } 
@@ -1815,32 +3526,65 @@ class IdNode extends ExpNode {
     /***
      * codeGen
      ***/
-    public void codeGen() {
+    public void codeGen(int k) {
         // local and global have code generated for them
-        loadValue(Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+        loadValue(Codegen.temp(k));
     }
 
-    public void genAddr(String regDst) {
-        if (sym().isGlobal()) {
-            String label = "_" +  name();
-            Codegen.generate("la", regDst, label);
+    public void loadValue(String regDst) {
+        if (mySym.isGlobal()) {
+            String label = "_" + name();
+            Codegen.generate("lw", regDst, label);
         }
         else {
-            Codegen.generateIndexed("la", regDst, Codegen.FP, sym().getOffset());
+            Codegen.generateIndexed("lw", regDst, Codegen.FP, mySym.getOffset());
         }
     }
 
-    public void loadValue(String regDst) {
+    public void storeValue(String regSrc) {
         if (mySym.isGlobal()) {
             String label = "_" + name();
-            Codegen.generate("lw", regDst, label);
+            Codegen.generate("sw", regSrc, label);
         }
         else {
-            Codegen.generateIndexed("lw", regDst, Codegen.FP, mySym.getOffset());
+            Codegen.generateIndexed("sw", regSrc, Codegen.FP, mySym.getOffset());
         }
     }
 
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.ID, myLineNum, myCharNum, f.intern(myStrVal));
+    }
+
+    /***
+     * Return a new ID for the same symbol, at the same position (type
+     * checked).
+     ***/
+    public IdNode copy() {
+        IdNode id = new IdNode(myLineNum, myCharNum, myStrVal);
+        id.link(mySym);
+        id.typeCheck();
+        return id;
+    }
+
+    /***
+     * Record that this use of a variable always has the given value (see
+     * Sccp), so that fold replaces it by a literal.
+     ***/
+    public void setConstant(int value) {
+        myConstant = value;
+    }
+
+    /***
+     * fold
+     * A literal for the value of the ID, if it is known (see setConstant).
+     ***/
+    public ExpNode fold() {
+        return myConstant == null ? this : makeLit(type(), myConstant);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print(myStrVal);
         if (mySym != null) {
@@ -1852,6 +3596,7 @@ class IdNode extends ExpNode {
     private int myCharNum;
     private String myStrVal;
     private Sym mySym;
+    private Integer myConstant;  // see setConstant
 }
 
 class IntLitNode extends ExpNode {
@@ -1876,18 +3621,42 @@ class IntLitNode extends ExpNode {
     }
         
     /***
-     * typeCheck
+     * computeType
      ***/
-    public Type typeCheck() {
-        return new IntegerType();
+    protected Type computeType() {
+        return Type.INTEGER;
+    }
+
+    /***
+     * litValue
+     ***/
+    public Integer litValue() {
+        return myIntVal;
     }
 
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        Codegen.generate("li", Codegen.T0, myIntVal);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        Codegen.generate("li", Codegen.temp(k), myIntVal);
+    }
+
+    public boolean isConstant() {
+        return true;
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new IntLitNode(myLineNum, myCharNum, myIntVal);
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.INT_LIT, myLineNum, myCharNum, myIntVal);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -1906,7 +3675,12 @@ class StringLitNode extends ExpNode {
         myStrVal = strVal;
     }
 
-    private static HashMap<String, String> valueLabels = new HashMap<>();
+    /***
+     * Return the string value (including the quotes) of this literal.
+     ***/
+    public String strVal() {
+        return myStrVal;
+    }
 
     /***
      * Return the line number for this literal.
@@ -1923,27 +3697,35 @@ class StringLitNode extends ExpNode {
     }
     
     /***
-     * typeCheck
+     * computeType
      ***/
-    public Type typeCheck() {
-        return new StringType();
+    protected Type computeType() {
+        return Type.STRING;
     }
 
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        if (!valueLabels.containsKey(myStrVal)) {
-            String label = Codegen.nextLabel();
-            Codegen.p.print(".data\n");
-            Codegen.p.print(label + ":" +  "\t.asciiz " + myStrVal + "\n");
-            Codegen.p.print(".text\n");
+    public void codeGen(int k) {
+        Codegen.generate("la", Codegen.temp(k), Codegen.stringLabel(myStrVal));
+    }
 
-            valueLabels.put(myStrVal, label);
-        }
+    public boolean isConstant() {
+        return true;
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new StringLitNode(myLineNum, myCharNum, myStrVal);
+    }
 
-        Codegen.generate("la", Codegen.T0, valueLabels.get(myStrVal));
-        Codegen.genPush(Codegen.T0);
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        return f.add(FlatAst.STR_LIT, myLineNum, myCharNum, f.intern(myStrVal));
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2016,8 +3798,8 @@ class StructAccessExpNode extends ExpNode {
                 structSymTab = ((StructDefSym)tempSym).getSymTab();
             } 
             else {  // LHS is not a struct type
-                ErrMsg.fatal(id.lineNum(), id.charNum(), 
-                             "Colon-access of non-struct type");
+                ErrMsg.nameError(id.lineNum(), id.charNum(), 
+                                 "Colon-access of non-struct type");
                 badAccess = true;
             }
         }
@@ -2036,8 +3818,8 @@ class StructAccessExpNode extends ExpNode {
                 sym = loc.sym();
 
                 if (sym == null) {  // no struct in which to look up RHS
-                    ErrMsg.fatal(loc.lineNum(), loc.charNum(), 
-                                 "Colon-access of non-struct type");
+                    ErrMsg.nameError(loc.lineNum(), loc.charNum(), 
+                                     "Colon-access of non-struct type");
                     badAccess = true;
                 }
                 else {  // get the struct's symbol table in which to lookup RHS
@@ -2063,7 +3845,7 @@ class StructAccessExpNode extends ExpNode {
 			try {
 				sym = structSymTab.lookupGlobal(myId.name()); // lookup
 				if (sym == null) { // not found - RHS is not a valid field name
-					ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
+					ErrMsg.nameError(myId.lineNum(), myId.charNum(), 
 								"Name of struct field invalid");
 					badAccess = true;
 				}
@@ -2085,22 +3867,63 @@ class StructAccessExpNode extends ExpNode {
     }
 
     /***
-     * typeCheck
+     * computeType
      ***/
-    public Type typeCheck() {
+    protected Type computeType() {
         return myId.typeCheck();
     }
 
+    /***
+     * computeType (with name analysis)
+     ***/
+    protected Type computeType(SymTab symTab) {
+        nameAnalysis(symTab);
+        if (myId.sym() == null) {
+            return Type.ERROR;
+        }
+        return typeCheck();
+    }
+
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        // Not needed, push 0 to continue calculating expression push 0 on stack
-        Codegen.generate("li", Codegen.V0, 0);
-        Codegen.genPush(Codegen.V0);
+    public void codeGen(int k) {
+        // Not needed, use 0 to continue calculating expression
+        Codegen.generate("li", Codegen.temp(k), 0);
     }
 
     // **** unparse ****
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        StructAccessExpNode copy = new StructAccessExpNode(myLoc.copy(),
+                                                           myId.copy());
+        copy.mySym = mySym;
+        copy.badAccess = badAccess;
+        return copy;
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.STRUCT_ACCESS, lineNum(), charNum(), 0);
+        f.addChild(n, myLoc.flatten(f));
+        f.addChild(n, myId.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myLoc.accept(v);
+        myId.accept(v);
+        v.post(this);
+    }
+
     public void unparse(PrintWriter p, int indent) {
         p.print("(");
         myLoc.unparse(p, 0);
@@ -2121,6 +3944,14 @@ class AssignExpNode extends ExpNode {
         myExp = exp;
     }
 
+    public ExpNode lhs() {
+        return myLhs;
+    }
+
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /***
      * Return the line number for this assignment node. 
      * The line number is the one corresponding to the left operand.
@@ -2148,72 +3979,140 @@ class AssignExpNode extends ExpNode {
     }
 
     /***
-     * typeCheck
+     * computeType
      ***/
-    public Type typeCheck() {
-        Type typeLhs = myLhs.typeCheck();
-        Type typeExp = myExp.typeCheck();
+    protected Type computeType() {
+        return typeCheck(myLhs.typeCheck(), myExp.typeCheck());
+    }
+
+    /***
+     * computeType (with name analysis)
+     ***/
+    protected Type computeType(SymTab symTab) {
+        Type typeLhs = myLhs.check(symTab);
+        Type typeExp = myExp.check(symTab);
+        return typeCheck(typeLhs, typeExp);
+    }
+
+    private Type typeCheck(Type typeLhs, Type typeExp) {
         Type retType = typeLhs;
         
         if (typeLhs.isFuncType() && typeExp.isFuncType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Assignment to function name");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (typeLhs.isStructDefType() && typeExp.isStructDefType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Assignment to struct name");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (typeLhs.isStructType() && typeExp.isStructType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Assignment to struct variable");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }        
         
         if (!typeLhs.equals(typeExp) && !typeLhs.isErrorType() && !typeExp.isErrorType()) {
             ErrMsg.fatal(lineNum(), charNum(), "Type mismatch");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (typeLhs.isErrorType() || typeExp.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
     }
 
+    /***
+     * fold
+     ***/
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        forgetRegs();
+        return this;
+    }
+
+    /***
+     * substitute (the right-hand side only)
+     ***/
+    public ExpNode substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp = myExp.substitute(map);
+        forgetRegs();
+        return super.substitute(map);
+    }
+
     /***
      * codeGen
      ***/
-    public void codeGen() {
+    public void codeGen(int k) {
         if (!(myLhs instanceof IdNode)) {
             throw new IllegalStateException("left side of assignment must be id");
         }
-        myExp.codeGen();
-        Codegen.genPop(Codegen.T0);
+        myExp.codeGen(k);
         IdNode id = (IdNode)myLhs;
-        id.genAddr(Codegen.T1);
-        Codegen.generateIndexed("sw", Codegen.T0, Codegen.T1, 0);
-        Codegen.genPush(Codegen.T0);
+        id.storeValue(Codegen.temp(k));
     }
 
-    public void unparse(PrintWriter p, int indent) {
-        if (indent != -1)  p.print("(");
-        myLhs.unparse(p, 0);
-        p.print(" = ");
-        myExp.unparse(p, 0);
-        if (indent != -1)  p.print(")");   
+    protected int computeRegs() {
+        return myExp.regs();
     }
 
-    // 2 children
-    private ExpNode myLhs;
-    private ExpNode myExp;
-}
+    protected boolean computeEffects() {
+        return true;
+    }
 
-class CallExpNode extends ExpNode {
-    public CallExpNode(IdNode name, ExpListNode elist) {
-        myId = name;
-        myExpList = elist;
+    /***
+     * canTrap
+     ***/
+    public boolean canTrap() {
+        return myExp.canTrap();
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new AssignExpNode(myLhs.copy(), myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.ASSIGN, lineNum(), charNum(), 0);
+        f.addChild(n, myLhs.flatten(f));
+        f.addChild(n, myExp.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myLhs.accept(v);
+        myExp.accept(v);
+        v.post(this);
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        if (indent != -1)  p.print("(");
+        myLhs.unparse(p, 0);
+        p.print(" = ");
+        myExp.unparse(p, 0);
+        if (indent != -1)  p.print(")");   
+    }
+
+    // 2 children
+    private ExpNode myLhs;
+    private ExpNode myExp;
+}
+
+class CallExpNode extends ExpNode {
+    public CallExpNode(IdNode name, ExpListNode elist) {
+        myId = name;
+        myExpList = elist;
     }
 
     public CallExpNode(IdNode name) {
@@ -2221,6 +4120,14 @@ class CallExpNode extends ExpNode {
         myExpList = new ExpListNode(new LinkedList<ExpNode>());
     }
 
+    public IdNode idNode() {
+        return myId;
+    }
+
+    public ExpListNode expList() {
+        return myExpList;
+    }
+
     /***
      * Return the line number for this call node. 
      * The line number is the one corresponding to the function name.
@@ -2248,13 +4155,13 @@ class CallExpNode extends ExpNode {
     } 
 
      /***
-     * typeCheck
+     * computeType
      ***/
-    public Type typeCheck() {
+    protected Type computeType() {
         if (!myId.typeCheck().isFuncType()) {  
             ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
                          "Attempt to call non-function");
-            return new ErrorType();
+            return Type.ERROR;
         }
         
         FuncSym fctnSym = (FuncSym)(myId.sym());
@@ -2274,26 +4181,151 @@ class CallExpNode extends ExpNode {
         return fctnSym.getReturnType();
     }
 
+    /***
+     * computeType (with name analysis)
+     * The args are only type checked if typeCheck would check them.
+     ***/
+    protected Type computeType(SymTab symTab) {
+        Type idType = myId.check(symTab);
+        if (ErrMsg.getNameErr()) {  // no type checking after a name error
+            myExpList.nameAnalysis(symTab);
+            return Type.ERROR;
+        }
+
+        if (!idType.isFuncType()) {
+            myExpList.nameAnalysis(symTab);
+            ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
+                         "Attempt to call non-function");
+            return Type.ERROR;
+        }
+
+        FuncSym fctnSym = (FuncSym)(myId.sym());
+        if (myExpList.size() != fctnSym.getNumParams()) {
+            myExpList.nameAnalysis(symTab);
+            ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
+                         "Wrong # of args in function call");
+            return fctnSym.getReturnType();
+        }
+
+        myExpList.check(symTab, fctnSym.getParamTypes());
+        return fctnSym.getReturnType();
+    }
+
+    /***
+     * fold
+     ***/
+    public ExpNode fold() {
+        if (myExpList != null) {
+            myExpList.fold();
+        }
+        forgetRegs();
+        return this;
+    }
+
+    /***
+     * substitute
+     ***/
+    public ExpNode substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        if (myExpList != null) {
+            myExpList.substitute(map);
+        }
+        forgetRegs();
+        return super.substitute(map);
+    }
+
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        codeGenRet();
+    public void codeGen(int k) {
+        genCall(k);
+        Codegen.generate("move", Codegen.temp(k), Codegen.V0);
     }
 
-    public boolean codeGenRet() {
+    /***
+     * genCall
+     * Generate the call, leaving the return value (if any) in V0.  No
+     * temporary survives a call, so temporaries 0 to k-1 are saved on the
+     * stack around it (regs makes sure that this is rare).
+     ***/
+    public void genCall(int k) {
+        for (int t = 0; t < k; t++) {
+            Codegen.genPush(Codegen.temp(t));
+        }
         myExpList.codeGen();
         Codegen.generate("jal", "_" + myId.name());
         if (myExpList.size() > 0) {
             // remove parameters from stack
             Codegen.generate("addu", Codegen.SP, myExpList.size() * 4);
         }
-        FuncSym fctnSym = (FuncSym)(myId.sym());
-        boolean hasReturn = !fctnSym.getReturnType().isVoidType();
-        if (hasReturn) {
-            Codegen.genPush(Codegen.V0);
+        for (int t = k - 1; t >= 0; t--) {
+            Codegen.genPop(Codegen.temp(t));
+        }
+    }
+
+    /***
+     * genTailCall
+     * Generate the call as the return of the current function, reusing
+     * its frame (see Codegen.genTailCall), and return true; return false
+     * (generating nothing) if that cannot be done.
+     ***/
+    public boolean genTailCall() {
+        String label = "_" + myId.name();
+        if (!Codegen.canTailCall(label, myExpList.size())) {
+            return false;
+        }
+        myExpList.codeGen();
+        Codegen.genTailCall(label, myExpList.size());
+        return true;
+    }
+
+    protected int computeRegs() {
+        return Codegen.NUM_TEMPS;
+    }
+
+    protected boolean computeEffects() {
+        return true;
+    }
+
+    /***
+     * canTrap (of the arguments; the call itself has effects anyway)
+     ***/
+    public boolean canTrap() {
+        if (myExpList != null) {
+            for (ExpNode arg : myExpList.exps()) {
+                if (arg.canTrap()) {
+                    return true;
+                }
+            }
         }
-        return hasReturn;
+        return false;
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new CallExpNode(myId.copy(),
+                               myExpList == null ? null : myExpList.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.CALL, lineNum(), charNum(), 0);
+        f.addChild(n, myId.flatten(f));
+        f.addChild(n, myExpList.flatten(f));
+        return n;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myId.accept(v);
+        myExpList.accept(v);
+        v.post(this);
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2315,6 +4347,10 @@ abstract class UnaryExpNode extends ExpNode {
         myExp = exp;
     }
 
+    public ExpNode exp() {
+        return myExp;
+    }
+
     /***
      * Return the line number for this unary expression node. 
      * The line number is the one corresponding to the  operand.
@@ -2339,6 +4375,56 @@ abstract class UnaryExpNode extends ExpNode {
         myExp.nameAnalysis(symTab);
     }
 
+    /***
+     * computeType
+     ***/
+    protected Type computeType() {
+        return typeCheck(myExp.typeCheck());
+    }
+
+    /***
+     * computeType (with name analysis)
+     ***/
+    protected Type computeType(SymTab symTab) {
+        return typeCheck(myExp.check(symTab));
+    }
+
+    // type check this node, given the type of the operand
+    abstract protected Type typeCheck(Type type);
+
+    /***
+     * substitute
+     ***/
+    public ExpNode substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp = myExp.substitute(map);
+        forgetRegs();
+        return super.substitute(map);
+    }
+
+    protected int computeRegs() {
+        return myExp.regs();
+    }
+
+    protected boolean computeEffects() {
+        return myExp.hasEffects();
+    }
+
+    /***
+     * canTrap
+     ***/
+    public boolean canTrap() {
+        return myExp.canTrap();
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp.accept(v);
+        v.post(this);
+    }
+
     // 1 child
     protected ExpNode myExp;
 }
@@ -2349,6 +4435,14 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2 = exp2;
     }
 
+    public ExpNode exp1() {
+        return myExp1;
+    }
+
+    public ExpNode exp2() {
+        return myExp2;
+    }
+
     /***
      * Return the line number for this binary expression node. 
      * The line number is the one corresponding to the left operand.
@@ -2375,14 +4469,160 @@ abstract class BinaryExpNode extends ExpNode {
         myExp2.nameAnalysis(symTab);
     }
 
+    /***
+     * computeType
+     ***/
+    protected Type computeType() {
+        return typeCheck(myExp1.typeCheck(), myExp2.typeCheck());
+    }
+
+    /***
+     * computeType (with name analysis)
+     ***/
+    protected Type computeType(SymTab symTab) {
+        Type type1 = myExp1.check(symTab);
+        Type type2 = myExp2.check(symTab);
+        return typeCheck(type1, type2);
+    }
+
+    // type check this node, given the types of the operands
+    abstract protected Type typeCheck(Type type1, Type type2);
+
+    /***
+     * fold
+     * Fold the operands; if both are then literals, replace this node by a
+     * literal for its value (see eval), otherwise try to simplify it (see
+     * simplify).
+     ***/
+    public ExpNode fold() {
+        myExp1 = myExp1.fold();
+        myExp2 = myExp2.fold();
+        forgetRegs();
+        Integer v1 = myExp1.litValue();
+        Integer v2 = myExp2.litValue();
+        if (v1 != null && v2 != null) {
+            Integer value = eval(v1, v2);
+            if (value != null) {
+                return makeLit(type(), value);
+            }
+        }
+        return simplify(v1, v2);
+    }
+
+    // return the value of the operator applied to the given values (true
+    // is 1 and false is 0), or null if it is not to be folded
+    abstract protected Integer eval(int v1, int v2);
+
+    // given the values of the operands that are literals (null for the
+    // others), return a simpler expression to use instead of this node,
+    // or this node
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        return this;
+    }
+
+    /***
+     * substitute
+     ***/
+    public ExpNode substitute(IdentityHashMap<ExpNode, ExpNode> map) {
+        myExp1 = myExp1.substitute(map);
+        myExp2 = myExp2.substitute(map);
+        forgetRegs();
+        return super.substitute(map);
+    }
+
     /***
      * codeGen
+     * Evaluate the operands (see genOperands), then apply the operator
+     * (see genOp).
      ***/
-    public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
-        Codegen.genPop(Codegen.T1);
-        Codegen.genPop(Codegen.T0);
+    public void codeGen(int k) {
+        String[] src = genOperands(k);
+        genOp(Codegen.temp(k), src[0], src[1]);
+    }
+
+    /***
+     * jump
+     * A comparison (see branchOp) branches on its operands.
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        String op = branchOp();
+        if (op == null) {
+            super.jump(k, trueLabel, falseLabel);
+            return;
+        }
+        String[] src = genOperands(k);
+        Codegen.genBranch(op, src[0], src[1], trueLabel, falseLabel);
+    }
+
+    // evaluate the operands into temporaries (in the order chosen by
+    // Codegen.operandOrder), and return the registers holding the left
+    // and right values; the right operand is only evaluated first if that
+    // cannot change the result: the left one has no effects and either
+    // the right one has none or the left one is a literal
+    protected String[] genOperands(int k) {
+        boolean canSwap = !myExp1.hasEffects() &&
+                          (!myExp2.hasEffects() || myExp1.isConstant());
+        String dst = Codegen.temp(k);
+        switch (Codegen.operandOrder(k, myExp1.regs(), myExp2.regs(),
+                                     canSwap)) {
+            case Codegen.LEFT_FIRST:
+                myExp1.codeGen(k);
+                myExp2.codeGen(k + 1);
+                return new String[] { dst, Codegen.temp(k + 1) };
+            case Codegen.RIGHT_FIRST:
+                myExp2.codeGen(k);
+                myExp1.codeGen(k + 1);
+                return new String[] { Codegen.temp(k + 1), dst };
+            default:
+                myExp1.codeGen(k);
+                Codegen.genPush(dst);
+                myExp2.codeGen(k);
+                Codegen.genPop(Codegen.V1);
+                return new String[] { Codegen.V1, dst };
+        }
+    }
+
+    // generate: dst = src1 op src2
+    abstract protected void genOp(String dst, String src1, String src2);
+
+    // the branch that jumps if src1 op src2 is true, for a comparison
+    // (null for other operators)
+    protected String branchOp() {
+        return null;
+    }
+
+    protected int computeRegs() {
+        int regs1 = myExp1.regs();
+        int regs2 = myExp2.regs();
+        return regs1 == regs2 ? regs1 + 1 : Math.max(regs1, regs2);
+    }
+
+    protected boolean computeEffects() {
+        return myExp1.hasEffects() || myExp2.hasEffects();
+    }
+
+    /***
+     * canTrap
+     ***/
+    public boolean canTrap() {
+        return myExp1.canTrap() || myExp2.canTrap() ||
+               opCanTrap(myExp1.litValue(), myExp2.litValue());
+    }
+
+    // return true if applying the operator may trap, given the values of
+    // the operands that are literals (null for the others)
+    protected boolean opCanTrap(Integer v1, Integer v2) {
+        return false;
+    }
+
+    /***
+     * accept
+     ***/
+    public void accept(ASTVisitor v) {
+        v.pre(this);
+        myExp1.accept(v);
+        myExp2.accept(v);
+        v.post(this);
     }
 
     // 2 children
@@ -2402,30 +4642,67 @@ class NotNode extends UnaryExpNode {
     /***
      * typeCheck
      ***/
-    public Type typeCheck() {
-        Type type = myExp.typeCheck();
-        Type retType = new BooleanType();
+    protected Type typeCheck(Type type) {
+        Type retType = Type.BOOLEAN;
         
         if (!type.isErrorType() && !type.isBooleanType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Logical operator with non-boolean operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
     }
 
+    /***
+     * fold
+     ***/
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        forgetRegs();
+        Integer value = myExp.litValue();
+        if (value != null) {
+            return makeLit(Type.BOOLEAN, 1 - value);
+        }
+        if (myExp instanceof NotNode) {   // ^^b is b
+            return ((NotNode)myExp).myExp;
+        }
+        return this;
+    }
+
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        myExp.codeGen();
-        Codegen.generate("xori", Codegen.T0, Codegen.T0, 1);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        myExp.codeGen(k);
+        Codegen.generate("xori", Codegen.temp(k), Codegen.temp(k), 1);
+    }
+
+    /***
+     * jump:  the labels swapped
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        myExp.genJump(k, falseLabel, trueLabel);
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new NotNode(myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.NOT, lineNum(), charNum(), 0);
+        f.addChild(n, myExp.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2443,30 +4720,65 @@ class UnaryMinusNode extends UnaryExpNode {
     /***
      * typeCheck
      ***/
-    public Type typeCheck() {
-        Type type = myExp.typeCheck();
-        Type retType = new IntegerType();
+    protected Type typeCheck(Type type) {
+        Type retType = Type.INTEGER;
         
         if (!type.isErrorType() && !type.isIntegerType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Arithmetic operator with non-integer operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
     }
 
+    /***
+     * fold
+     ***/
+    public ExpNode fold() {
+        myExp = myExp.fold();
+        forgetRegs();
+        Integer value = myExp.litValue();
+        if (value != null && value != Integer.MIN_VALUE) {
+            return makeLit(Type.INTEGER, -value);
+        }
+        return this;   // -(-x) is not x: the inner neg traps for MIN_VALUE
+    }
+
+    /***
+     * canTrap:  neg traps for MIN_VALUE
+     ***/
+    public boolean canTrap() {
+        Integer value = myExp.litValue();
+        return value == null ? true : value == Integer.MIN_VALUE;
+    }
+
     /***
      * codeGen
      ***/
-    public void codeGen() {
-        myExp.codeGen();
-        Codegen.generate("neg", Codegen.T0, Codegen.T0);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        myExp.codeGen(k);
+        Codegen.generate("neg", Codegen.temp(k), Codegen.temp(k));
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new UnaryMinusNode(myExp.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.UNARY_MINUS, lineNum(), charNum(), 0);
+        f.addChild(n, myExp.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2488,25 +4800,23 @@ abstract class ArithmeticExpNode extends BinaryExpNode {
     /***
      * typeCheck
      ***/
-    public Type typeCheck() {
-        Type type1 = myExp1.typeCheck();
-        Type type2 = myExp2.typeCheck();
-        Type retType = new IntegerType();
+    protected Type typeCheck(Type type1, Type type2) {
+        Type retType = Type.INTEGER;
         
         if (!type1.isErrorType() && !type1.isIntegerType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Arithmetic operator with non-integer operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (!type2.isErrorType() && !type2.isIntegerType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Arithmetic operator with non-integer operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
@@ -2521,29 +4831,35 @@ abstract class BooleanExpNode extends BinaryExpNode {
     /***
      * typeCheck
      ***/
-    public Type typeCheck() {
-        Type type1 = myExp1.typeCheck();
-        Type type2 = myExp2.typeCheck();
-        Type retType = new BooleanType();
+    protected Type typeCheck(Type type1, Type type2) {
+        Type retType = Type.BOOLEAN;
         
         if (!type1.isErrorType() && !type1.isBooleanType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Logical operator with non-boolean operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (!type2.isErrorType() && !type2.isBooleanType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Logical operator with non-boolean operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
     }
+
+    // not used: the subclasses evaluate one operand at a time, jumping
+    // over the second one if the first decides the result
+    protected void genOp(String dst, String src1, String src2) { }
+
+    protected int computeRegs() {
+        return Math.max(myExp1.regs(), myExp2.regs());
+    }
 }
 
 abstract class EqualityExpNode extends BinaryExpNode {
@@ -2554,58 +4870,45 @@ abstract class EqualityExpNode extends BinaryExpNode {
     /***
      * typeCheck
      ***/
-    public Type typeCheck() {
-        Type type1 = myExp1.typeCheck();
-        Type type2 = myExp2.typeCheck();
-        Type retType = new BooleanType();
+    protected Type typeCheck(Type type1, Type type2) {
+        Type retType = Type.BOOLEAN;
         
         if (type1.isVoidType() && type2.isVoidType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to void function calls");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isFuncType() && type2.isFuncType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to function names");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isStructDefType() && type2.isStructDefType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to struct names");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isStructType() && type2.isStructType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Equality operator applied to struct variables");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }        
         
         if (!type1.equals(type2) && !type1.isErrorType() && !type2.isErrorType()) {
             ErrMsg.fatal(lineNum(), charNum(),
                          "Type mismatch");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
     }
-
-    /***
-     * codeGen
-     ***/
-    public void codeGen() {
-        myExp1.codeGen();
-        myExp2.codeGen();
-        Codegen.genPop(Codegen.T1);
-        Codegen.genPop(Codegen.T0);
-    }
-
 }
 
 abstract class RelationalExpNode extends BinaryExpNode {
@@ -2616,25 +4919,23 @@ abstract class RelationalExpNode extends BinaryExpNode {
     /***
      * typeCheck
      ***/
-    public Type typeCheck() {
-        Type type1 = myExp1.typeCheck();
-        Type type2 = myExp2.typeCheck();
-        Type retType = new BooleanType();
+    protected Type typeCheck(Type type1, Type type2) {
+        Type retType = Type.BOOLEAN;
         
         if (!type1.isErrorType() && !type1.isIntegerType()) {
             ErrMsg.fatal(myExp1.lineNum(), myExp1.charNum(),
                          "Relational operator with non-integer operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (!type2.isErrorType() && !type2.isIntegerType()) {
             ErrMsg.fatal(myExp2.lineNum(), myExp2.charNum(),
                          "Relational operator with non-integer operand");
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         if (type1.isErrorType() || type2.isErrorType()) {
-            retType = new ErrorType();
+            retType = Type.ERROR;
         }
         
         return retType;
@@ -2647,45 +4948,151 @@ class AndNode extends BooleanExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        String labelDone = Codegen.nextLabel();
-        myExp1.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.FALSE, labelDone);
-        myExp2.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.genLabel(labelDone);
-        Codegen.genPush(Codegen.T0);
-    }
-
-    public void unparse(PrintWriter p, int indent) {
-        p.print("(");
-        myExp1.unparse(p, 0);
-        p.print(" & ");
-        myExp2.unparse(p, 0);
-        p.print(")");
+    protected Integer eval(int v1, int v2) {
+        return v1 & v2;
     }
-}
 
-class OrNode extends BooleanExpNode {
-    public OrNode(ExpNode exp1, ExpNode exp2) {
-        super(exp1, exp2);
+    /***
+     * simplify:  TRUE & b and b & TRUE are b, FALSE & b is FALSE (b is
+     * not evaluated anyway), b & FALSE is FALSE (if b has no effects and
+     * cannot trap)
+     ***/
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        if (v1 != null) {
+            return v1 != 0 ? myExp2 : makeLit(Type.BOOLEAN, 0);
+        }
+        if (v2 != null && v2 != 0) {
+            return myExp1;
+        }
+        if (v2 != null && !myExp1.hasEffects() && !myExp1.canTrap()) {
+            return makeLit(Type.BOOLEAN, 0);
+        }
+        return this;
     }
 
     /***
      * codeGen
      ***/
-    public void codeGen() {
+    public void codeGen(int k) {
+        String labelDone = Codegen.nextLabel();
+        myExp1.codeGen(k);
+        Codegen.generate("beq", Codegen.temp(k), Codegen.FALSE, labelDone);
+        myExp2.codeGen(k);
+        Codegen.genLabel(labelDone);
+    }
+
+    /***
+     * jump:  to the false label (or past the second operand) as soon as
+     * the first operand is false
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        String labelFalse = (falseLabel != null ? falseLabel :
+                                                  Codegen.nextLabel());
+        myExp1.genJump(k, null, labelFalse);
+        myExp2.genJump(k, trueLabel, falseLabel);
+        if (falseLabel == null) {
+            Codegen.genLabel(labelFalse);
+        }
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new AndNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.AND, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
+    }
+
+    public void unparse(PrintWriter p, int indent) {
+        p.print("(");
+        myExp1.unparse(p, 0);
+        p.print(" & ");
+        myExp2.unparse(p, 0);
+        p.print(")");
+    }
+}
+
+class OrNode extends BooleanExpNode {
+    public OrNode(ExpNode exp1, ExpNode exp2) {
+        super(exp1, exp2);
+    }
+
+    /***
+     * eval
+     ***/
+    protected Integer eval(int v1, int v2) {
+        return v1 | v2;
+    }
+
+    /***
+     * simplify:  FALSE | b and b | FALSE are b, TRUE | b is TRUE (b is
+     * not evaluated anyway), b | TRUE is TRUE (if b has no effects and
+     * cannot trap)
+     ***/
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        if (v1 != null) {
+            return v1 != 0 ? makeLit(Type.BOOLEAN, 1) : myExp2;
+        }
+        if (v2 != null && v2 == 0) {
+            return myExp1;
+        }
+        if (v2 != null && !myExp1.hasEffects() && !myExp1.canTrap()) {
+            return makeLit(Type.BOOLEAN, 1);
+        }
+        return this;
+    }
+
+    /***
+     * codeGen
+     ***/
+    public void codeGen(int k) {
         String labelDone = Codegen.nextLabel();
-        myExp1.codeGen();
-        Codegen.genPop(Codegen.T0);
-        Codegen.generate("beq", Codegen.T0, Codegen.TRUE, labelDone);
-        myExp2.codeGen();
-        Codegen.genPop(Codegen.T0);
+        myExp1.codeGen(k);
+        Codegen.generate("beq", Codegen.temp(k), Codegen.TRUE, labelDone);
+        myExp2.codeGen(k);
         Codegen.genLabel(labelDone);
-        Codegen.genPush(Codegen.T0);
+    }
+
+    /***
+     * jump:  to the true label (or past the second operand) as soon as
+     * the first operand is true
+     ***/
+    protected void jump(int k, String trueLabel, String falseLabel) {
+        String labelTrue = (trueLabel != null ? trueLabel :
+                                                Codegen.nextLabel());
+        myExp1.genJump(k, labelTrue, null);
+        myExp2.genJump(k, trueLabel, falseLabel);
+        if (trueLabel == null) {
+            Codegen.genLabel(labelTrue);
+        }
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new OrNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.OR, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2703,12 +5110,55 @@ class PlusNode extends ArithmeticExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generateWithComment("add", "ADD", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        long value = (long)v1 + v2;
+        return value == (int)value ? (Integer)(int)value : null;
+    }
+
+    /***
+     * opCanTrap:  add traps on overflow
+     ***/
+    protected boolean opCanTrap(Integer v1, Integer v2) {
+        return v1 == null || v2 == null || eval(v1, v2) == null;
+    }
+
+    /***
+     * simplify:  x + 0 and 0 + x are x
+     ***/
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        if (v2 != null && v2 == 0) {
+            return myExp1;
+        }
+        if (v1 != null && v1 == 0) {
+            return myExp2;
+        }
+        return this;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generateWithComment("add", "ADD", dst, src1, src2);
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new PlusNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.PLUS, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2720,18 +5170,101 @@ class PlusNode extends ArithmeticExpNode {
     }
 }
 
+// **********************************************************************
+// WrappingPlusNode:  an addition made by the optimizer (see Ivsr) that
+// wraps around on overflow instead of trapping, like *
+// **********************************************************************
+class WrappingPlusNode extends PlusNode {
+    public WrappingPlusNode(ExpNode exp1, ExpNode exp2) {
+        super(exp1, exp2);
+    }
+
+    /***
+     * eval
+     ***/
+    protected Integer eval(int v1, int v2) {
+        return v1 + v2;
+    }
+
+    /***
+     * opCanTrap:  addu never traps
+     ***/
+    protected boolean opCanTrap(Integer v1, Integer v2) {
+        return false;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generateWithComment("addu", "ADD", dst, src1, src2);
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new WrappingPlusNode(myExp1.copy(), myExp2.copy());
+    }
+}
+
 class MinusNode extends ArithmeticExpNode {
     public MinusNode(ExpNode exp1, ExpNode exp2) {
         super(exp1, exp2);
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generateWithComment("sub", "SUBTRACT", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        long value = (long)v1 - v2;
+        return value == (int)value ? (Integer)(int)value : null;
+    }
+
+    /***
+     * opCanTrap:  sub traps on overflow
+     ***/
+    protected boolean opCanTrap(Integer v1, Integer v2) {
+        return v1 == null || v2 == null || eval(v1, v2) == null;
+    }
+
+    /***
+     * simplify:  x - 0 is x, 0 - x is -x
+     ***/
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        if (v2 != null && v2 == 0) {
+            return myExp1;
+        }
+        if (v1 != null && v1 == 0) {
+            ExpNode neg = new UnaryMinusNode(myExp2);
+            neg.typeCheck();
+            return neg;
+        }
+        return this;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generateWithComment("sub", "SUBTRACT", dst, src1, src2);
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new MinusNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.MINUS, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2748,13 +5281,79 @@ class TimesNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    /***
+     * eval
+     ***/
+    protected Integer eval(int v1, int v2) {
+        return v1 * v2;
+    }
+
+    /***
+     * simplify:  x * 1 and 1 * x are x, x * 0 and 0 * x are 0 (if x has
+     * no effects and cannot trap)
+     ***/
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        if (v2 != null && v2 == 1) {
+            return myExp1;
+        }
+        if (v1 != null && v1 == 1) {
+            return myExp2;
+        }
+        if (v2 != null && v2 == 0 && !myExp1.hasEffects() && !myExp1.canTrap() ||
+            v1 != null && v1 == 0 && !myExp2.hasEffects() && !myExp2.canTrap()) {
+            return makeLit(Type.INTEGER, 0);
+        }
+        return this;
+    }
+
     /***
      * codeGen
+     * With strength reduction, a multiply by a literal is done with
+     * shifts and adds if it can be (see Codegen.genMultiply).
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generateWithComment("mul", "MULTIPLY", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        if (Codegen.reduceStrength()) {
+            ExpNode exp = myExp1;
+            Integer c = myExp2.litValue();
+            if (c == null) {
+                exp = myExp2;   // the literal has no effects
+                c = myExp1.litValue();
+            }
+            if (c != null) {
+                exp.codeGen(k);
+                if (Codegen.genMultiply(Codegen.temp(k), c)) {
+                    return;
+                }
+                Codegen.generate("li", Codegen.V1, c);
+                genOp(Codegen.temp(k), Codegen.temp(k), Codegen.V1);
+                return;
+            }
+        }
+        super.codeGen(k);
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generateWithComment("mul", "MULTIPLY", dst, src1, src2);
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new TimesNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.TIMES, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2771,13 +5370,75 @@ class DivideNode extends ArithmeticExpNode {
         super(exp1, exp2);
     }
 
+    /***
+     * eval
+     * Division by 0 (and the overflowing MIN_VALUE / -1) is left for run
+     * time.
+     ***/
+    protected Integer eval(int v1, int v2) {
+        if (v2 == 0 || v1 == Integer.MIN_VALUE && v2 == -1) {
+            return null;
+        }
+        return v1 / v2;
+    }
+
+    /***
+     * opCanTrap:  div traps on a zero divisor
+     ***/
+    protected boolean opCanTrap(Integer v1, Integer v2) {
+        return v2 == null || v2 == 0;
+    }
+
+    /***
+     * simplify:  x / 1 is x
+     ***/
+    protected ExpNode simplify(Integer v1, Integer v2) {
+        if (v2 != null && v2 == 1) {
+            return myExp1;
+        }
+        return this;
+    }
+
     /***
      * codeGen
+     * With strength reduction, a divide by a literal (other than 0 and
+     * MIN_VALUE) is done without a div (see Codegen.genDivide).
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generateWithComment("div", "DIVIDE", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    public void codeGen(int k) {
+        Integer d = myExp2.litValue();
+        if (Codegen.reduceStrength() && d != null) {
+            myExp1.codeGen(k);
+            if (!Codegen.genDivide(Codegen.temp(k), d)) {
+                Codegen.generate("li", Codegen.V1, d);
+                genOp(Codegen.temp(k), Codegen.temp(k), Codegen.V1);
+            }
+            return;
+        }
+        super.codeGen(k);
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generateWithComment("div", "DIVIDE", dst, src1, src2);
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new DivideNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.DIVIDE, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2795,12 +5456,41 @@ class EqualsNode extends EqualityExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generate("seq", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        return v1 == v2 ? 1 : 0;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generate("seq", dst, src1, src2);
+    }
+
+    /***
+     * branchOp
+     ***/
+    protected String branchOp() {
+        return "beq";
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new EqualsNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.EQUALS, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2818,12 +5508,41 @@ class NotEqNode extends EqualityExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generate("sne", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        return v1 != v2 ? 1 : 0;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generate("sne", dst, src1, src2);
+    }
+
+    /***
+     * branchOp
+     ***/
+    protected String branchOp() {
+        return "bne";
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new NotEqNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.NOT_EQ, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2841,12 +5560,41 @@ class GreaterNode extends RelationalExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generate("sgt", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        return v1 > v2 ? 1 : 0;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generate("sgt", dst, src1, src2);
+    }
+
+    /***
+     * branchOp
+     ***/
+    protected String branchOp() {
+        return "bgt";
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new GreaterNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.GREATER, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2864,12 +5612,41 @@ class GreaterEqNode extends RelationalExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generate("sge", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        return v1 >= v2 ? 1 : 0;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generate("sge", dst, src1, src2);
+    }
+
+    /***
+     * branchOp
+     ***/
+    protected String branchOp() {
+        return "bge";
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new GreaterEqNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.GREATER_EQ, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2887,12 +5664,41 @@ class LessNode extends RelationalExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generate("slt", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        return v1 < v2 ? 1 : 0;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generate("slt", dst, src1, src2);
+    }
+
+    /***
+     * branchOp
+     ***/
+    protected String branchOp() {
+        return "blt";
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new LessNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.LESS, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {
@@ -2910,12 +5716,41 @@ class LessEqNode extends RelationalExpNode {
     }
 
     /***
-     * codeGen
+     * eval
      ***/
-    public void codeGen() {
-        super.codeGen();
-        Codegen.generate("sle", Codegen.T0, Codegen.T0, Codegen.T1);
-        Codegen.genPush(Codegen.T0);
+    protected Integer eval(int v1, int v2) {
+        return v1 <= v2 ? 1 : 0;
+    }
+
+    /***
+     * genOp
+     ***/
+    protected void genOp(String dst, String src1, String src2) {
+        Codegen.generate("sle", dst, src1, src2);
+    }
+
+    /***
+     * branchOp
+     ***/
+    protected String branchOp() {
+        return "ble";
+    }
+
+    /***
+     * copy
+     ***/
+    public ExpNode copy() {
+        return new LessEqNode(myExp1.copy(), myExp2.copy());
+    }
+
+    /***
+     * flatten
+     ***/
+    public int flatten(FlatAst f) {
+        int n = f.add(FlatAst.LESS_EQ, lineNum(), charNum(), 0);
+        f.addChild(n, myExp1.flatten(f));
+        f.addChild(n, myExp2.flatten(f));
+        return n;
     }
 
     public void unparse(PrintWriter p, int indent) {